@@ -7,13 +7,23 @@
  */
 package alexiil.mc.lib.net;
 
-import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 import javax.annotation.Nullable;
 
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.CompositeByteBuf;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.buffer.UnpooledByteBufAllocator;
+import io.netty.util.ResourceLeakDetector;
+
 import net.minecraft.entity.player.PlayerEntity;
 
 import alexiil.mc.lib.net.impl.ActiveMinecraftConnection;
@@ -26,14 +36,40 @@ import it.unimi.dsi.fastutil.objects.Object2IntOpenHashMap;
 /** An active game connection to a single receiver (and with a single sender). */
 public abstract class ActiveConnection {
 
+    /** The allocator used by every connection unless {@link #setAllocator(ByteBufAllocator)} is called. This is
+     * pooled unless "buffers.pooled" is disabled in the config, and uses direct memory if "buffers.direct" is
+     * enabled. */
+    public static final ByteBufAllocator DEFAULT_ALLOCATOR;
+
+    static {
+        boolean direct = LibNetworkStack.CONFIG_DIRECT_BUFFERS;
+        if (LibNetworkStack.CONFIG_POOLED_BUFFERS) {
+            DEFAULT_ALLOCATOR = new PooledByteBufAllocator(direct);
+        } else {
+            DEFAULT_ALLOCATOR = new UnpooledByteBufAllocator(direct);
+        }
+    }
+
     final ParentNetId rootId;
 
-    /** Map of int -> net_id for reading. */
-    final List<TreeNetIdBase> readMapIds = new ArrayList<>();
+    private ByteBufAllocator allocator = DEFAULT_ALLOCATOR;
+
+    /** Map of int -> net_id for reading. This is only added to by the decoding thread, but may be read by receivers on
+     * other threads (see {@link #queueReceivedDataOffThread(NetByteBuf)}). */
+    final List<TreeNetIdBase> readMapIds = new CopyOnWriteArrayList<>();
+
+    /** Map of {@link TreeNetIdBase#staticIndex} -> id for writing. 0 means that the id hasn't been allocated yet. */
+    int[] writeStaticIds = new int[64];
+
+    /** Map of net_id -> int for writing, only used for paths that contain a dynamic parent. */
     final Object2IntMap<NetIdPath> writeMapIds = new Object2IntOpenHashMap<>();
 
     final Map<NetObjectCacheBase<?>, NetObjectCacheBase<?>.Data> caches = new HashMap<>();
 
+    final Map<NetSyncedState<?>, NetSyncedState<?>.Data> syncedStates = new HashMap<>();
+
+    final Map<NetStream, NetStream.Data> streams = new HashMap<>();
+
     final Int2ObjectMap<StringTraceSegment> receivedTraceStringSegments;
     final Int2ObjectMap<SingleTraceLine> receivedTraceLines;
     final Int2ObjectMap<MultiTraceLines> receivedJoinedTraces;
@@ -55,10 +91,37 @@ public abstract class ActiveConnection {
      * are okay sending information. */
     boolean sendStacktraces = isDebuggingConnection();
 
+    /** @see #setZeroCopyWrites(boolean) */
+    boolean zeroCopyWrites = true;
+
+    /** @see #setFastWrites(boolean) */
+    boolean fastWrites = true;
+
+    /** The single {@link IMsgWriteCtx} used by every send that goes through the fast write path. */
+    final FastWriteCtx fastWriteCtx = new FastWriteCtx(this);
+
+    final LatencyStats latency = new LatencyStats();
+
+    /** Splits packets that are too big to send in one go, and joins them back together on the other side. */
+    final SplitPacketStage splitPackets = new SplitPacketStage();
+
     int lastReceivedTypesCount;
     NetByteBuf lastReceivedTypes;
     MultiTraceLines lastReceivedStacktrace;
 
+    /** Received data that hasn't been read yet, added to by the network thread and drained by
+     * {@link #drainReceiveQueue()}. Contains either {@link QueuedFrame}s (which still need decoding) or
+     * {@link InternalMsgUtil.ReceivedPacket}s (which have already been decoded). */
+    private final Queue<Object> receiveQueue = new ConcurrentLinkedQueue<>();
+
+    /** The {@link System#nanoTime()} when the {@link QueuedFrame} that is currently being decoded was received, if
+     * {@link #hasFrameReceivedNanos} is true. Only used by the decoding thread. */
+    private long frameReceivedNanos;
+    private boolean hasFrameReceivedNanos;
+
+    private int lastDrainCount;
+    private long lastDrainNanos;
+
     public ActiveConnection(ParentNetId rootId) {
         this.rootId = rootId;
         for (int i = 0; i < InternalMsgUtil.COUNT_HARDCODED_IDS; i++) {
@@ -84,17 +147,55 @@ public abstract class ActiveConnection {
 
     public final void postConstruct() {
         if (LibNetworkStack.CONFIG_RECORD_TYPES) {
-            NetByteBuf data = NetByteBuf.buffer(1);
+            NetByteBuf data = allocBuffer(1);
             data.writeVarInt(InternalMsgUtil.ID_INTERNAL_REQUEST_DEBUG_TYPES);
             sendPacket(data, InternalMsgUtil.ID_INTERNAL_REQUEST_DEBUG_TYPES, null, 0);
+            data.release();
         }
         if (LibNetworkStack.CONFIG_RECORD_STACKTRACES) {
-            NetByteBuf data = NetByteBuf.buffer(1);
+            NetByteBuf data = allocBuffer(1);
             data.writeVarInt(InternalMsgUtil.ID_INTERNAL_REQUEST_STACKTRACES);
             sendPacket(data, InternalMsgUtil.ID_INTERNAL_REQUEST_STACKTRACES, null, 0);
+            data.release();
         }
     }
 
+    /** Changes how packets are assembled before they are passed to {@link #sendPacket}. If true (the default) then the
+     * packet header is written into a small separate buffer, and the header and the payload are joined together in a
+     * {@link CompositeByteBuf} (and {@link BufferedConnection} also joins all of it's queued packets together in the
+     * same way when flushing, unless it {@link BufferedConnection#keepsSentData() keeps the sent data}). Otherwise
+     * every payload is copied into a new buffer, both when adding the header and when flushing the queue.
+     * <p>
+     * This only exists for benchmarking and debugging. */
+    public void setZeroCopyWrites(boolean zeroCopy) {
+        this.zeroCopyWrites = zeroCopy;
+    }
+
+    /** @see #setZeroCopyWrites(boolean) */
+    public boolean isZeroCopyWrites() {
+        return zeroCopyWrites;
+    }
+
+    /** Changes whether {@link NetIdDataK} and {@link NetIdSignalK} are allowed to use the fast write path when their
+     * path doesn't contain a dynamic parent. If true (the default) then the packet header and payload are written
+     * directly into a single buffer, without a {@link CheckingNetByteBuf} or a new {@link MessageContext.Write}. The
+     * fast path is never used while types or stacktraces are being sent, regardless of this value.
+     * <p>
+     * This only exists for benchmarking and debugging. */
+    public void setFastWrites(boolean fastWrites) {
+        this.fastWrites = fastWrites;
+    }
+
+    /** @see #setFastWrites(boolean) */
+    public boolean isFastWrites() {
+        return fastWrites;
+    }
+
+    /** @return True if packets with a static path can be written with the fast write path. */
+    final boolean canWriteFast() {
+        return fastWrites && !sendTypes && !(LibNetworkStack.CONFIG_RECORD_STACKTRACES && sendStacktraces);
+    }
+
     /** @return The "side" of this connection. If this is an {@link ActiveMinecraftConnection} then this will be CLIENT
      *         both when writing client to server packets, and when reading packets sent from the server. (And SERVER
      *         both when writing server to client packets, and when reading client to server packets). Other connection
@@ -125,12 +226,157 @@ public abstract class ActiveConnection {
         InternalMsgUtil.onReceive(this, data);
     }
 
+    private void decodeOffThread(NetByteBuf data, Collection<? super InternalMsgUtil.ReceivedPacket> to)
+        throws InvalidInputDataException {
+        NetByteBuf frame = decompressReceived(data);
+        try {
+            while (frame.readableBytes() > 0) {
+                InternalMsgUtil.ReceivedPacket packet = InternalMsgUtil.decode(this, frame);
+                if (packet == null) {
+                    continue;
+                }
+                if (packet.canDispatchOffThread()) {
+                    InternalMsgUtil.dispatch(this, packet);
+                } else {
+                    to.add(packet);
+                }
+            }
+        } finally {
+            if (frame != data) {
+                frame.release();
+            }
+        }
+    }
+
+    /** @return Either the given data (if it wasn't compressed), or a new buffer containing the decompressed data, which
+     *         the caller must release. */
+    NetByteBuf decompressReceived(NetByteBuf data) throws InvalidInputDataException {
+        return data;
+    }
+
+    /** Adds the given data to the end of the receive queue, to be read by the next call to
+     * {@link #drainReceiveQueue()}. This may be called from any thread.
+     * 
+     * @param data The received data. The queue takes over the caller's reference to it, so the caller must not release
+     *            it. */
+    public void queueReceivedData(NetByteBuf data) {
+        receiveQueue.add(new QueuedFrame(data, System.nanoTime()));
+    }
+
+    /** Decodes every packet in the given data on the calling thread, and then adds the decoded packets to the end of
+     * the receive queue, to be received by the next call to {@link #drainReceiveQueue()}. Packets whose
+     * {@link NetIdBase#isThreadSafeReceiver()} returns true are received immediately on the calling thread instead.
+     * <p>
+     * This must only be called by one thread at a time, and must not be mixed with
+     * {@link #queueReceivedData(NetByteBuf)} or {@link #onReceiveRawData(NetByteBuf)} for the same connection.
+     * 
+     * @param data The data to read. This may be released as soon as this returns.
+     * @throws InvalidInputDataException if the data couldn't be decoded, or a thread-safe receiver failed. */
+    public void queueReceivedDataOffThread(NetByteBuf data) throws InvalidInputDataException {
+        decodeOffThread(data, receiveQueue);
+    }
+
+    /** Reads everything in the receive queue, in the order that it was added. This should be called once per tick by
+     * the thread that normally receives packets.
+     * 
+     * @return The number of entries read (either raw data or decoded packets).
+     * @throws InvalidInputDataException if any of the data failed to read. Everything left in the queue is discarded
+     *             when this happens. */
+    public int drainReceiveQueue() throws InvalidInputDataException {
+        long start = System.nanoTime();
+        int count = 0;
+        try {
+            Object next;
+            while ((next = receiveQueue.poll()) != null) {
+                count++;
+                if (next instanceof QueuedFrame frame) {
+                    frameReceivedNanos = frame.receivedNanos;
+                    hasFrameReceivedNanos = true;
+                    try {
+                        onReceiveRawData(frame.data);
+                    } finally {
+                        hasFrameReceivedNanos = false;
+                        frame.data.release();
+                    }
+                } else {
+                    InternalMsgUtil.dispatch(this, (InternalMsgUtil.ReceivedPacket) next);
+                }
+            }
+        } catch (InvalidInputDataException | RuntimeException e) {
+            discardReceiveQueue();
+            throw e;
+        } finally {
+            lastDrainCount = count;
+            lastDrainNanos = System.nanoTime() - start;
+        }
+        return count;
+    }
+
+    /** Releases everything in the receive queue without reading it. Used when the connection has been closed. */
+    public void discardReceiveQueue() {
+        Object next;
+        while ((next = receiveQueue.poll()) != null) {
+            if (next instanceof QueuedFrame frame) {
+                frame.data.release();
+            } else {
+                ((InternalMsgUtil.ReceivedPacket) next).release();
+            }
+        }
+        splitPackets.releaseReceiving();
+    }
+
+    /** Aborts every {@link NetStream} on this connection, without sending anything. Incoming streams are told that
+     * they were aborted. Used when the connection has been closed, and must be called on the thread that normally
+     * receives packets. */
+    public void abortStreams() {
+        for (NetStream.Data data : streams.values()) {
+            data.abort();
+        }
+        streams.clear();
+    }
+
+    /** @return The {@link System#nanoTime()} when the data that is currently being decoded was received from the
+     *         network. This is the time that it was added to the receive queue (if it's being read by
+     *         {@link #drainReceiveQueue()}), and otherwise the current time, as the data is being read as soon as it
+     *         was received. */
+    final long getFrameReceivedNanos() {
+        return hasFrameReceivedNanos ? frameReceivedNanos : System.nanoTime();
+    }
+
+    /** @return The number of entries read by the last call to {@link #drainReceiveQueue()}. */
+    public int getLastDrainCount() {
+        return lastDrainCount;
+    }
+
+    /** @return The time (in nanoseconds) that the last call to {@link #drainReceiveQueue()} took. */
+    public long getLastDrainNanos() {
+        return lastDrainNanos;
+    }
+
+    /** @return A new buffer from this connection's {@link #getAllocator() allocator}. This is generally pooled, so
+     *         it must be {@link NetByteBuf#release() released} when it's no longer needed. */
     public NetByteBuf allocBuffer() {
-        return NetByteBuf.buffer();
+        return NetByteBuf.buffer(allocator);
     }
 
+    /** @return A new buffer from this connection's {@link #getAllocator() allocator}. This is generally pooled, so
+     *         it must be {@link NetByteBuf#release() released} when it's no longer needed. */
     public NetByteBuf allocBuffer(int initialCapacity) {
-        return NetByteBuf.buffer(initialCapacity);
+        return NetByteBuf.buffer(allocator, initialCapacity);
+    }
+
+    /** @return The allocator that LNS uses for every buffer that it creates (and releases) internally for this
+     *         connection. */
+    public ByteBufAllocator getAllocator() {
+        return allocator;
+    }
+
+    /** Changes the allocator that LNS uses for every buffer that it creates (and releases) internally for this
+     * connection. This defaults to {@link #DEFAULT_ALLOCATOR}, but tests can replace it with one that tracks every
+     * buffer that hasn't been released yet, or with one that uses {@link ResourceLeakDetector.Level#PARANOID} leak
+     * detection. */
+    public void setAllocator(ByteBufAllocator allocator) {
+        this.allocator = Objects.requireNonNull(allocator, "allocator");
     }
 
     <T> NetObjectCacheBase<T>.Data getCacheData(NetObjectCacheBase<T> cache) {
@@ -138,6 +384,53 @@ public abstract class ActiveConnection {
         return (NetObjectCacheBase<T>.Data) caches.computeIfAbsent(cache, c -> c.new Data(this));
     }
 
+    @SuppressWarnings("unchecked")
+    <T> NetSyncedState<T>.Data getSyncedStateData(NetSyncedState<T> state) {
+        return (NetSyncedState<T>.Data) syncedStates.computeIfAbsent(state, s -> s.new Data());
+    }
+
+    /** @return The (live) round trip time measurements for this connection. */
+    public LatencyStats getLatencyStats() {
+        return latency;
+    }
+
+    /** Sends a ping to the other side, which updates {@link #getLatencyStats()} once it has been replied to.
+     * {@link BufferedConnection} calls this automatically once per second. */
+    public void sendPing() {
+        int id = latency.onPingSent(System.nanoTime());
+        NetByteBuf data = allocBuffer(6);
+        data.writeVarUnsignedInt(InternalMsgUtil.ID_INTERNAL_PING);
+        data.writeVarUnsignedInt(id);
+        sendPacket(data, InternalMsgUtil.ID_INTERNAL_PING, null, NetIdBase.MAXIMUM_PRIORITY);
+        data.release();
+    }
+
+    void sendPong(int pingId, long holdNanos) {
+        NetByteBuf data = allocBuffer(16);
+        data.writeVarUnsignedInt(InternalMsgUtil.ID_INTERNAL_PONG);
+        data.writeVarUnsignedInt(pingId);
+        data.writeVarUnsignedLong(Math.max(0, holdNanos / 1000));
+        sendPacket(data, InternalMsgUtil.ID_INTERNAL_PONG, null, NetIdBase.MAXIMUM_PRIORITY);
+        data.release();
+        // Otherwise the pong would wait until the end of the tick, which isn't included in the hold time
+        flushQueue();
+    }
+
+    NetStream.Data getStreamData(NetStream stream) {
+        return streams.computeIfAbsent(stream, s -> s.new Data(this));
+    }
+
+    /** Raw data in the receive queue, which hasn't been decoded yet. */
+    private static final class QueuedFrame {
+        final NetByteBuf data;
+        final long receivedNanos;
+
+        QueuedFrame(NetByteBuf data, long receivedNanos) {
+            this.data = data;
+            this.receivedNanos = receivedNanos;
+        }
+    }
+
     enum StringTraceSeparator {
         DOT('.'),
         SLASH('/'),
@@ -248,4 +541,25 @@ public abstract class ActiveConnection {
             }
         }
     }
+
+    /** A mutable {@link IMsgWriteCtx}, reused for every fast write to a single connection. Senders must save and
+     * restore {@link #netId} around their use, as writers are allowed to send other packets. */
+    static final class FastWriteCtx implements IMsgWriteCtx {
+        final ActiveConnection connection;
+        NetIdBase netId;
+
+        FastWriteCtx(ActiveConnection connection) {
+            this.connection = connection;
+        }
+
+        @Override
+        public ActiveConnection getConnection() {
+            return connection;
+        }
+
+        @Override
+        public NetIdBase getNetId() {
+            return netId;
+        }
+    }
 }
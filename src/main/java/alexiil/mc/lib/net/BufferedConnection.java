@@ -7,75 +7,293 @@
  */
 package alexiil.mc.lib.net;
 
-import alexiil.mc.lib.net.BufferedConnection.BufferedPacketInfo;
 import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
 import java.util.Queue;
+import java.util.zip.Deflater;
 
 import javax.annotation.Nullable;
 
+import io.netty.buffer.CompositeByteBuf;
+import io.netty.buffer.Unpooled;
+
+import it.unimi.dsi.fastutil.ints.Int2ObjectRBTreeMap;
+import it.unimi.dsi.fastutil.ints.Int2ObjectSortedMap;
+import it.unimi.dsi.fastutil.ints.IntComparators;
+
 /** An {@link ActiveConnection} which buffers packets until one of the following:
  * <ol>
  * <li>{@link #flushQueue()} is called</li>
  * <li>{@link #maximumPacketSize()} is reached</li>.
  * <li>{@link #tick()} is called, which also calls {@link #sendTickPacket()} beforehand.</li>
+ * <li>The latency budget of the oldest queued packet runs out, or enough bytes have been queued (see
+ * {@link #setCoalescingPolicy(CoalescingPolicy)}).</li>
  * </ol>
+ * If a maximum bandwidth has been set (with {@link #setMaxBandwidth(int)}, by either side) then packets with a priority
+ * lower than {@link NetIdBase#MAXIMUM_PRIORITY} are only sent in {@link #tick()}, and only if the bytes sent this tick
+ * are within the per-tick budget. Packets which don't fit are kept for later ticks (highest priority first), and are
+ * dropped once they have been held for longer than their {@link NetIdBase#setMaximumDropDelay(int) drop delay}.
+ * <p>
+ * If both sides support it then the data passed to {@link #sendRawData0(NetByteBuf)} may also be compressed (see
+ * {@link #setCompression(CompressionMode, int)}).
+ * <p>
+ * As the coalescing timer may flush the queue from a different thread (see {@link #scheduleFlush(long)}), the queues
+ * and send statistics are only accessed while holding a lock. Everything else is still only used by the thread that
+ * owns this connection.
  */
 public abstract class BufferedConnection extends ActiveConnection {
 
     /** The minimum accepted value for {@link #ourMaxBandwidth} and {@link #theirMaxBandwidth}, in bytes per second. */
     private static final int MIN_BANDWIDTH = 8000;
 
+    /** The value for {@link #ourMaxBandwidth} and {@link #theirMaxBandwidth} if neither side has limited it. */
+    private static final int UNLIMITED_BANDWIDTH = Integer.MAX_VALUE;
+
+    /** The number of times that {@link #tick()} is expected to be called per second, used to convert the maximum
+     * bandwidth into a per-tick budget. */
+    public static final int TICKS_PER_SECOND = 20;
+
+    /** The number of ticks between each {@link #sendPing()}. */
+    private static final int PING_INTERVAL = TICKS_PER_SECOND;
+
     // for testing purposes
     public static final boolean ENABLE_QUEUE = true;
 
     final int defaultDropDelay;
-    private int ourMaxBandwidth = MIN_BANDWIDTH;
-    private int theirMaxBandwidth = MIN_BANDWIDTH;
-    private int actualMaxBandwidth = MIN_BANDWIDTH;
+    private int ourMaxBandwidth = UNLIMITED_BANDWIDTH;
+    private int theirMaxBandwidth = UNLIMITED_BANDWIDTH;
+    private int actualMaxBandwidth = UNLIMITED_BANDWIDTH;
+
+    /** Held while using {@link #packetQueue}, {@link #delayedQueues}, {@link #sendStats}, and everything else that
+     * flushing uses. */
+    private final Object queueLock = new Object();
 
     private final Queue<BufferedPacketInfo> packetQueue = new ArrayDeque<>();
     private int queueLength = 0;
 
-    // private long lastTickTime;
+    private CoalescingPolicy coalescing = LibNetworkStack.CONFIG_COALESCING;
+
+    /** True if {@link #flushDeadline} is set, which means that a flush has been scheduled for it. */
+    private boolean hasFlushDeadline;
+
+    /** The {@link System#nanoTime()} by which the queue must be flushed. */
+    private long flushDeadline;
+
+    /** Packets with a priority lower than {@link NetIdBase#MAXIMUM_PRIORITY} which are waiting for enough bandwidth to
+     * be sent. Ordered from the highest priority to the lowest. */
+    private final Int2ObjectSortedMap<Queue<BufferedPacketInfo>> delayedQueues
+        = new Int2ObjectRBTreeMap<>(IntComparators.OPPOSITE_COMPARATOR);
+
+    private int tickCount = 0;
+
+    /** The number of bytes passed to {@link #sendRawData0(NetByteBuf)} since the last {@link #tick()}. */
+    private long bytesSentThisTick = 0;
+
+    /** Per-{@link NetIdBase} statistics. Internal packets (which don't have a {@link NetIdBase}) use the null key. */
+    private final Map<NetIdBase, SendStats> sendStats = new HashMap<>();
+
+    private CompressionMode compressionMode = LibNetworkStack.CONFIG_COMPRESSION_MODE;
+    private int compressionThreshold = LibNetworkStack.CONFIG_COMPRESSION_THRESHOLD;
+
+    /** True once we have told the other side that we can decompress frames. */
+    private boolean hasSentCompressionSupport;
+
+    /** True once the other side has told us that it can decompress frames. */
+    private boolean theyCanDecompress;
+
+    private final CompressionStage compression = new CompressionStage();
 
     public BufferedConnection(ParentNetId rootId, int defaultDropDelay) {
         super(rootId);
         this.defaultDropDelay = defaultDropDelay;
     }
 
+    /** Sets the maximum number of bytes (per second) that we want to receive, and that we will send. The value that
+     * is actually used for sending is the minimum of this and the value that the other side has set. */
     public void setMaxBandwidth(int to) {
         if (to < MIN_BANDWIDTH) {
             to = MIN_BANDWIDTH;
         }
         ourMaxBandwidth = to;
-        NetByteBuf data = NetByteBuf.buffer(6);
+        actualMaxBandwidth = Math.min(theirMaxBandwidth, ourMaxBandwidth);
+        NetByteBuf data = allocBuffer(6);
         data.writeVarUnsignedInt(InternalMsgUtil.ID_INTERNAL_NEW_BANDWIDTH);
-        data.writeShort(to / MIN_BANDWIDTH);
-        sendRawData0(data);
+        data.writeShort(Math.min(to / MIN_BANDWIDTH, 0xFFFF));
+        sendRawData(data);
         data.release();
     }
 
+    /** @return The maximum number of bytes (per second) that this will send, or {@link Integer#MAX_VALUE} if neither
+     *         side has limited it. */
+    public int getMaxBandwidth() {
+        return actualMaxBandwidth;
+    }
+
+    /** @return The maximum number of bytes (per second) that will actually be sent right now, which is
+     *         {@link #getMaxBandwidth()} reduced by {@link LatencyStats#getSendRateFactor()} while the round trip time
+     *         shows that data is queueing up between the two sides. This is {@link Integer#MAX_VALUE} if neither side
+     *         has limited the bandwidth. */
+    public int getEffectiveMaxBandwidth() {
+        if (actualMaxBandwidth == UNLIMITED_BANDWIDTH) {
+            return UNLIMITED_BANDWIDTH;
+        }
+        return Math.max(MIN_BANDWIDTH, (int) (actualMaxBandwidth * latency.getSendRateFactor()));
+    }
+
+    /** Sets how frames (the combined packets passed to {@link #sendRawData0(NetByteBuf)}) are compressed. Frames are
+     * only compressed once the other side has told us that it supports decompressing them, which it will only do
+     * after we have told it that we support compression (the next time this is ticked).
+     * 
+     * @param mode The compression mode to use. {@link CompressionMode#NONE} disables compression for sending,
+     *            although already compressed frames can still be received.
+     * @param threshold The minimum size of a frame (in bytes) before it is compressed. */
+    public void setCompression(CompressionMode mode, int threshold) {
+        if (threshold < 0) {
+            throw new IllegalArgumentException("The threshold (" + threshold + ") must not be negative!");
+        }
+        this.compressionMode = Objects.requireNonNull(mode, "mode");
+        this.compressionThreshold = threshold;
+    }
+
+    /** Sets how long packets may be held before flushing them, rather than waiting for the next {@link #tick()}. This
+     * only has an effect on connections which override {@link #scheduleFlush(long)}, otherwise the latency budgets
+     * are only checked when another packet is sent (and in {@link #tick()}). */
+    public void setCoalescingPolicy(CoalescingPolicy policy) {
+        this.coalescing = Objects.requireNonNull(policy, "policy");
+    }
+
+    /** @see #setCoalescingPolicy(CoalescingPolicy) */
+    public CoalescingPolicy getCoalescingPolicy() {
+        return coalescing;
+    }
+
+    /** @see #setCompression(CompressionMode, int) */
+    public CompressionMode getCompressionMode() {
+        return compressionMode;
+    }
+
+    /** @return True if frames that are at least as large as the compression threshold will be compressed when
+     *         they're sent. */
+    public boolean isCompressing() {
+        return compressionMode != CompressionMode.NONE && theyCanDecompress;
+    }
+
+    /** @return The (live) compression statistics for this connection, in both directions. */
+    public CompressionStats getCompressionStats() {
+        return compression.stats;
+    }
+
     @Override
     protected final void sendPacket(NetByteBuf data, int packetId, @Nullable NetIdBase netId, int priority) {
         if (!ENABLE_QUEUE) {
-            sendRawData0(data);
+            sendRawData(data);
+            return;
+        }
+        if (data.readableBytes() > maximumPacketSize()) {
+            // Split parts are never dropped, as the other side can't do anything with half of a packet
+            splitPackets.split(this, data, maximumPacketSize(), part -> queuePacket(part, netId, priority, false));
+            return;
+        }
+        queuePacket(data, netId, priority, true);
+    }
+
+    private void queuePacket(NetByteBuf data, @Nullable NetIdBase netId, int priority, boolean droppable) {
+        boolean notBuffered = netId != null && (netId.getFinalFlags() & NetIdBase.FLAG_NOT_BUFFERED) != 0;
+        if (priority < NetIdBase.MAXIMUM_PRIORITY && actualMaxBandwidth != UNLIMITED_BANDWIDTH && !notBuffered
+            && !sendTypes && !sendStacktraces) {
+            // Debug type and stacktrace packets must stay directly in front of the packet they describe,
+            // so delaying is disabled entirely while either are being sent.
+            int dropTick = Integer.MAX_VALUE;
+            if (droppable) {
+                int dropDelay = netId == null ? 0 : netId.getMaximumDropDelay();
+                if (dropDelay == 0) {
+                    dropDelay = defaultDropDelay;
+                }
+                dropTick = tickCount + dropDelay;
+            }
+            BufferedPacketInfo bpi = new BufferedPacketInfo(data, priority, netId, dropTick);
+            synchronized (queueLock) {
+                delayedQueues.computeIfAbsent(priority, p -> new ArrayDeque<>()).add(bpi);
+                data.retain();
+            }
+            return;
+        }
+        synchronized (queueLock) {
+            enqueue(new BufferedPacketInfo(data, priority, netId, Integer.MAX_VALUE), true);
+
+            if (notBuffered) {
+                flushQueue();
+            } else {
+                coalesce(coalescing.getLatencyBudgetNanos(priority));
+            }
+        }
+    }
+
+    /** Flushes the queue if the latency budget of the packet that was just queued (or any earlier one) has run out, or
+     * if enough bytes have been queued, and otherwise schedules a flush for when it will run out. */
+    private void coalesce(long budget) {
+        if (budget == CoalescingPolicy.WAIT_FOR_TICK) {
             return;
         }
-        int rb = data.readableBytes();
+        long now = System.nanoTime();
+        if (budget == 0 || queueLength >= coalescing.getFlushBytes()
+            || (hasFlushDeadline && now - flushDeadline >= 0)) {
+            flushQueue();
+            return;
+        }
+        long deadline = now + budget;
+        if (!hasFlushDeadline || deadline - flushDeadline < 0) {
+            hasFlushDeadline = true;
+            flushDeadline = deadline;
+            scheduleFlush(budget);
+        }
+    }
+
+    /** Arranges for {@link #onFlushTimer()} to be called after the given delay, on any thread. This is called whenever
+     * a queued packet has an earlier latency budget than every other queued packet. The default implementation does
+     * nothing, so the latency budgets are only checked when more packets are sent, and the queue is always flushed by
+     * {@link #tick()}.
+     *
+     * @param delayNanos The delay, in nanoseconds. */
+    protected void scheduleFlush(long delayNanos) {}
+
+    /** @return The lock which is held while the queue is flushed, and so while {@link #sendRawData0(NetByteBuf)} is
+     *         called by anything other than {@link #setMaxBandwidth(int)}. Subclasses can hold this to stop
+     *         {@link #onFlushTimer()} from sending anything in the meantime. */
+    protected final Object getQueueLock() {
+        return queueLock;
+    }
+
+    /** Flushes the queue if the latency budget of any queued packet has run out. This may be called from any thread,
+     * and may be called more often (or later) than it was scheduled. */
+    protected final void onFlushTimer() {
+        synchronized (queueLock) {
+            if (hasFlushDeadline && System.nanoTime() - flushDeadline >= 0) {
+                flushQueue();
+            }
+        }
+    }
+
+    private void enqueue(BufferedPacketInfo bpi, boolean retain) {
+        int rb = bpi.data.readableBytes();
+        getStats(bpi.netId).onSent(rb);
         if (queueLength + rb > maximumPacketSize()) {
             flushQueue();
         }
         if (rb > maximumPacketSize()) {
-            // Sending a huge packet
-            // Instead of splitting it ourselves we'll just make the implementation do it
-            sendRawData0(data);
+            // sendPacket splits up anything larger than this, so this only happens if the maximum size has changed
+            bytesSentThisTick += sendFrame(bpi.data, false);
+            if (!retain) {
+                bpi.data.release();
+            }
         } else {
-            packetQueue.add(new BufferedPacketInfo(data, priority));
+            packetQueue.add(bpi);
             queueLength += rb;
-            data.retain();
-
-            if (netId != null && (netId.getFinalFlags() & NetIdBase.FLAG_NOT_BUFFERED) != 0) {
-                flushQueue();
+            if (retain) {
+                bpi.data.retain();
             }
         }
     }
@@ -87,17 +305,88 @@ public abstract class BufferedConnection extends ActiveConnection {
         return (1 << 16) - 10;
     }
 
-    /** Ticks this connection, flushing all queued data that needs to be sent immediately. */
+    /** Ticks this connection, sending as many delayed packets as the bandwidth allows, and then flushing all queued
+     * data. This is the same as calling {@link #tickWrite()} and then {@link #tickFlush()}. */
     public void tick() {
-        // long thisTick = System.currentTimeMillis();
+        tickWrite();
+        tickFlush();
+    }
 
-        // FOR NOW
-        // just empty the queue
-        // rather than doing anything more complicated with bandwidth or priorities.
-        // at the very least this should be an optimisation over just sending each individual
-        // packet out one by one.
+    /** The first half of {@link #tick()}, which writes any packets that are sent every tick (like
+     * {@link #sendTickPacket()}). */
+    public void tickWrite() {
+        if (compressionMode != CompressionMode.NONE && !hasSentCompressionSupport) {
+            sendCompressionSupport(true);
+        }
+        if (tickCount % PING_INTERVAL == 0) {
+            sendPing();
+        }
         sendTickPacket();
-        flushQueue();
+        for (NetObjectCacheBase<?>.Data cacheData : caches.values()) {
+            cacheData.shrink();
+        }
+        for (NetStream.Data streamData : streams.values()) {
+            streamData.tick();
+        }
+    }
+
+    /** The second half of {@link #tick()}, which sends as many delayed packets as the bandwidth allows, and then
+     * combines, compresses, and sends all queued data. This doesn't write any new packets, and only uses the state of
+     * this connection, so it may be called from a different thread to the one that normally uses this connection, as
+     * long as that thread doesn't use this connection until this has returned. */
+    public void tickFlush() {
+        synchronized (queueLock) {
+            tickCount++;
+            if (!delayedQueues.isEmpty()) {
+                sendDelayedPackets();
+            }
+            flushQueue();
+            bytesSentThisTick = 0;
+        }
+    }
+
+    private void sendDelayedPackets() {
+        // Drop everything that has been held for too long first, so it doesn't use up the budget
+        for (Queue<BufferedPacketInfo> queue : delayedQueues.values()) {
+            queue.removeIf(bpi -> {
+                if (bpi.dropTick >= tickCount) {
+                    return false;
+                }
+                getStats(bpi.netId).onDropped(bpi.data.readableBytes());
+                bpi.data.release();
+                return true;
+            });
+        }
+
+        final int maxBandwidth = getEffectiveMaxBandwidth();
+        final long tickBudget = maxBandwidth == UNLIMITED_BANDWIDTH ? Long.MAX_VALUE : maxBandwidth / TICKS_PER_SECOND;
+        long budget = tickBudget - bytesSentThisTick - queueLength;
+        boolean full = false;
+
+        for (Queue<BufferedPacketInfo> queue : delayedQueues.values()) {
+            BufferedPacketInfo bpi;
+            while (!full && (bpi = queue.peek()) != null) {
+                int rb = bpi.data.readableBytes();
+                // Always allow a single packet through if nothing else has been sent this tick,
+                // as otherwise packets larger than the budget could never be sent
+                if (rb > budget && budget < tickBudget) {
+                    full = true;
+                    break;
+                }
+                queue.remove();
+                budget -= rb;
+                enqueue(bpi, false);
+            }
+            if (full) {
+                for (BufferedPacketInfo delayed : queue) {
+                    if (!delayed.deferred) {
+                        delayed.deferred = true;
+                        getStats(delayed.netId).onDeferred(delayed.data.readableBytes());
+                    }
+                }
+            }
+        }
+        delayedQueues.values().removeIf(Queue::isEmpty);
     }
 
     /** Optional method for subclasses to send additional packet before the queue is flushed. */
@@ -105,41 +394,186 @@ public abstract class BufferedConnection extends ActiveConnection {
 
     @Override
     public void flushQueue() {
-        if (!hasPackets()) {
-            return;
+        synchronized (queueLock) {
+            hasFlushDeadline = false;
+            if (!packetQueue.isEmpty()) {
+                flushQueue0();
+            }
         }
-        if (packetQueue.size() == 1) {
+    }
+
+    private void flushQueue0() {
+        if (keepsSentData()) {
+            // Copied exactly once, into a buffer that sendRawData0 can keep as-is
+            NetByteBuf combined = NetByteBuf.buffer(queueLength);
+            BufferedPacketInfo bpi;
+            while ((bpi = packetQueue.poll()) != null) {
+                combined.writeBytes(bpi.data);
+                bpi.data.release();
+            }
+            bytesSentThisTick += sendFrame(combined, true);
+            combined.release();
+        } else if (packetQueue.size() == 1) {
             NetByteBuf data = packetQueue.remove().data;
-            sendRawData0(data);
+            bytesSentThisTick += sendFrame(data, false);
             data.release();
+        } else if (zeroCopyWrites) {
+            // The composite takes over our reference to each queued buffer
+            CompositeByteBuf composite = getAllocator().compositeBuffer(packetQueue.size());
+            BufferedPacketInfo bpi;
+            while ((bpi = packetQueue.poll()) != null) {
+                composite.addComponent(true, bpi.data);
+            }
+            NetByteBuf combined = NetByteBuf.asNetByteBuf(composite);
+            bytesSentThisTick += sendFrame(combined, false);
+            combined.release();
         } else {
-            NetByteBuf combined = NetByteBuf.buffer(queueLength);
+            NetByteBuf combined = allocBuffer(queueLength);
             BufferedPacketInfo bpi;
             while ((bpi = packetQueue.poll()) != null) {
                 combined.writeBytes(bpi.data);
                 bpi.data.release();
             }
-            sendRawData0(combined);
+            bytesSentThisTick += sendFrame(combined, false);
             combined.release();
         }
         queueLength = 0;
     }
 
+    /** Passes a single frame to {@link #sendRawData0(NetByteBuf)}, compressing it first if enabled.
+     * 
+     * @param data The frame to send. This isn't released.
+     * @param isUnpooled True if the frame is a new unpooled buffer which isn't shared with anything else, and so
+     *            doesn't need to be copied if {@link #keepsSentData()}.
+     * @return The number of bytes that were actually sent. */
+    private int sendFrame(NetByteBuf data, boolean isUnpooled) {
+        if (isCompressing() && data.readableBytes() >= compressionThreshold) {
+            NetByteBuf compressed = compression.compress(this, data, compressionMode);
+            int length = compressed.readableBytes();
+            sendRawData(compressed);
+            compressed.release();
+            return length;
+        }
+        int length = data.readableBytes();
+        if (isUnpooled) {
+            sendRawData0(data);
+        } else {
+            sendRawData(data);
+        }
+        return length;
+    }
+
+    /** Passes the given data to {@link #sendRawData0(NetByteBuf)}, copying it into a new unpooled buffer first if
+     * {@link #keepsSentData()}. */
+    private void sendRawData(NetByteBuf data) {
+        if (keepsSentData()) {
+            NetByteBuf copy = NetByteBuf.asNetByteBuf(Unpooled.copiedBuffer(data));
+            sendRawData0(copy);
+            copy.release();
+        } else {
+            sendRawData0(data);
+        }
+    }
+
+    private void sendCompressionSupport(boolean requestReply) {
+        hasSentCompressionSupport = true;
+        NetByteBuf data = allocBuffer(2);
+        data.writeVarUnsignedInt(InternalMsgUtil.ID_INTERNAL_COMPRESSION_SUPPORT);
+        data.writeBoolean(requestReply);
+        sendPacket(data, InternalMsgUtil.ID_INTERNAL_COMPRESSION_SUPPORT, null, NetIdBase.MAXIMUM_PRIORITY);
+        data.release();
+    }
+
+    void onReceiveCompressionSupport(boolean replyRequested) {
+        theyCanDecompress = true;
+        if (replyRequested && !hasSentCompressionSupport) {
+            sendCompressionSupport(false);
+        }
+    }
+
+    @Override
+    NetByteBuf decompressReceived(NetByteBuf data) throws InvalidInputDataException {
+        if (CompressionStage.isCompressed(data)) {
+            return compression.decompress(this, data);
+        }
+        return data;
+    }
+
     protected final boolean hasPackets() {
-        return !packetQueue.isEmpty();
+        synchronized (queueLock) {
+            return !packetQueue.isEmpty();
+        }
+    }
+
+    /** @return The number of packets which are currently being held back until there's enough bandwidth to send
+     *         them. */
+    public int getDelayedPacketCount() {
+        synchronized (queueLock) {
+            int count = 0;
+            for (Queue<BufferedPacketInfo> queue : delayedQueues.values()) {
+                count += queue.size();
+            }
+            return count;
+        }
+    }
+
+    /** @param netId The {@link NetIdBase} to get the statistics for, or null to get the statistics for LNS's own
+     *            internal packets.
+     * @return The (live) send statistics for the given {@link NetIdBase}. As the queue may be flushed by a different
+     *         thread, the values may be slightly out of date. */
+    public SendStats getSendStats(@Nullable NetIdBase netId) {
+        synchronized (queueLock) {
+            return getStats(netId);
+        }
+    }
+
+    /** @return An unmodifiable copy of the map of every {@link SendStats} which has been recorded by this connection
+     *         (although the {@link SendStats} themselves are still live). Internal packets use the null key. */
+    public Map<NetIdBase, SendStats> getAllSendStats() {
+        synchronized (queueLock) {
+            return Collections.unmodifiableMap(new HashMap<>(sendStats));
+        }
+    }
+
+    /** Must be called while holding {@link #queueLock}. */
+    private SendStats getStats(@Nullable NetIdBase netId) {
+        SendStats stats = sendStats.get(netId);
+        if (stats == null) {
+            stats = new SendStats();
+            sendStats.put(netId, stats);
+        }
+        return stats;
     }
 
     @Override
     public void onReceiveRawData(NetByteBuf data) throws InvalidInputDataException {
-        while (data.readableBytes() > 0) {
-            InternalMsgUtil.onReceive(this, data);
+        NetByteBuf frame = decompressReceived(data);
+        try {
+            while (frame.readableBytes() > 0) {
+                InternalMsgUtil.onReceive(this, frame);
+            }
+        } finally {
+            if (frame != data) {
+                frame.release();
+            }
         }
     }
 
     /** Sends some raw data. It might contain multiple packets, half packets, or even less. Either way the
-     * implementation should just directly send the data on to the other side, and ensure it arrives in-order. */
+     * implementation should just directly send the data on to the other side, and ensure it arrives in-order.
+     * <p>
+     * Unless {@link #keepsSentData()} returns true the data may be pooled (or a {@link CompositeByteBuf} of pooled
+     * buffers), so it mustn't be used after this returns. */
     protected abstract void sendRawData0(NetByteBuf data);
 
+    /** @return True if {@link #sendRawData0(NetByteBuf)} keeps the data that it's given after it returns (for example
+     *         by wrapping it in another packet), in which case the data is always a new unpooled buffer that isn't
+     *         shared with anything else. Queued packets are then copied straight into a single unpooled buffer when
+     *         flushing, rather than being joined together in a {@link CompositeByteBuf}. */
+    protected boolean keepsSentData() {
+        return false;
+    }
+
     void updateTheirMaxBandwidth(int theirs) {
         theirs *= MIN_BANDWIDTH;
         theirMaxBandwidth = Math.max(theirs, MIN_BANDWIDTH);
@@ -149,11 +583,172 @@ public abstract class BufferedConnection extends ActiveConnection {
     static class BufferedPacketInfo {
         final NetByteBuf data;
         final int priority;
-        // final boolean delayable;
+        @Nullable
+        final NetIdBase netId;
+
+        /** The last tick that this may be sent in. */
+        final int dropTick;
 
-        public BufferedPacketInfo(NetByteBuf data, int priority) {
+        /** True if this has already been counted in {@link SendStats#getPacketsDeferred()}. */
+        boolean deferred;
+
+        public BufferedPacketInfo(NetByteBuf data, int priority, @Nullable NetIdBase netId, int dropTick) {
             this.data = data;
             this.priority = priority;
+            this.netId = netId;
+            this.dropTick = dropTick;
+        }
+    }
+
+    /** The compression that a {@link BufferedConnection} applies to the frames that it sends. */
+    public enum CompressionMode {
+        /** Frames are never compressed. */
+        NONE(Deflater.NO_COMPRESSION),
+        /** Frames are compressed with the fastest deflate level, which is intended for servers where CPU time is more
+         * important than bandwidth. */
+        FAST(Deflater.BEST_SPEED),
+        /** Frames are compressed with the default deflate level, which generally produces smaller frames than
+         * {@link #FAST} but takes longer. */
+        DEFLATE(Deflater.DEFAULT_COMPRESSION);
+
+        final int level;
+
+        CompressionMode(int level) {
+            this.level = level;
+        }
+    }
+
+    /** Statistics about the frames that a {@link BufferedConnection} has compressed and decompressed. The
+     * decompression values are updated by the thread that decodes received data, so may be slightly out of date if
+     * that isn't the current thread. */
+    public static final class CompressionStats {
+        private long framesCompressed, bytesBeforeCompression, bytesAfterCompression, compressNanos;
+        private volatile long framesDecompressed, bytesBeforeDecompression, bytesAfterDecompression, decompressNanos;
+
+        CompressionStats() {}
+
+        void onCompressed(int before, int after, long nanos) {
+            framesCompressed++;
+            bytesBeforeCompression += before;
+            bytesAfterCompression += after;
+            compressNanos += nanos;
+        }
+
+        void onDecompressed(int before, int after, long nanos) {
+            framesDecompressed++;
+            bytesBeforeDecompression += before;
+            bytesAfterDecompression += after;
+            decompressNanos += nanos;
+        }
+
+        public long getFramesCompressed() {
+            return framesCompressed;
+        }
+
+        public long getBytesBeforeCompression() {
+            return bytesBeforeCompression;
+        }
+
+        public long getBytesAfterCompression() {
+            return bytesAfterCompression;
+        }
+
+        /** @return The total CPU time spent compressing frames, in nanoseconds. */
+        public long getCompressNanos() {
+            return compressNanos;
+        }
+
+        /** @return The size of the compressed frames divided by their uncompressed size, or 1 if nothing has been
+         *         compressed yet. */
+        public double getCompressionRatio() {
+            if (bytesBeforeCompression == 0) {
+                return 1;
+            }
+            return bytesAfterCompression / (double) bytesBeforeCompression;
+        }
+
+        public long getFramesDecompressed() {
+            return framesDecompressed;
+        }
+
+        /** @return The number of compressed bytes that have been received. */
+        public long getBytesBeforeDecompression() {
+            return bytesBeforeDecompression;
+        }
+
+        public long getBytesAfterDecompression() {
+            return bytesAfterDecompression;
+        }
+
+        /** @return The total CPU time spent decompressing frames, in nanoseconds. */
+        public long getDecompressNanos() {
+            return decompressNanos;
+        }
+
+        @Override
+        public String toString() {
+            return "compressed " + framesCompressed + " (" + bytesBeforeCompression + "b -> " + bytesAfterCompression
+                + "b in " + compressNanos / 1000 + "us), decompressed " + framesDecompressed + " ("
+                + bytesBeforeDecompression + "b -> " + bytesAfterDecompression + "b in " + decompressNanos / 1000
+                + "us)";
+        }
+    }
+
+    /** Statistics about the packets that a {@link BufferedConnection} has sent for a single {@link NetIdBase}. All
+     * byte counts include the packet header. */
+    public static final class SendStats {
+        private long packetsSent, bytesSent;
+        private long packetsDeferred, bytesDeferred;
+        private long packetsDropped, bytesDropped;
+
+        SendStats() {}
+
+        void onSent(int bytes) {
+            packetsSent++;
+            bytesSent += bytes;
+        }
+
+        void onDeferred(int bytes) {
+            packetsDeferred++;
+            bytesDeferred += bytes;
+        }
+
+        void onDropped(int bytes) {
+            packetsDropped++;
+            bytesDropped += bytes;
+        }
+
+        public long getPacketsSent() {
+            return packetsSent;
+        }
+
+        public long getBytesSent() {
+            return bytesSent;
+        }
+
+        /** @return The number of packets which had to wait at least one tick for enough bandwidth. */
+        public long getPacketsDeferred() {
+            return packetsDeferred;
+        }
+
+        public long getBytesDeferred() {
+            return bytesDeferred;
+        }
+
+        /** @return The number of packets which were dropped because they couldn't be sent before their drop delay
+         *         expired. */
+        public long getPacketsDropped() {
+            return packetsDropped;
+        }
+
+        public long getBytesDropped() {
+            return bytesDropped;
+        }
+
+        @Override
+        public String toString() {
+            return "sent " + packetsSent + " (" + bytesSent + "b), deferred " + packetsDeferred + " (" + bytesDeferred
+                + "b), dropped " + packetsDropped + " (" + bytesDropped + "b)";
         }
     }
 }
@@ -0,0 +1,80 @@
+/*
+ * Copyright (c) 2019 AlexIIL
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+package alexiil.mc.lib.net;
+
+/** Decides how long a {@link BufferedConnection} may hold on to queued packets before flushing them, rather than only
+ * flushing them in {@link BufferedConnection#tick()}. Every packet has a latency budget based on it's priority: the
+ * queue is flushed once the oldest budget runs out (driven by {@link BufferedConnection#scheduleFlush(long)}), or as
+ * soon as it holds at least {@link #getFlushBytes()} bytes. Packets sent within the budget of the first are still
+ * combined into a single frame.
+ * <p>
+ * Packets which are delayed because the connection has run out of bandwidth (see
+ * {@link BufferedConnection#setMaxBandwidth(int)}) are still only sent in {@link BufferedConnection#tick()}. */
+public final class CoalescingPolicy {
+
+    /** The latency budget for packets which should only be sent by the next {@link BufferedConnection#tick()}. */
+    public static final int WAIT_FOR_TICK = -1;
+
+    /** The original behaviour: queued packets are only flushed every tick, when the queue is full, or when a
+     * {@link NetIdBase#notBuffered() not buffered} packet is sent. */
+    public static final CoalescingPolicy TICK_ONLY
+        = new CoalescingPolicy(WAIT_FOR_TICK, WAIT_FOR_TICK, Integer.MAX_VALUE);
+
+    private final long maximumPriorityNanos;
+    private final long lowerPriorityNanos;
+    private final int flushBytes;
+
+    /** @param maximumPriorityMicros The latency budget (in microseconds) for packets sent with
+     *            {@link NetIdBase#MAXIMUM_PRIORITY}, or {@link #WAIT_FOR_TICK}. 0 flushes them immediately.
+     * @param lowerPriorityMicros The latency budget (in microseconds) for every other packet, or
+     *            {@link #WAIT_FOR_TICK}.
+     * @param flushBytes The number of queued bytes which causes the queue to be flushed straight away, if any queued
+     *            packet has a latency budget. */
+    public CoalescingPolicy(int maximumPriorityMicros, int lowerPriorityMicros, int flushBytes) {
+        if (maximumPriorityMicros < WAIT_FOR_TICK || lowerPriorityMicros < WAIT_FOR_TICK) {
+            throw new IllegalArgumentException(
+                "The latency budgets (" + maximumPriorityMicros + ", " + lowerPriorityMicros
+                    + ") must not be negative (except for WAIT_FOR_TICK)!"
+            );
+        }
+        if (flushBytes <= 0) {
+            throw new IllegalArgumentException("The flush size (" + flushBytes + ") must be positive!");
+        }
+        this.maximumPriorityNanos = toNanos(maximumPriorityMicros);
+        this.lowerPriorityNanos = toNanos(lowerPriorityMicros);
+        this.flushBytes = flushBytes;
+    }
+
+    private static long toNanos(int micros) {
+        return micros == WAIT_FOR_TICK ? WAIT_FOR_TICK : micros * 1000L;
+    }
+
+    /** @return The latency budget (in nanoseconds) for packets with the given priority, or {@link #WAIT_FOR_TICK}. */
+    public long getLatencyBudgetNanos(int priority) {
+        return priority >= NetIdBase.MAXIMUM_PRIORITY ? maximumPriorityNanos : lowerPriorityNanos;
+    }
+
+    public int getFlushBytes() {
+        return flushBytes;
+    }
+
+    /** @return True if this never flushes anything before the next tick. */
+    public boolean isTickOnly() {
+        return maximumPriorityNanos == WAIT_FOR_TICK && lowerPriorityNanos == WAIT_FOR_TICK;
+    }
+
+    @Override
+    public String toString() {
+        return "CoalescingPolicy{max priority " + budgetToString(maximumPriorityNanos) + ", lower priority "
+            + budgetToString(lowerPriorityNanos) + ", " + flushBytes + " bytes}";
+    }
+
+    private static String budgetToString(long nanos) {
+        return nanos == WAIT_FOR_TICK ? "tick" : (nanos / 1000) + "us";
+    }
+}
@@ -0,0 +1,138 @@
+/*
+ * Copyright (c) 2019 AlexIIL
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+package alexiil.mc.lib.net;
+
+import java.nio.ByteBuffer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import alexiil.mc.lib.net.BufferedConnection.CompressionMode;
+import alexiil.mc.lib.net.BufferedConnection.CompressionStats;
+
+/** Compresses and decompresses the frames that a {@link BufferedConnection} passes to
+ * {@link BufferedConnection#sendRawData0(NetByteBuf)}.
+ * <p>
+ * Each direction uses a single deflate stream for the whole connection, with every frame ending in a
+ * {@link Deflater#SYNC_FLUSH}. This means that every frame can be decompressed as soon as it's received, while the
+ * (32KiB) history of the stream still acts as a dictionary of the data that was recently sent over this connection.
+ * As such every compressed frame must be decompressed in the same order that they were compressed in.
+ * <p>
+ * Compressed frames are written as {@link InternalMsgUtil#ID_INTERNAL_COMPRESSED}, followed by the uncompressed length
+ * (as a var-uint) and then the compressed data, which always extends to the end of the frame. */
+final class CompressionStage {
+
+    /** The maximum uncompressed length that we accept, to stop a malicious sender from making us allocate a huge
+     * buffer. */
+    private static final int MAXIMUM_UNCOMPRESSED_LENGTH = TreeNetIdBase.MAXIMUM_PACKET_LENGTH;
+
+    final CompressionStats stats = new CompressionStats();
+
+    /** Only used by the sending thread. Null until the first frame is compressed. */
+    private Deflater deflater;
+    private CompressionMode deflaterMode;
+
+    /** Only used by the decoding thread. Null until the first compressed frame is received. */
+    private Inflater inflater;
+
+    /** @return A new buffer containing the compressed frame. */
+    NetByteBuf compress(ActiveConnection connection, NetByteBuf data, CompressionMode mode) {
+        long start = System.nanoTime();
+        if (deflater == null) {
+            deflater = new Deflater(mode.level, true);
+            deflaterMode = mode;
+        } else if (deflaterMode != mode) {
+            // Changing the level only affects the data written after the next flush,
+            // so this doesn't break the stream for the receiver
+            deflater.setLevel(mode.level);
+            deflaterMode = mode;
+        }
+
+        int length = data.readableBytes();
+        NetByteBuf out = connection.allocBuffer(16 + length + (length >> 3));
+        out.writeVarUnsignedInt(InternalMsgUtil.ID_INTERNAL_COMPRESSED);
+        out.writeVarUnsignedInt(length);
+        int headerLength = out.writerIndex();
+
+        for (ByteBuffer in : data.nioBuffers()) {
+            deflater.setInput(in);
+            while (!deflater.needsInput()) {
+                deflate(out, Deflater.NO_FLUSH);
+            }
+        }
+        // A sync flush is finished once it doesn't fill up the whole output buffer
+        while (deflate(out, Deflater.SYNC_FLUSH)) {
+            // Keep flushing
+        }
+
+        stats.onCompressed(length, out.writerIndex() - headerLength, System.nanoTime() - start);
+        return out;
+    }
+
+    /** @return True if the deflater filled up all of the available space. */
+    private boolean deflate(NetByteBuf out, int flush) {
+        out.ensureWritable(256);
+        int writable = out.writableBytes();
+        ByteBuffer dst = out.nioBuffer(out.writerIndex(), writable);
+        int written = deflater.deflate(dst, flush);
+        out.writerIndex(out.writerIndex() + written);
+        return written == writable;
+    }
+
+    /** @return True if the given frame was compressed by {@link #compress}. */
+    static boolean isCompressed(NetByteBuf data) {
+        // All internal IDs are less than 128, so they only take up a single byte
+        return data.isReadable() && data.getByte(data.readerIndex()) == InternalMsgUtil.ID_INTERNAL_COMPRESSED;
+    }
+
+    /** @param data A frame which {@link #isCompressed(NetByteBuf)}. This reads all of it.
+     * @return A new buffer containing the decompressed frame. */
+    NetByteBuf decompress(ActiveConnection connection, NetByteBuf data) throws InvalidInputDataException {
+        long start = System.nanoTime();
+        data.readVarUnsignedInt();
+        int length = data.readVarUnsignedInt();
+        if (length <= 0 || length > MAXIMUM_UNCOMPRESSED_LENGTH) {
+            throw new InvalidInputDataException("Invalid uncompressed frame length " + length);
+        }
+        int compressedLength = data.readableBytes();
+        if (inflater == null) {
+            inflater = new Inflater(true);
+        }
+        // One more byte than expected, so that the inflater always has room to read the end of the sync flush,
+        // and so that too much data can be detected
+        NetByteBuf out = connection.allocBuffer(length + 1);
+        try {
+            inflater.setInput(data.nioBuffer());
+            data.skipBytes(compressedLength);
+            out.ensureWritable(length + 1);
+            ByteBuffer dst = out.nioBuffer(0, length + 1);
+            while (!inflater.needsInput()) {
+                int remaining = inflater.getRemaining();
+                if (inflater.inflate(dst) == 0 && inflater.getRemaining() == remaining) {
+                    // No progress is possible
+                    break;
+                }
+            }
+            if (dst.position() != length || !inflater.needsInput()) {
+                throw new InvalidInputDataException(
+                    "The compressed frame didn't contain exactly " + length + " bytes! (found at least "
+                        + dst.position() + ")"
+                );
+            }
+            out.writerIndex(length);
+        } catch (DataFormatException e) {
+            out.release();
+            throw new InvalidInputDataException("Failed to decompress a frame!", e);
+        } catch (InvalidInputDataException | RuntimeException e) {
+            out.release();
+            throw e;
+        }
+        stats.onDecompressed(compressedLength, length, System.nanoTime() - start);
+        return out;
+    }
+}
@@ -12,7 +12,8 @@ import java.lang.reflect.Method;
 import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
 
-import io.netty.buffer.Unpooled;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.CompositeByteBuf;
 import io.netty.handler.codec.CodecException;
 
 import net.minecraft.block.entity.BlockEntity;
@@ -28,6 +29,7 @@ import alexiil.mc.lib.net.ActiveConnection.StringTraceSeparator;
 import alexiil.mc.lib.net.CheckingNetByteBuf.InvalidNetTypeException;
 import alexiil.mc.lib.net.CheckingNetByteBuf.NetMethod;
 import alexiil.mc.lib.net.NetByteBuf.SavedReaderIndex;
+import alexiil.mc.lib.net.impl.ActiveMinecraftConnection;
 import alexiil.mc.lib.net.mixin.api.IThreadedAnvilChunkStorageMixin;
 
 public class InternalMsgUtil {
@@ -106,14 +108,14 @@ public class InternalMsgUtil {
     /** Sent as part of {@link #ID_INTERNAL_DEBUG_STACKTRACE}. */
     public static final int ID_INTERNAL_ALLOCATE_STACKTRACE_ELEMENT = 2;
 
-    // /** The ID to inform the sender that the given number of packets have been read successfully, and so the sender
-    // can
-    // * drop any debug information they had about those packets. */
-    // public static final int ID_INTERNAL_READ_SUCCESS = 3;
+    /** Sent to tell the other side that we can decompress frames, and so they can send
+     * {@link #ID_INTERNAL_COMPRESSED} frames to us. Contains a single boolean, which is true if we want the other side
+     * to reply with the same message (if it hasn't sent it already). */
+    public static final int ID_INTERNAL_COMPRESSION_SUPPORT = 3;
 
-    // /** The ID to inform the sender that something went badly wrong when reading one of it's packets, and both sides
-    // * should print debug information about that packet. */
-    // public static final int ID_INTERNAL_READ_FAILURE = 4;
+    /** A compressed frame (see {@link CompressionStage}), which is only ever sent as the first packet of the data given
+     * to {@link BufferedConnection#sendRawData0(NetByteBuf)}. */
+    public static final int ID_INTERNAL_COMPRESSED = 4;
 
     /** Debug data with type information for the next packet. */
     public static final int ID_INTERNAL_DEBUG_TYPES = 5;
@@ -135,10 +137,29 @@ public class InternalMsgUtil {
     // * have it's stacktrace requested. */
     // public static final int ID_INTERNAL_DEBUG_STACKTRACE_ENABLED = 9;
 
-    // /** The ID for a packet that lib network stack has split up into smaller parts that need to be re-assembled. */
-    // private static final int ID_INTERNAL_SPLIT_PACKET = 9;
+    /** A part of a packet that was too large to send in one go, which needs to be re-assembled (see
+     * {@link SplitPacketStage}). */
+    public static final int ID_INTERNAL_SPLIT_PACKET = 9;
+
+    /** Asks the other side to reply with {@link #ID_INTERNAL_PONG} as soon as possible. Contains the ping's ID as a
+     * var-uint. */
+    public static final int ID_INTERNAL_PING = 10;
+
+    /** The reply to {@link #ID_INTERNAL_PING}. Contains the ping's ID, followed by the number of microseconds that the
+     * ping was held for before replying (both as var-uints). See {@link LatencyStats}. */
+    public static final int ID_INTERNAL_PONG = 11;
 
-    public static final int COUNT_HARDCODED_IDS = 9;
+    public static final int COUNT_HARDCODED_IDS = 12;
+
+    /** The version of the protocol that these internal IDs (and {@link #COUNT_HARDCODED_IDS}) define. This must be
+     * increased whenever a hardcoded ID is added or changed, as an older version of LNS treats unknown IDs (and
+     * allocated IDs that start from a different {@link #COUNT_HARDCODED_IDS}) as invalid data, and disconnects.
+     * <p>
+     * Minecraft connections include this in the custom payload channel ({@link ActiveMinecraftConnection#PACKET_ID}),
+     * so two different versions of LNS never receive each other's data. Version 1 is everything before
+     * {@link #ID_INTERNAL_SPLIT_PACKET}, {@link #ID_INTERNAL_PING}, and {@link #ID_INTERNAL_PONG} were added, which
+     * used 9 hardcoded IDs and the "libnetworkstack:data" channel. */
+    public static final int PROTOCOL_VERSION = 2;
 
     private static final Method STACK_TRACE_ELEMENT_MODULE_NAME;
 
@@ -154,6 +175,95 @@ public class InternalMsgUtil {
 
     /** @param buffer All of the data for a single packet. It must be complete! */
     public static void onReceive(ActiveConnection connection, NetByteBuf buffer) throws InvalidInputDataException {
+        ReceivedPacket packet = decode(connection, buffer);
+        if (packet != null) {
+            dispatch(connection, packet);
+        }
+    }
+
+    /** A single packet that has been read by {@link InternalMsgUtil#decode(ActiveConnection, NetByteBuf)}, but hasn't
+     * been passed to it's receiver yet. This is either an internal packet that changes the sending state of the
+     * connection, or a normal packet. */
+    static final class ReceivedPacket {
+        /** One of the internal ID's, or -1 if this is a normal packet. */
+        final int internalId;
+        final int internalValue;
+
+        /** The value of {@link System#nanoTime()} when a ping or pong was received from the network (see
+         * {@link ActiveConnection#getFrameReceivedNanos()}). */
+        final long receivedNanos;
+
+        /** The hold time of a pong, in nanoseconds. */
+        final long remoteHoldNanos;
+
+        final MessageContext.Read ctx;
+        final NetIdBase netId;
+        final int len;
+        final NetByteBuf payload;
+        final NetByteBuf typeBuffer;
+        final int typeCount;
+        final MultiTraceLines stacktrace;
+
+        ReceivedPacket(int internalId, int internalValue) {
+            this(internalId, internalValue, 0, 0);
+        }
+
+        ReceivedPacket(int internalId, int internalValue, long receivedNanos, long remoteHoldNanos) {
+            this.internalId = internalId;
+            this.internalValue = internalValue;
+            this.receivedNanos = receivedNanos;
+            this.remoteHoldNanos = remoteHoldNanos;
+            this.ctx = null;
+            this.netId = null;
+            this.len = 0;
+            this.payload = null;
+            this.typeBuffer = null;
+            this.typeCount = 0;
+            this.stacktrace = null;
+        }
+
+        ReceivedPacket(
+            MessageContext.Read ctx, int len, NetByteBuf payload, NetByteBuf typeBuffer, int typeCount,
+            MultiTraceLines stacktrace
+        ) {
+            this.internalId = -1;
+            this.internalValue = 0;
+            this.receivedNanos = 0;
+            this.remoteHoldNanos = 0;
+            this.ctx = ctx;
+            this.netId = (NetIdBase) ctx.id;
+            this.len = len;
+            this.payload = payload;
+            this.typeBuffer = typeBuffer;
+            this.typeCount = typeCount;
+            this.stacktrace = stacktrace;
+        }
+
+        /** @return True if this can be passed to {@link InternalMsgUtil#dispatch(ActiveConnection, ReceivedPacket)}
+         *         on any thread. This is never true when debugging, as the debug information is shared between
+         *         packets. */
+        boolean canDispatchOffThread() {
+            return netId != null && netId.isThreadSafeReceiver() && typeBuffer == null && !LibNetworkStack.DEBUG;
+        }
+
+        void release() {
+            if (payload != null) {
+                payload.release();
+            }
+            if (typeBuffer != null) {
+                typeBuffer.release();
+            }
+        }
+    }
+
+    /** Reads a single packet, and resolves it's {@link NetIdBase} and payload. Internal packets that only change how
+     * the connection reads packets (like ID allocations and debug information) are applied immediately, so this must
+     * only be called by one thread at a time for each connection.
+     * 
+     * @param buffer All of the data for a single packet. It must be complete!
+     * @return The packet to pass to {@link #dispatch(ActiveConnection, ReceivedPacket)}, or null if it has been
+     *         handled completely. */
+    static ReceivedPacket decode(ActiveConnection connection, NetByteBuf buffer) throws InvalidInputDataException {
         int id = buffer.readVarUnsignedInt();
         switch (id) {
             case ID_INTERNAL_ALLOCATE_STATIC: {
@@ -219,14 +329,18 @@ public class InternalMsgUtil {
                             + ", but we received " + lenToString(len)
                     );
                 }
-                break;
+                return null;
             }
             case ID_INTERNAL_NEW_BANDWIDTH: {
-                int maximum = buffer.readUnsignedShort();
-                if (connection instanceof BufferedConnection) {
-                    ((BufferedConnection) connection).updateTheirMaxBandwidth(maximum);
-                }
-                break;
+                return new ReceivedPacket(id, buffer.readUnsignedShort());
+            }
+            case ID_INTERNAL_COMPRESSION_SUPPORT: {
+                return new ReceivedPacket(id, buffer.readBoolean() ? 1 : 0);
+            }
+            case ID_INTERNAL_COMPRESSED: {
+                throw new InvalidInputDataException(
+                    "Compressed frames must only be at the start of the received data!"
+                );
             }
             case ID_INTERNAL_ALLOCATE_STACKTRACE_ELEMENT: {
                 int count = buffer.readUnsignedByte() + 1;
@@ -236,21 +350,28 @@ public class InternalMsgUtil {
                     LibNetworkStack.LOGGER
                         .info(connection + " Received " + count + " stacktrace elements in " + byteCount + " bytes.");
                 }
-                for (int i = 0; i < count; i++) {
-                    if (DEBUG) {
-                        LibNetworkStack.LOGGER.info(connection + " reading stacktrace " + (i + 1));
+                try {
+                    for (int i = 0; i < count; i++) {
+                        if (DEBUG) {
+                            LibNetworkStack.LOGGER.info(connection + " reading stacktrace " + (i + 1));
+                        }
+                        readStacktraceAllocation(connection, subBuffer);
                     }
-                    readStacktraceAllocation(connection, subBuffer);
+                } finally {
+                    subBuffer.release();
                 }
-                break;
+                return null;
             }
             case ID_INTERNAL_DEBUG_TYPES: {
                 int bytes = buffer.readVarUnsignedInt();
                 int count = buffer.readVarUnsignedInt();
                 NetByteBuf data = buffer.readBytes(bytes);
+                if (connection.lastReceivedTypes != null) {
+                    connection.lastReceivedTypes.release();
+                }
                 connection.lastReceivedTypes = data;
                 connection.lastReceivedTypesCount = count;
-                break;
+                return null;
             }
             case ID_INTERNAL_DEBUG_STACKTRACE: {
                 int stackId = buffer.readVarUnsignedInt();
@@ -258,25 +379,40 @@ public class InternalMsgUtil {
                 if (connection.lastReceivedStacktrace == null) {
                     throw new InvalidInputDataException("Unknown MultiTraceLines id " + stackId);
                 }
-                break;
-            }
-            case ID_INTERNAL_REQUEST_DEBUG_TYPES: {
-                connection.sendTypes = true;
-                break;
+                return null;
             }
+            case ID_INTERNAL_REQUEST_DEBUG_TYPES:
             case ID_INTERNAL_REQUEST_STACKTRACES: {
-                if (!connection.sendStacktraces) {
-                    connection.sendStacktraces = true;
-                    if (LibNetworkStack.CONFIG_RECORD_STACKTRACES) {
-                        LibNetworkStack.LOGGER.info(connection + " is now being sent stacktraces for every packet.");
-                    } else {
-                        LibNetworkStack.LOGGER.info(
-                            connection
-                                + " requested stacktraces, but debug.record_stacktraces is disabled so we won't send any."
+                return new ReceivedPacket(id, 0);
+            }
+            case ID_INTERNAL_PING: {
+                return new ReceivedPacket(id, buffer.readVarUnsignedInt(), connection.getFrameReceivedNanos(), 0);
+            }
+            case ID_INTERNAL_PONG: {
+                int pingId = buffer.readVarUnsignedInt();
+                long holdNanos = buffer.readVarUnsignedLong() * 1000;
+                return new ReceivedPacket(id, pingId, connection.getFrameReceivedNanos(), holdNanos);
+            }
+            case ID_INTERNAL_SPLIT_PACKET: {
+                NetByteBuf full = connection.splitPackets.receive(connection, buffer);
+                if (full == null) {
+                    return null;
+                }
+                try {
+                    // The parts only ever contain a single packet
+                    ReceivedPacket packet = decode(connection, full);
+                    if (full.isReadable()) {
+                        if (packet != null) {
+                            packet.release();
+                        }
+                        throw new InvalidInputDataException(
+                            full.readableBytes() + " extra bytes after a split packet!"
                         );
                     }
+                    return packet;
+                } finally {
+                    full.release();
                 }
-                break;
             }
             default: {
                 if (id < 0 || id >= connection.readMapIds.size()) {
@@ -307,11 +443,69 @@ public class InternalMsgUtil {
                 } else {
                     len = 1 + buffer.readUnsignedMedium();
                 }
-                NetByteBuf payload = connection.allocBuffer(len);
-                buffer.readBytes(payload, len);
-                SavedReaderIndex payloadStart = payload.saveReaderIndex();
+                // A read-only view of the incoming data, rather than a copy of it
+                NetByteBuf payload = NetByteBuf.asNetByteBuf(buffer.readRetainedSlice(len).asReadOnly());
 
+                // The type information only applies to this packet
                 NetByteBuf typeBuffer = connection.lastReceivedTypes;
+                connection.lastReceivedTypes = null;
+                return new ReceivedPacket(
+                    ctx, len, payload, typeBuffer, connection.lastReceivedTypesCount, connection.lastReceivedStacktrace
+                );
+            }
+        }
+    }
+
+    /** Passes a packet returned by {@link #decode(ActiveConnection, NetByteBuf)} to it's receiver, and then releases
+     * it. */
+    static void dispatch(ActiveConnection connection, ReceivedPacket packet) throws InvalidInputDataException {
+        switch (packet.internalId) {
+            case ID_INTERNAL_NEW_BANDWIDTH: {
+                if (connection instanceof BufferedConnection) {
+                    ((BufferedConnection) connection).updateTheirMaxBandwidth(packet.internalValue);
+                }
+                return;
+            }
+            case ID_INTERNAL_COMPRESSION_SUPPORT: {
+                if (connection instanceof BufferedConnection) {
+                    ((BufferedConnection) connection).onReceiveCompressionSupport(packet.internalValue != 0);
+                }
+                return;
+            }
+            case ID_INTERNAL_REQUEST_DEBUG_TYPES: {
+                connection.sendTypes = true;
+                return;
+            }
+            case ID_INTERNAL_PING: {
+                connection.sendPong(packet.internalValue, System.nanoTime() - packet.receivedNanos);
+                return;
+            }
+            case ID_INTERNAL_PONG: {
+                connection.latency.onPongReceived(packet.internalValue, packet.receivedNanos, packet.remoteHoldNanos);
+                return;
+            }
+            case ID_INTERNAL_REQUEST_STACKTRACES: {
+                if (!connection.sendStacktraces) {
+                    connection.sendStacktraces = true;
+                    if (LibNetworkStack.CONFIG_RECORD_STACKTRACES) {
+                        LibNetworkStack.LOGGER.info(connection + " is now being sent stacktraces for every packet.");
+                    } else {
+                        LibNetworkStack.LOGGER.info(
+                            connection + " requested stacktraces, but debug.record_stacktraces is disabled"
+                                + " so we won't send any."
+                        );
+                    }
+                }
+                return;
+            }
+            default: {
+                NetIdBase netId = packet.netId;
+                MessageContext.Read ctx = packet.ctx;
+                int len = packet.len;
+                NetByteBuf payload = packet.payload;
+                SavedReaderIndex payloadStart = payload.saveReaderIndex();
+
+                NetByteBuf typeBuffer = packet.typeBuffer;
                 final CheckingNetByteBuf checkingBuffer;
                 final boolean hasFullTypeBuffer;
                 if (typeBuffer != null) {
@@ -376,7 +570,7 @@ public class InternalMsgUtil {
                     } else {
 
                         int typeCount
-                            = hasFullTypeBuffer ? connection.lastReceivedTypesCount : checkingBuffer.getCountRead();
+                            = hasFullTypeBuffer ? packet.typeCount : checkingBuffer.getCountRead();
 
                         NetByteBuf.SavedReaderIndex typeIndex = typeBuffer.saveReaderIndex();
                         typeBuffer.resetReaderIndex();
@@ -452,11 +646,11 @@ public class InternalMsgUtil {
                         sb.append("+---------\n");
                     }
 
-                    if (connection.lastReceivedStacktrace != null) {
+                    if (packet.stacktrace != null) {
                         sb.append("\n+---------\n");
                         sb.append("|Sender Stacktrace:\n|\n");
                         boolean first = true;
-                        MultiTraceLines line = connection.lastReceivedStacktrace;
+                        MultiTraceLines line = packet.stacktrace;
                         do {
                             sb.append(first ? "|     " : "|  at ");
                             sb.append(line.line);
@@ -472,7 +666,6 @@ public class InternalMsgUtil {
                     payload.release();
                     if (typeBuffer != null) {
                         typeBuffer.release();
-                        connection.lastReceivedTypes = null;
                     }
                 }
             }
@@ -601,10 +794,7 @@ public class InternalMsgUtil {
      * @param path The Path to the ID.
      * @param payload The data to write. */
     public static void send(ActiveConnection connection, NetIdBase netId, NetIdPath path, NetByteBuf payload) {
-        NetByteBuf fullPayload = wrapFullPayload(connection, netId, path, payload);
-        int id = fullPayload.getInt(0);
-        connection.sendPacket(fullPayload, id, netId, netId.getDefaultPriority());
-        fullPayload.release();
+        send(connection, netId, path, payload, netId.getDefaultPriority());
     }
 
     /** Sends a packet.
@@ -617,54 +807,137 @@ public class InternalMsgUtil {
     public static void send(
         ActiveConnection connection, NetIdBase netId, NetIdPath path, NetByteBuf payload, int priority
     ) {
-        NetByteBuf fullPayload = wrapFullPayload(connection, netId, path, payload);
-        int id = fullPayload.getInt(0);
+        int id = getWriteId(connection, netId, path);
+        NetByteBuf fullPayload = wrapFullPayload(connection, netId, id, payload);
         connection.sendPacket(fullPayload, id, netId, priority);
         fullPayload.release();
     }
 
     private static NetByteBuf wrapFullPayload(
-        ActiveConnection connection, NetIdBase netId, NetIdPath path, NetByteBuf payload
+        ActiveConnection connection, NetIdBase netId, int id, NetByteBuf payload
     ) {
-        int id = getWriteId(connection, netId, path);
-        int len = 5 + (netId.hasFixedLength() ? 0 : 4) + payload.readableBytes();
         if (netId.hasFixedLength()) {
             assert netId.totalLength == payload.readableBytes();
         }
-        NetByteBuf fullPayload = NetByteBuf.buffer(len);
-        fullPayload.writeVarUnsignedInt(id);
+        if (connection.zeroCopyWrites) {
+            // Only the header is written into a new buffer, and the payload is shared rather than copied
+            ByteBuf header = connection.getAllocator().buffer(8);
+            writeHeader(netId, id, payload.readableBytes(), NetByteBuf.asNetByteBuf(header));
+            CompositeByteBuf composite = connection.getAllocator().compositeBuffer(2);
+            composite.addComponents(true, header, payload.retainedSlice());
+            return NetByteBuf.asNetByteBuf(composite);
+        }
+        int len = 5 + (netId.hasFixedLength() ? 0 : 4) + payload.readableBytes();
+        NetByteBuf fullPayload = connection.allocBuffer(len);
+        writeHeader(netId, id, payload.readableBytes(), fullPayload);
+        fullPayload.writeBytes(payload, payload.readerIndex(), payload.readableBytes());
+        return fullPayload;
+    }
+
+    private static void writeHeader(NetIdBase netId, int id, int payloadLength, NetByteBuf to) {
+        to.writeVarUnsignedInt(id);
         if (!netId.hasFixedLength()) {
-            if ((netId.getFinalFlags() & NetIdBase.PACKET_SIZE_FLAG) == NetIdBase.FLAG_TINY_PACKET) {
-                if (payload.readableBytes() > (1 << 8)) {
-                    throw new IllegalArgumentException(
-                        "Packet Payload too large for TINY packet size - was " + payload.readableBytes()
-                            + ", which is bigger than 256!"
-                    );
-                }
-                fullPayload.writeByte(payload.readableBytes() - 1);
-            } else if ((netId.getFinalFlags() & NetIdBase.PACKET_SIZE_FLAG) == NetIdBase.FLAG_NORMAL_PACKET) {
-                if (payload.readableBytes() > (1 << 16)) {
-                    throw new IllegalArgumentException(
-                        "Packet Payload too large for NORMAL packet size - was " + payload.readableBytes()
-                            + ", which is bigger than " + (1 << 16) + "!"
-                    );
-                }
-                fullPayload.writeShort(payload.readableBytes() - 1);
+            int sizeFlag = netId.getFinalFlags() & NetIdBase.PACKET_SIZE_FLAG;
+            checkPayloadLength(sizeFlag, payloadLength);
+            if (sizeFlag == NetIdBase.FLAG_TINY_PACKET) {
+                to.writeByte(payloadLength - 1);
+            } else if (sizeFlag == NetIdBase.FLAG_NORMAL_PACKET) {
+                to.writeShort(payloadLength - 1);
             } else {
-                if (payload.readableBytes() > (1 << 24)) {
-                    throw new IllegalArgumentException(
-                        "Packet Payload too large for LARGE packet size - was " + payload.readableBytes()
-                            + ", which is bigger than " + (1 << 24) + "!"
-                    );
-                }
-                fullPayload.writeMedium(payload.readableBytes() - 1);
+                to.writeMedium(payloadLength - 1);
             }
         }
-        fullPayload.writeBytes(payload, payload.readerIndex(), payload.readableBytes());
-        return fullPayload;
+    }
+
+    private static void checkPayloadLength(int sizeFlag, int payloadLength) {
+        if (sizeFlag == NetIdBase.FLAG_TINY_PACKET) {
+            if (payloadLength > (1 << 8)) {
+                throw new IllegalArgumentException(
+                    "Packet Payload too large for TINY packet size - was " + payloadLength
+                        + ", which is bigger than 256!"
+                );
+            }
+        } else if (sizeFlag == NetIdBase.FLAG_NORMAL_PACKET) {
+            if (payloadLength > (1 << 16)) {
+                throw new IllegalArgumentException(
+                    "Packet Payload too large for NORMAL packet size - was " + payloadLength
+                        + ", which is bigger than " + (1 << 16) + "!"
+                );
+            }
+        } else {
+            if (payloadLength > (1 << 24)) {
+                throw new IllegalArgumentException(
+                    "Packet Payload too large for LARGE packet size - was " + payloadLength
+                        + ", which is bigger than " + (1 << 24) + "!"
+                );
+            }
+        }
+    }
+
+    /** Reserves space for the packet header for the fast write path in the given buffer. The header is only filled in
+     * by {@link #endFastPayload(NetIdBase, int, NetByteBuf, int)} once the payload has been written, so that the id
+     * doesn't need to be allocated (and sent to the other side) if nothing was written.
+     * 
+     * @return The writer index of the start of the payload. */
+    static int beginFastPayload(NetIdBase netId, NetByteBuf to) {
+        // 5 bytes is the longest that an id can be
+        int headerLength = 5 + getFastLengthBytes(netId);
+        to.ensureWritable(headerLength);
+        to.writerIndex(to.writerIndex() + headerLength);
+        return to.writerIndex();
+    }
+
+    /** Writes the header that was reserved by {@link #beginFastPayload(NetIdBase, NetByteBuf)} directly in front of
+     * the payload, and moves the reader index of the buffer to the start of it. Any reserved bytes that the header
+     * didn't need are skipped.
+     * 
+     * @param payloadStart The value returned by {@link #beginFastPayload(NetIdBase, NetByteBuf)}. */
+    static void endFastPayload(NetIdBase netId, int id, NetByteBuf buffer, int payloadStart) {
+        int payloadLength = buffer.writerIndex() - payloadStart;
+        int lengthBytes = getFastLengthBytes(netId);
+        int headerStart = payloadStart - lengthBytes - NetByteBuf.getVarUnsignedIntLength(id);
+        buffer.setVarUnsignedInt(headerStart, id);
+        buffer.readerIndex(headerStart);
+        if (netId.hasFixedLength()) {
+            assert netId.totalLength == payloadLength;
+            return;
+        }
+        int sizeFlag = netId.getFinalFlags() & NetIdBase.PACKET_SIZE_FLAG;
+        checkPayloadLength(sizeFlag, payloadLength);
+        if (sizeFlag == NetIdBase.FLAG_TINY_PACKET) {
+            buffer.setByte(payloadStart - 1, payloadLength - 1);
+        } else if (sizeFlag == NetIdBase.FLAG_NORMAL_PACKET) {
+            buffer.setShort(payloadStart - 2, payloadLength - 1);
+        } else {
+            buffer.setMedium(payloadStart - 3, payloadLength - 1);
+        }
+    }
+
+    /** @return The number of bytes used by the length of the given id, or 0 if it has a fixed length. */
+    private static int getFastLengthBytes(NetIdBase netId) {
+        if (netId.hasFixedLength()) {
+            return 0;
+        }
+        int sizeFlag = netId.getFinalFlags() & NetIdBase.PACKET_SIZE_FLAG;
+        if (sizeFlag == NetIdBase.FLAG_TINY_PACKET) {
+            return 1;
+        } else if (sizeFlag == NetIdBase.FLAG_NORMAL_PACKET) {
+            return 2;
+        } else {
+            return 3;
+        }
     }
 
     static int getWriteId(ActiveConnection connection, TreeNetIdBase netId, NetIdPath path) {
+        int index = netId.staticIndex;
+        if (index >= 0) {
+            assert path.equals(netId.path);
+            int[] ids = connection.writeStaticIds;
+            if (index < ids.length && ids[index] != 0) {
+                return ids[index];
+            }
+            return allocAndSendNewId(connection, netId, netId.path);
+        }
         final int id;
         int currentId = connection.writeMapIds.getInt(path);
         if (currentId == 0) {
@@ -684,7 +957,7 @@ public class InternalMsgUtil {
             throw new IllegalArgumentException("Too many types! (" + count + ") > " + NetByteBuf.MAX_VAR_U_INT_3_BYTES);
         }
         int len = 1 + 3 + 3 + bytes;
-        NetByteBuf fullPayload = NetByteBuf.buffer(len);
+        NetByteBuf fullPayload = connection.allocBuffer(len);
         fullPayload.writeVarUnsignedInt(ID_INTERNAL_DEBUG_TYPES);
         fullPayload.writeVarUnsignedInt(bytes);
         fullPayload.writeVarUnsignedInt(count);
@@ -740,7 +1013,7 @@ public class InternalMsgUtil {
 
             void beginAllocation() {
                 if (traceAllocationBuf == null) {
-                    traceAllocationBuf = NetByteBuf.buffer();
+                    traceAllocationBuf = connection.allocBuffer();
                 }
             }
 
@@ -754,7 +1027,7 @@ public class InternalMsgUtil {
                         );
                     }
 
-                    NetByteBuf buffer = NetByteBuf.buffer();
+                    NetByteBuf buffer = connection.allocBuffer();
                     buffer.writeVarUnsignedInt(ID_INTERNAL_ALLOCATE_STACKTRACE_ELEMENT);
                     buffer.writeByte(255);
                     buffer.writeVarUnsignedInt(traceAllocationBuf.readableBytes());
@@ -776,7 +1049,7 @@ public class InternalMsgUtil {
                         );
                     }
 
-                    NetByteBuf buffer = NetByteBuf.buffer();
+                    NetByteBuf buffer = connection.allocBuffer();
                     buffer.writeVarUnsignedInt(ID_INTERNAL_ALLOCATE_STACKTRACE_ELEMENT);
                     buffer.writeByte(allocationCount - 1);
                     buffer.writeVarUnsignedInt(traceAllocationBuf.readableBytes());
@@ -905,7 +1178,7 @@ public class InternalMsgUtil {
             throw new IllegalStateException("No stacktrace to send! " + Arrays.toString(trace));
         }
 
-        NetByteBuf fullPayload = NetByteBuf.buffer(6);
+        NetByteBuf fullPayload = connection.allocBuffer(6);
         fullPayload.writeVarUnsignedInt(ID_INTERNAL_DEBUG_STACKTRACE);
         fullPayload.writeVarUnsignedInt(parent.id);
         connection.sendPacket(fullPayload, ID_INTERNAL_DEBUG_STACKTRACE, null, 0);
@@ -939,7 +1212,7 @@ public class InternalMsgUtil {
             + 1// Text bytes length
             + textData.length;// Text bytes
 
-        NetByteBuf allocationData = NetByteBuf.asNetByteBuf(Unpooled.buffer(len));
+        NetByteBuf allocationData = connection.allocBuffer(len);
         allocationData.writeVarUnsignedInt(ID_INTERNAL_ALLOCATE_STATIC);
         ParentNetIdBase parent = path.array.length > 1 ? (ParentNetIdBase) path.array[path.array.length - 2] : null;
         if (parent == null) {
@@ -947,10 +1220,20 @@ public class InternalMsgUtil {
         } else if (parent == connection.rootId) {
             allocationData.writeVarUnsignedInt(0);
         } else {
-            allocationData.writeVarUnsignedInt(getWriteId(connection, parent, path.parent()));
+            NetIdPath parentPath = parent.staticIndex >= 0 ? parent.path : path.parent();
+            allocationData.writeVarUnsignedInt(getWriteId(connection, parent, parentPath));
+        }
+        int newId = connection.nextFreeId++;
+        if (netId.staticIndex >= 0) {
+            int index = netId.staticIndex;
+            if (index >= connection.writeStaticIds.length) {
+                int newLength = Math.max(index + 1, connection.writeStaticIds.length * 2);
+                connection.writeStaticIds = Arrays.copyOf(connection.writeStaticIds, newLength);
+            }
+            connection.writeStaticIds[index] = newId;
+        } else {
+            connection.writeMapIds.put(path, newId);
         }
-        int newId = connection.writeMapIds.size() + COUNT_HARDCODED_IDS;
-        connection.writeMapIds.put(path, newId);
         allocationData.writeVarUnsignedInt(newId);
         int flags = netId.getFinalFlags();
         allocationData.writeInt(flags);
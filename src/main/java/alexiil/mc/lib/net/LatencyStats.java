@@ -0,0 +1,147 @@
+/*
+ * Copyright (c) 2019 AlexIIL
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+package alexiil.mc.lib.net;
+
+import java.util.Arrays;
+
+/** Round trip time measurements for a single {@link ActiveConnection}, taken by sending
+ * {@link InternalMsgUtil#ID_INTERNAL_PING} and timing the {@link InternalMsgUtil#ID_INTERNAL_PONG} reply.
+ * <p>
+ * Every pong includes the time that the other side held on to the ping before replying (which is mostly the time that
+ * it waited in the other side's receive queue for the next tick), which is removed from the round trip time, and is
+ * available separately from {@link #getRemoteHoldNanos()}.
+ * <p>
+ * {@link BufferedConnection} pings once per second, and uses {@link #getSendRateFactor()} to reduce it's bandwidth
+ * budget while the round trip time is much larger than the minimum seen so far (as that means that the data we're
+ * sending is queueing up somewhere along the way). */
+public final class LatencyStats {
+
+    /** The maximum number of pings that can be waiting for a pong at the same time. Older pings are counted as lost. */
+    private static final int MAX_OUTSTANDING = 16;
+
+    /** The minimum {@link #getQueueingDelayNanos()} that is counted as congestion. */
+    private static final long CONGESTION_THRESHOLD_NANOS = 50_000_000;
+
+    private static final double MIN_SEND_RATE_FACTOR = 0.25;
+
+    private final int[] pingIds = new int[MAX_OUTSTANDING];
+    private final long[] pingTimes = new long[MAX_OUTSTANDING];
+    private int nextPingId;
+
+    private long pingsSent, pongsReceived, pingsLost;
+    private long lastRtt = -1, smoothedRtt = -1, minRtt = -1, jitter, remoteHold = -1;
+    private double sendRateFactor = 1;
+
+    LatencyStats() {
+        Arrays.fill(pingIds, -1);
+    }
+
+    /** @return The ID of the new ping. */
+    int onPingSent(long nanos) {
+        int id = nextPingId;
+        nextPingId = (id + 1) & Integer.MAX_VALUE;
+        int slot = id % MAX_OUTSTANDING;
+        if (pingIds[slot] != -1) {
+            pingsLost++;
+        }
+        pingIds[slot] = id;
+        pingTimes[slot] = nanos;
+        pingsSent++;
+        return id;
+    }
+
+    /** @param receivedNanos The value of {@link System#nanoTime()} when the pong was received from the network.
+     * @param holdNanos The time that the other side held the ping for before replying. */
+    void onPongReceived(int id, long receivedNanos, long holdNanos) {
+        int slot = id % MAX_OUTSTANDING;
+        if (pingIds[slot] != id) {
+            // Either already counted as lost, or the other side is confused
+            return;
+        }
+        pingIds[slot] = -1;
+        pongsReceived++;
+        long rtt = Math.max(0, receivedNanos - pingTimes[slot] - holdNanos);
+        if (lastRtt >= 0) {
+            // The same smoothing as RFC 3550 uses for jitter, and RFC 6298 uses for the round trip time
+            jitter += (Math.abs(rtt - lastRtt) - jitter) / 16;
+            smoothedRtt += (rtt - smoothedRtt) / 8;
+            remoteHold += (holdNanos - remoteHold) / 8;
+            minRtt = Math.min(minRtt, rtt);
+        } else {
+            smoothedRtt = rtt;
+            remoteHold = holdNanos;
+            minRtt = rtt;
+        }
+        lastRtt = rtt;
+
+        if (getQueueingDelayNanos() > Math.max(minRtt, CONGESTION_THRESHOLD_NANOS)) {
+            sendRateFactor = Math.max(MIN_SEND_RATE_FACTOR, sendRateFactor * 0.8);
+        } else {
+            sendRateFactor = Math.min(1, sendRateFactor + 0.05);
+        }
+    }
+
+    public long getPingsSent() {
+        return pingsSent;
+    }
+
+    public long getPongsReceived() {
+        return pongsReceived;
+    }
+
+    /** @return The number of pings that were never replied to (before {@value #MAX_OUTSTANDING} more pings were
+     *         sent). */
+    public long getPingsLost() {
+        return pingsLost;
+    }
+
+    /** @return The most recent round trip time, in nanoseconds, or -1 if no pongs have been received yet. */
+    public long getLastRttNanos() {
+        return lastRtt;
+    }
+
+    /** @return The smoothed round trip time, in nanoseconds, or -1 if no pongs have been received yet. */
+    public long getSmoothedRttNanos() {
+        return smoothedRtt;
+    }
+
+    /** @return The smallest round trip time that has been measured, in nanoseconds, or -1 if no pongs have been
+     *         received yet. */
+    public long getMinRttNanos() {
+        return minRtt;
+    }
+
+    /** @return The smoothed difference between consecutive round trip times, in nanoseconds. */
+    public long getJitterNanos() {
+        return jitter;
+    }
+
+    /** @return How much longer (in nanoseconds) the smoothed round trip time is than the minimum, which is roughly the
+     *         time that data spends queued up between the two sides. */
+    public long getQueueingDelayNanos() {
+        return smoothedRtt < 0 ? 0 : smoothedRtt - minRtt;
+    }
+
+    /** @return The smoothed time (in nanoseconds) that the other side held on to our pings before replying, or -1 if
+     *         no pongs have been received yet. */
+    public long getRemoteHoldNanos() {
+        return remoteHold;
+    }
+
+    /** @return A value between 0.25 and 1 that {@link BufferedConnection} multiplies it's bandwidth budget by. This is
+     *         reduced whenever the queueing delay is large, and increased back towards 1 when it isn't. */
+    public double getSendRateFactor() {
+        return sendRateFactor;
+    }
+
+    @Override
+    public String toString() {
+        return "rtt " + (smoothedRtt / 1000) + "us (min " + (minRtt / 1000) + "us, jitter " + (jitter / 1000)
+            + "us), sent " + pingsSent + ", received " + pongsReceived + ", lost " + pingsLost;
+    }
+}
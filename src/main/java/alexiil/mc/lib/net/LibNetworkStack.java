@@ -17,6 +17,8 @@ import java.io.Writer;
 import java.nio.charset.StandardCharsets;
 import java.util.Properties;
 
+import javax.annotation.Nullable;
+
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
@@ -24,6 +26,7 @@ import net.fabricmc.loader.api.FabricLoader;
 
 import net.fabricmc.api.ModInitializer;
 
+import alexiil.mc.lib.net.BufferedConnection.CompressionMode;
 import alexiil.mc.lib.net.impl.CoreMinecraftNetUtil;
 
 public class LibNetworkStack implements ModInitializer {
@@ -33,8 +36,21 @@ public class LibNetworkStack implements ModInitializer {
     public static final Logger LOGGER = LogManager.getLogger("LibNetworkStack");
 
     public static final String CONFIG_FILE_LOCATION;
+
+    /** The directory that dictionaries received from other connections are stored in, or null if they shouldn't be
+     * stored. */
+    @Nullable
+    public static final File DICTIONARY_CACHE_DIRECTORY;
     public static final boolean CONFIG_RECORD_TYPES;
     public static final boolean CONFIG_RECORD_STACKTRACES;
+    public static final boolean CONFIG_POOLED_BUFFERS;
+    public static final boolean CONFIG_DIRECT_BUFFERS;
+    public static final boolean CONFIG_OFF_THREAD_DECODE;
+    public static final boolean CONFIG_PARALLEL_FLUSH;
+    public static final CoalescingPolicy CONFIG_COALESCING;
+    public static final CompressionMode CONFIG_COMPRESSION_MODE;
+    public static final int CONFIG_COMPRESSION_THRESHOLD;
+    public static final int CONFIG_CACHE_ITEMS_MAX_ENTRIES;
 
     static {
         boolean debug = Boolean.getBoolean("libnetworkstack.debug");
@@ -85,6 +101,70 @@ public class LibNetworkStack implements ModInitializer {
         CONFIG_RECORD_STACKTRACES
             = forceEnabled || "true".equalsIgnoreCase(props.getProperty("debug.record_stacktraces", "false"));
 
+        hasAll &= props.containsKey("buffers.pooled");
+        CONFIG_POOLED_BUFFERS = "true".equalsIgnoreCase(props.getProperty("buffers.pooled", "true"));
+
+        hasAll &= props.containsKey("buffers.direct");
+        CONFIG_DIRECT_BUFFERS = "true".equalsIgnoreCase(props.getProperty("buffers.direct", "false"));
+
+        hasAll &= props.containsKey("receive.off_thread_decode");
+        CONFIG_OFF_THREAD_DECODE = "true".equalsIgnoreCase(props.getProperty("receive.off_thread_decode", "false"));
+
+        hasAll &= props.containsKey("flush.parallel");
+        CONFIG_PARALLEL_FLUSH = "true".equalsIgnoreCase(props.getProperty("flush.parallel", "false"));
+
+        hasAll &= props.containsKey("flush.coalesce.latency_micros");
+        hasAll &= props.containsKey("flush.coalesce.low_priority_latency_micros");
+        hasAll &= props.containsKey("flush.coalesce.bytes");
+        CoalescingPolicy coalescing = CoalescingPolicy.TICK_ONLY;
+        try {
+            coalescing = new CoalescingPolicy(
+                Integer.parseInt(props.getProperty("flush.coalesce.latency_micros", "-1").trim()),
+                Integer.parseInt(props.getProperty("flush.coalesce.low_priority_latency_micros", "-1").trim()),
+                Integer.parseInt(props.getProperty("flush.coalesce.bytes", "16384").trim())
+            );
+        } catch (IllegalArgumentException e) {
+            // Also catches NumberFormatException
+            LOGGER.warn("[config] Invalid flush.coalesce values, only flushing every tick instead: " + e.getMessage());
+        }
+        CONFIG_COALESCING = coalescing;
+
+        hasAll &= props.containsKey("compression.mode");
+        String compressionMode = props.getProperty("compression.mode", "none");
+        CompressionMode mode = CompressionMode.NONE;
+        for (CompressionMode m : CompressionMode.values()) {
+            if (m.name().equalsIgnoreCase(compressionMode.trim())) {
+                mode = m;
+            }
+        }
+        CONFIG_COMPRESSION_MODE = mode;
+
+        hasAll &= props.containsKey("compression.threshold");
+        int threshold = 256;
+        try {
+            threshold = Math.max(0, Integer.parseInt(props.getProperty("compression.threshold", "256").trim()));
+        } catch (NumberFormatException e) {
+            LOGGER.warn("[config] Invalid compression.threshold, using the default value of 256 instead.");
+        }
+        CONFIG_COMPRESSION_THRESHOLD = threshold;
+
+        hasAll &= props.containsKey("cache.items.max_entries");
+        int maxItems = 0;
+        try {
+            maxItems = Math.max(0, Integer.parseInt(props.getProperty("cache.items.max_entries", "0").trim()));
+        } catch (NumberFormatException e) {
+            LOGGER.warn("[config] Invalid cache.items.max_entries, using the default value of 0 (no limit) instead.");
+        }
+        CONFIG_CACHE_ITEMS_MAX_ENTRIES = maxItems == 0 ? Integer.MAX_VALUE : maxItems;
+
+        hasAll &= props.containsKey("cache.dictionary.store");
+        boolean storeDictionaries = "true".equalsIgnoreCase(props.getProperty("cache.dictionary.store", "true"));
+        if (storeDictionaries && fabric.getGameDir() != null) {
+            DICTIONARY_CACHE_DIRECTORY = fabric.getGameDir().resolve(".cache/" + MODID + "/dictionaries").toFile();
+        } else {
+            DICTIONARY_CACHE_DIRECTORY = null;
+        }
+
         if (!hasAll) {
             try (Writer fw = new OutputStreamWriter(new FileOutputStream(cfgFile, true), StandardCharsets.UTF_8)) {
                 if (!didFileExist) {
@@ -112,6 +192,73 @@ public class LibNetworkStack implements ModInitializer {
                     fw.append("debug.record_stacktraces=false\n\n");
                 }
 
+                if (!props.containsKey("buffers.pooled")) {
+                    fw.append("# True to use pooled buffers for the data that LNS writes and reads internally.\n");
+                    fw.append("buffers.pooled=true\n\n");
+                }
+
+                if (!props.containsKey("buffers.direct")) {
+                    fw.append("# True to use direct (off-heap) memory for the buffers that LNS uses internally.\n");
+                    fw.append("buffers.direct=false\n\n");
+                }
+
+                if (!props.containsKey("receive.off_thread_decode")) {
+                    fw.append("# True to read received packets on the network thread, and only pass the decoded\n");
+                    fw.append("# packets to the main thread (which removes the decoding from the tick time).\n");
+                    fw.append("receive.off_thread_decode=false\n\n");
+                }
+
+                if (!props.containsKey("flush.parallel")) {
+                    fw.append("# True to combine, compress, and build the packets for every server connection on\n");
+                    fw.append("# a separate thread pool at the end of every server tick, rather than on the main\n");
+                    fw.append("# thread one connection after another. Only useful with a lot of players.\n");
+                    fw.append("flush.parallel=false\n\n");
+                }
+
+                if (!props.containsKey("flush.coalesce.latency_micros")) {
+                    fw.append("# The maximum time (in microseconds) that normal packets are held for before they\n");
+                    fw.append("# are sent, so that other packets sent shortly afterwards can be combined with them.\n");
+                    fw.append("# -1 only sends them once per tick (the lowest overhead), and 0 sends them straight\n");
+                    fw.append("# away (the lowest latency).\n");
+                    fw.append("flush.coalesce.latency_micros=-1\n\n");
+                }
+
+                if (!props.containsKey("flush.coalesce.low_priority_latency_micros")) {
+                    fw.append("# The same as 'flush.coalesce.latency_micros', but for packets which have a lower\n");
+                    fw.append("# priority than minecraft's own packets (see NetIdBase.setDefaultPriority).\n");
+                    fw.append("flush.coalesce.low_priority_latency_micros=-1\n\n");
+                }
+
+                if (!props.containsKey("flush.coalesce.bytes")) {
+                    fw.append("# The number of held bytes that are sent straight away, even if the latency above\n");
+                    fw.append("# hasn't been reached yet. Not used if both latencies are -1.\n");
+                    fw.append("flush.coalesce.bytes=16384\n\n");
+                }
+
+                if (!props.containsKey("compression.mode")) {
+                    fw.append("# The compression to use for sent data, if the other side supports it.\n");
+                    fw.append("# One of 'none', 'fast' (fastest deflate), or 'deflate' (smaller, but slower).\n");
+                    fw.append("compression.mode=none\n\n");
+                }
+
+                if (!props.containsKey("compression.threshold")) {
+                    fw.append("# The minimum size (in bytes) of the data sent in one go before it is compressed.\n");
+                    fw.append("compression.threshold=256\n\n");
+                }
+
+                if (!props.containsKey("cache.items.max_entries")) {
+                    fw.append("# The maximum number of item stacks that are cached per connection (0 for no limit).\n");
+                    fw.append("# Once full, the least recently sent item stacks are removed from the cache and\n");
+                    fw.append("# their IDs are reused, so mods that use bare cache IDs will crash if this is set.\n");
+                    fw.append("cache.items.max_entries=0\n\n");
+                }
+
+                if (!props.containsKey("cache.dictionary.store")) {
+                    fw.append("# True to store the cache dictionaries that other connections send to us on disk\n");
+                    fw.append("# (in '.cache/libnetworkstack'), so they don't need to be sent again next time.\n");
+                    fw.append("cache.dictionary.store=true\n\n");
+                }
+
             } catch (IOException e) {
                 LOGGER.warn("[config] Failed to write the config file!", e);
             }
@@ -10,6 +10,7 @@ package alexiil.mc.lib.net;
 import javax.annotation.Nullable;
 
 import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
 import io.netty.buffer.Unpooled;
 
 import net.minecraft.network.PacketByteBuf;
@@ -54,6 +55,10 @@ public class NetByteBuf extends PacketByteBuf {
     public static final int MAX_VAR_U_INT_3_BYTES = 1 << 7 * 3;
     public static final int MAX_VAR_U_INT_4_BYTES = 1 << 7 * 4;
 
+    /** The continuation bit of every byte in a little-endian long, used by the var-int methods to find the last byte
+     * of a var-int without reading it one byte at a time. */
+    private static final long VAR_CONTINUATION_BITS = 0x8080_8080_8080_8080L;
+
     /** @return A new {@link NetByteBuf} from {@link Unpooled#buffer()} */
     public static NetByteBuf buffer() {
         return asNetByteBuf(Unpooled.buffer());
@@ -64,6 +69,18 @@ public class NetByteBuf extends PacketByteBuf {
         return asNetByteBuf(Unpooled.buffer(initialCapacity));
     }
 
+    /** @return A new {@link NetByteBuf} from {@link ByteBufAllocator#buffer()}. Unlike {@link #buffer()} this might
+     *         be pooled, so it must be {@link #release() released} when it's no longer needed. */
+    public static NetByteBuf buffer(ByteBufAllocator allocator) {
+        return asNetByteBuf(allocator.buffer());
+    }
+
+    /** @return A new {@link NetByteBuf} from {@link ByteBufAllocator#buffer(int)}. Unlike {@link #buffer(int)} this
+     *         might be pooled, so it must be {@link #release() released} when it's no longer needed. */
+    public static NetByteBuf buffer(ByteBufAllocator allocator, int initialCapacity) {
+        return asNetByteBuf(allocator.buffer(initialCapacity));
+    }
+
     /** @return A new {@link NetByteBuf} from {@link Unpooled#buffer()} */
     public static NetByteBuf buffer(boolean passthrough) {
         return asNetByteBuf(Unpooled.buffer(), passthrough);
@@ -491,11 +508,10 @@ public class NetByteBuf extends PacketByteBuf {
         // 4 bytes: s000 0vvv VV VV VV -> 1vvvV 1vvvV 1vvvV 0svvV
         // 5 bytes: svvvV VV VV VV -> 1vvvV 1vvvV 1vvvV 1vvvV 0s0vV
 
-        while ((ival & ~0x3f) != 0) {
-            writeByte(0x80 | (ival & 0x7f));
-            ival >>>= 7;
-        }
-        writeByte((sign << 6) | ival);
+        // Every byte holds 7 bits, apart from the last which only holds 6 (and the sign)
+        int length = (32 - Integer.numberOfLeadingZeros(ival)) / 7 + 1;
+        long encoded = spreadVarBits(ival) | continuationBits(length) | ((long) sign << (8 * length - 2));
+        writeVarBytes(encoded, length);
         return this;
     }
 
@@ -505,6 +521,16 @@ public class NetByteBuf extends PacketByteBuf {
         if (passthrough) {
             return super.readVarInt();
         }
+        if (readableBytes() >= 8) {
+            long word = getLongLE(readerIndex());
+            long ends = ~word & VAR_CONTINUATION_BITS;
+            int length = (Long.numberOfTrailingZeros(ends) >>> 3) + 1;
+            if (length <= 5) {
+                readerIndex(readerIndex() + length);
+                return (int) decodeSignedVar(word, ends, length);
+            }
+        }
+        // Either near the end of the buffer, or more than 5 bytes (which writeVarInt never writes)
         int count = 0;
         int ival = 0;
         int read;
@@ -535,15 +561,46 @@ public class NetByteBuf extends PacketByteBuf {
      * Unlike {@link #writeVarInt(int)} this only uses less than 5 bytes for non-negative integers less than
      * <code>pow(2, 8 * 3 - 1)</code> () */
     public NetByteBuf writeVarUnsignedInt(int ival) {
-        super.writeVarInt(ival);
+        int bits = 32 - Integer.numberOfLeadingZeros(ival);
+        int length = bits == 0 ? 1 : (bits + 6) / 7;
+        writeVarBytes(spreadVarBits(ival & 0xFFFF_FFFFL) | continuationBits(length), length);
         return this;
     }
 
+    /** @return The number of bytes that {@link #writeVarUnsignedInt(int)} uses for the given value. */
+    static int getVarUnsignedIntLength(int ival) {
+        int bits = 32 - Integer.numberOfLeadingZeros(ival);
+        return bits == 0 ? 1 : (bits + 6) / 7;
+    }
+
+    /** Sets the bytes at the given index to the same bytes that {@link #writeVarUnsignedInt(int)} would write, without
+     * changing any bytes after them, or the writer index.
+     * 
+     * @return The number of bytes that were set. */
+    int setVarUnsignedInt(int index, int ival) {
+        int length = getVarUnsignedIntLength(ival);
+        long encoded = spreadVarBits(ival & 0xFFFF_FFFFL) | continuationBits(length);
+        for (int i = 0; i < length; i++) {
+            setByte(index + i, (int) (encoded >>> 8 * i));
+        }
+        return length;
+    }
+
     /** Exposes the vanilla method for reading an unsigned integer using a variable number of bytes.
      * <p>
      * Unlike {@link #readVarInt()} this only uses less than 5 bytes for non-negative integers less than
      * <code>pow(2, 8 * 3 - 1)</code> () */
     public int readVarUnsignedInt() {
+        if (readableBytes() >= 8) {
+            long word = getLongLE(readerIndex());
+            long ends = ~word & VAR_CONTINUATION_BITS;
+            int length = (Long.numberOfTrailingZeros(ends) >>> 3) + 1;
+            if (length <= 5) {
+                readerIndex(readerIndex() + length);
+                return (int) compactVarBits(word & (ends ^ (ends - 1)));
+            }
+        }
+        // Vanilla throws an exception if it's too long
         return super.readVarInt();
     }
 
@@ -571,6 +628,12 @@ public class NetByteBuf extends PacketByteBuf {
         } else {
             sign = 0;
         }
+        int length = (64 - Long.numberOfLeadingZeros(lval)) / 7 + 1;
+        if (length <= 8) {
+            long encoded = spreadVarBits(lval) | continuationBits(length) | ((long) sign << (8 * length - 2));
+            writeVarBytes(encoded, length);
+            return this;
+        }
         while ((lval & ~0x3f) != 0) {
             writeByte((int) (0x80 | (lval & 0x7f)));
             lval >>>= 7;
@@ -584,6 +647,15 @@ public class NetByteBuf extends PacketByteBuf {
         if (passthrough) {
             return super.readVarLong();
         }
+        if (readableBytes() >= 8) {
+            long word = getLongLE(readerIndex());
+            long ends = ~word & VAR_CONTINUATION_BITS;
+            int length = (Long.numberOfTrailingZeros(ends) >>> 3) + 1;
+            if (length <= 8) {
+                readerIndex(readerIndex() + length);
+                return decodeSignedVar(word, ends, length);
+            }
+        }
         int count = 0;
         long lval = 0;
         long read;
@@ -607,7 +679,13 @@ public class NetByteBuf extends PacketByteBuf {
      * Unlike {@link #writeVarInt(int)} this only uses less than 9 bytes for non-negative integers less than
      * <code>pow(2, 8 * 7 - 1)</code> () */
     public NetByteBuf writeVarUnsignedLong(long lval) {
-        super.writeVarLong(lval);
+        int bits = 64 - Long.numberOfLeadingZeros(lval);
+        int length = bits == 0 ? 1 : (bits + 6) / 7;
+        if (length <= 8) {
+            writeVarBytes(spreadVarBits(lval) | continuationBits(length), length);
+        } else {
+            super.writeVarLong(lval);
+        }
         return this;
     }
 
@@ -616,9 +694,73 @@ public class NetByteBuf extends PacketByteBuf {
      * Unlike {@link #readVarInt()} this only uses less than 9 bytes for non-negative integers less than
      * <code>pow(2, 8 * 7 - 1)</code> () */
     public long readVarUnsignedLong() {
+        if (readableBytes() >= 8) {
+            long word = getLongLE(readerIndex());
+            long ends = ~word & VAR_CONTINUATION_BITS;
+            int length = (Long.numberOfTrailingZeros(ends) >>> 3) + 1;
+            if (length <= 8) {
+                readerIndex(readerIndex() + length);
+                return compactVarBits(word & (ends ^ (ends - 1)));
+            }
+        }
         return super.readVarLong();
     }
 
+    // Var-int helpers
+    // These encode and decode up to 8 bytes of a var-int at once, as a little-endian long (so the first byte is in the
+    // lowest 8 bits). Every byte holds 7 bits of the value, plus a continuation bit (0x80) on all but the last byte.
+
+    /** Moves each group of 7 bits (from the lowest) into it's own byte, leaving the top bit of each byte clear.
+     *
+     * @param value The value to spread. Only the lowest 56 bits are used. */
+    private static long spreadVarBits(long value) {
+        value = (value & 0x0FFF_FFFFL) | ((value & 0x00FF_FFFF_F000_0000L) << 4);
+        value = (value & 0x0000_3FFF_0000_3FFFL) | ((value & 0x0FFF_C000_0FFF_C000L) << 2);
+        value = (value & 0x007F_007F_007F_007FL) | ((value & 0x3F80_3F80_3F80_3F80L) << 1);
+        return value;
+    }
+
+    /** The inverse of {@link #spreadVarBits(long)}: joins the lowest 7 bits of every byte back together. */
+    private static long compactVarBits(long word) {
+        word = (word & 0x007F_007F_007F_007FL) | ((word & 0x7F00_7F00_7F00_7F00L) >>> 1);
+        word = (word & 0x0000_3FFF_0000_3FFFL) | ((word & 0x3FFF_0000_3FFF_0000L) >>> 2);
+        word = (word & 0x0000_0000_0FFF_FFFFL) | ((word & 0x0FFF_FFFF_0000_0000L) >>> 4);
+        return word;
+    }
+
+    /** @return The continuation bits for a var-int of the given length (between 1 and 8 bytes). */
+    private static long continuationBits(int length) {
+        return (VAR_CONTINUATION_BITS >>> 8) >>> (64 - 8 * length);
+    }
+
+    /** Decodes a var-int written by {@link #writeVarInt(int)} or {@link #writeVarLong(long)}, where the last byte
+     * holds the sign (0x40) and 6 bits of the value.
+     *
+     * @param word The next 8 bytes of the buffer.
+     * @param ends The bytes of word which don't have a continuation bit.
+     * @param length The length of the var-int, up to 8 bytes. */
+    private static long decodeSignedVar(long word, long ends, int length) {
+        long bits = compactVarBits(word & (ends ^ (ends - 1)));
+        int signBit = 7 * length - 1;
+        long value = bits & ((1L << signBit) - 1);
+        // Flips every bit if the sign bit is set
+        return value ^ -((bits >>> signBit) & 1);
+    }
+
+    /** Writes the lowest length bytes of the given little-endian long. All 8 bytes are only set at once if they
+     * already fit, so exactly sized buffers are never grown just for this. */
+    private void writeVarBytes(long encoded, int length) {
+        if (writableBytes() >= 8) {
+            int index = writerIndex();
+            setLongLE(index, encoded);
+            writerIndex(index + length);
+        } else {
+            for (int i = 0; i < length; i++) {
+                writeByte((int) (encoded >>> 8 * i));
+            }
+        }
+    }
+
     @Override
     public NetByteBuf writeIdentifier(Identifier id) {
         super.writeIdentifier(id);
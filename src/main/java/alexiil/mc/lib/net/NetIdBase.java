@@ -63,6 +63,9 @@ public abstract class NetIdBase extends TreeNetIdBase {
     /** @see #setMaximumDropDelay(int) */
     private int maximumDropDelay = 0;
 
+    /** @see #setThreadSafeReceiver(boolean) */
+    private volatile boolean threadSafeReceiver = false;
+
     NetIdBase(ParentNetIdBase parent, String name, int length) {
         super(parent, name, length);
     }
@@ -225,9 +228,46 @@ public abstract class NetIdBase extends TreeNetIdBase {
 
     /** Sets the maximum time that this packet may be held before dropping it. This value is only used if the connection
      * tries to send too much data in a single tick. Negative values are not allowed. This indicates an absolute number
-     * of connection ticks (for normal minecraft connections this is every server or client tick). */
+     * of connection ticks (for normal minecraft connections this is every server or client tick). A value of 0 (the
+     * default) uses the connection's own default drop delay.
+     * <p>
+     * Only packets with a priority lower than {@link #MAXIMUM_PRIORITY} are ever dropped.
+     * 
+     * @see #setDefaultPriority(int) */
     public void setMaximumDropDelay(int dropDelay) {
-        this.maximumDropDelay = Math.min(0, dropDelay);
+        if (dropDelay < 0) {
+            throw new IllegalArgumentException("The drop delay (" + dropDelay + ") must not be negative!");
+        }
+        this.maximumDropDelay = dropDelay;
+    }
+
+    /** Sets the priority that this packet is sent with. Packets with a priority lower than {@link #MAXIMUM_PRIORITY}
+     * may be delayed (and eventually dropped) if the connection doesn't have enough bandwidth to send them
+     * immediately, and packets with higher priorities are always sent first. Unlike the flags this may be called at
+     * any time.
+     * 
+     * @param priority Either {@link #MAXIMUM_PRIORITY} or a negative number. */
+    public void setDefaultPriority(int priority) {
+        if (priority > MAXIMUM_PRIORITY) {
+            throw new IllegalArgumentException(
+                "The priority (" + priority + ") must not be greater than " + MAXIMUM_PRIORITY + "!"
+            );
+        }
+        this.defaultPriority = priority;
+    }
+
+    /** Declares that the receiver of this packet can be called from any thread. Connections which decode packets off
+     * of the main thread (see {@link ActiveConnection#queueReceivedDataOffThread}) will then call the receiver
+     * immediately on the decoding thread, rather than passing it to the main thread. Such packets may be received
+     * before packets that were sent earlier but are received on the main thread. Unlike the flags this may be called
+     * at any time. */
+    public void setThreadSafeReceiver(boolean threadSafe) {
+        this.threadSafeReceiver = threadSafe;
+    }
+
+    /** @see #setThreadSafeReceiver(boolean) */
+    public boolean isThreadSafeReceiver() {
+        return threadSafeReceiver;
     }
 
     protected final void changeFlag(int newFlags) {
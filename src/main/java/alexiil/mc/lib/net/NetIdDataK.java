@@ -8,7 +8,11 @@
 package alexiil.mc.lib.net;
 
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.List;
+import java.util.function.Function;
+
+import javax.annotation.Nullable;
 
 public final class NetIdDataK<T> extends NetIdTyped<T> {
 
@@ -42,6 +46,17 @@ public final class NetIdDataK<T> extends NetIdTyped<T> {
         return this;
     }
 
+    /** Sets the receiver and writer to read and write messages with the given schema.
+     *
+     * @param getter Returns the message to send for an object. (Use {@link #send(ActiveConnection, Object,
+     *            IMsgDataWriterK)} with {@link NetSchema#writer(Function)} to send a different message).
+     * @param receiver Called with every message that is received. */
+    public <M> NetIdDataK<T> setReadWrite(
+        NetSchema<M> schema, Function<T, M> getter, NetSchema.IMessageReceiver<T, M> receiver
+    ) {
+        return setReadWrite(schema.receiver(receiver), schema.writer(getter));
+    }
+
     @Override
     public void receive(NetByteBuf buffer, IMsgReadCtx ctx, T parentValue) throws InvalidInputDataException {
         receiver.receive(parentValue, buffer, ctx);
@@ -54,6 +69,10 @@ public final class NetIdDataK<T> extends NetIdTyped<T> {
     }
 
     public void send(ActiveConnection connection, T obj, IMsgDataWriterK<T> writer) {
+        if (!parent.pathContainsDynamicParent && connection.canWriteFast()) {
+            sendFast(connection, obj, writer);
+            return;
+        }
         MessageContext.Write ctx = new MessageContext.Write(connection, this);
         validateSendingSide(ctx);
         NetByteBuf buffer = hasFixedLength() ? connection.allocBuffer(totalLength) : connection.allocBuffer();
@@ -89,6 +108,99 @@ public final class NetIdDataK<T> extends NetIdTyped<T> {
         buffer.release();
     }
 
+    /** Sends this to every connection in the given collection, but only calls the writer (and writes the parent
+     * context) once, and then shares the written payload between every connection. Only the header (which contains
+     * the per-connection ID) is written separately for each connection.
+     * <p>
+     * The writer is given the context of the first connection, so it must not write anything that depends on the
+     * connection (such as {@link NetObjectCache} IDs). Connections that record debug information (and paths that
+     * contain a {@link ParentDynamicNetId}) are sent to individually instead. */
+    public void broadcast(Collection<? extends ActiveConnection> connections, T obj) {
+        broadcast(connections, obj, writer);
+    }
+
+    /** @see #broadcast(Collection, Object) */
+    public void broadcast(Collection<? extends ActiveConnection> connections, T obj, IMsgDataWriterK<T> writer) {
+        if (connections.size() <= 1 || parent.pathContainsDynamicParent) {
+            for (ActiveConnection connection : connections) {
+                send(connection, obj, writer);
+            }
+            return;
+        }
+        NetByteBuf payload = null;
+        try {
+            for (ActiveConnection connection : connections) {
+                if (!connection.canWriteFast()) {
+                    send(connection, obj, writer);
+                    continue;
+                }
+                validateSendingSide(connection);
+                if (payload == null) {
+                    payload = writeSharedPayload(connection, obj, writer);
+                    if (payload == null) {
+                        // Nothing was written, so there's nothing to send
+                        return;
+                    }
+                }
+                InternalMsgUtil.send(connection, this, path, payload);
+            }
+        } finally {
+            if (payload != null) {
+                payload.release();
+            }
+        }
+    }
+
+    /** @return The parent context and data, or null if the writer didn't write anything. */
+    @Nullable
+    private NetByteBuf writeSharedPayload(ActiveConnection connection, T obj, IMsgDataWriterK<T> writer) {
+        NetByteBuf buffer = hasFixedLength() ? connection.allocBuffer(totalLength) : connection.allocBuffer();
+        ActiveConnection.FastWriteCtx ctx = connection.fastWriteCtx;
+        NetIdBase previousId = ctx.netId;
+        ctx.netId = this;
+        boolean written = false;
+        try {
+            parent.writeContextFast(buffer, ctx, obj);
+            int headerLength = buffer.writerIndex();
+            int headerBitLength = buffer.getBitWriterIndex();
+            writer.write(obj, buffer, ctx);
+            written = headerLength != buffer.writerIndex() || headerBitLength != buffer.getBitWriterIndex();
+        } finally {
+            ctx.netId = previousId;
+            if (!written) {
+                buffer.release();
+            }
+        }
+        return written ? buffer : null;
+    }
+
+    /** Writes the header, parent context, and data directly into a single buffer, which is then passed straight to
+     * {@link ActiveConnection#sendPacket(NetByteBuf, int, NetIdBase, int)}. The header is written last, as the id
+     * isn't allocated unless the writer wrote anything. */
+    private void sendFast(ActiveConnection connection, T obj, IMsgDataWriterK<T> writer) {
+        validateSendingSide(connection);
+        NetByteBuf buffer = hasFixedLength() ? connection.allocBuffer(5 + totalLength) : connection.allocBuffer();
+        ActiveConnection.FastWriteCtx ctx = connection.fastWriteCtx;
+        NetIdBase previousId = ctx.netId;
+        ctx.netId = this;
+        try {
+            int payloadStart = InternalMsgUtil.beginFastPayload(this, buffer);
+            parent.writeContextFast(buffer, ctx, obj);
+            int headerLength = buffer.writerIndex();
+            int headerBitLength = buffer.getBitWriterIndex();
+            writer.write(obj, buffer, ctx);
+            if (headerLength != buffer.writerIndex() || headerBitLength != buffer.getBitWriterIndex()) {
+                // Only send data packets if anything was actually written, so the id is only allocated then too
+                int id = InternalMsgUtil.getWriteId(connection, this, path);
+                InternalMsgUtil.endFastPayload(this, id, buffer, payloadStart);
+                connection.sendPacket(buffer, id, this, getDefaultPriority());
+            }
+        } finally {
+            ctx.netId = previousId;
+            buffer.release();
+        }
+    }
+
     @Override
     public NetIdDataK<T> withoutBuffering() {
         notBuffered();
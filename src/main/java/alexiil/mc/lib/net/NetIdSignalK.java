@@ -8,6 +8,7 @@
 package alexiil.mc.lib.net;
 
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.List;
 
 public final class NetIdSignalK<T> extends NetIdTyped<T> {
@@ -80,9 +81,13 @@ public final class NetIdSignalK<T> extends NetIdTyped<T> {
     /** Sends this signal over the specified connection */
     @Override
     public void send(ActiveConnection connection, T obj) {
+        if (!parent.pathContainsDynamicParent && connection.canWriteFast()) {
+            sendFast(connection, obj);
+            return;
+        }
         MessageContext.Write ctx = new MessageContext.Write(connection, this);
         validateSendingSide(ctx);
-        NetByteBuf buffer = hasFixedLength() ? NetByteBuf.buffer(totalLength) : NetByteBuf.buffer();
+        NetByteBuf buffer = hasFixedLength() ? connection.allocBuffer(totalLength) : connection.allocBuffer();
         NetByteBuf bufferTypes = connection.sendTypes ? NetByteBuf.buffer() : null;
         CheckingNetByteBuf checkingBuffer = new CheckingNetByteBuf(buffer, bufferTypes);
         NetIdPath resolvedPath;
@@ -108,4 +113,74 @@ public final class NetIdSignalK<T> extends NetIdTyped<T> {
         InternalMsgUtil.send(connection, this, resolvedPath, buffer);
         buffer.release();
     }
+
+    /** Sends this signal to every connection in the given collection, but only writes the parent context once, and
+     * then shares it between every connection. Only the header (which contains the per-connection ID) is written
+     * separately for each connection.
+     * <p>
+     * The parent context is written with the context of the first connection. Connections that record debug
+     * information (and paths that contain a {@link ParentDynamicNetId}) are sent to individually instead. */
+    public void broadcast(Collection<? extends ActiveConnection> connections, T obj) {
+        if (connections.size() <= 1 || parent.pathContainsDynamicParent) {
+            for (ActiveConnection connection : connections) {
+                send(connection, obj);
+            }
+            return;
+        }
+        NetByteBuf payload = null;
+        try {
+            for (ActiveConnection connection : connections) {
+                if (!connection.canWriteFast()) {
+                    send(connection, obj);
+                    continue;
+                }
+                validateSendingSide(connection);
+                if (payload == null) {
+                    payload = writeSharedPayload(connection, obj);
+                }
+                InternalMsgUtil.send(connection, this, path, payload);
+            }
+        } finally {
+            if (payload != null) {
+                payload.release();
+            }
+        }
+    }
+
+    private NetByteBuf writeSharedPayload(ActiveConnection connection, T obj) {
+        NetByteBuf buffer = hasFixedLength() ? connection.allocBuffer(totalLength) : connection.allocBuffer();
+        ActiveConnection.FastWriteCtx ctx = connection.fastWriteCtx;
+        NetIdBase previousId = ctx.netId;
+        ctx.netId = this;
+        try {
+            parent.writeContextFast(buffer, ctx, obj);
+            return buffer;
+        } catch (RuntimeException | Error e) {
+            buffer.release();
+            throw e;
+        } finally {
+            ctx.netId = previousId;
+        }
+    }
+
+    /** Writes the header and parent context directly into a single buffer, which is then passed straight to
+     * {@link ActiveConnection#sendPacket(NetByteBuf, int, NetIdBase, int)}. */
+    private void sendFast(ActiveConnection connection, T obj) {
+        validateSendingSide(connection);
+        NetByteBuf buffer = hasFixedLength() ? connection.allocBuffer(5 + totalLength) : connection.allocBuffer();
+        ActiveConnection.FastWriteCtx ctx = connection.fastWriteCtx;
+        NetIdBase previousId = ctx.netId;
+        ctx.netId = this;
+        try {
+            int payloadStart = InternalMsgUtil.beginFastPayload(this, buffer);
+            parent.writeContextFast(buffer, ctx, obj);
+            // Allocated after the parent context, as writing that can fail
+            int id = InternalMsgUtil.getWriteId(connection, this, path);
+            InternalMsgUtil.endFastPayload(this, id, buffer, payloadStart);
+            connection.sendPacket(buffer, id, this, getDefaultPriority());
+        } finally {
+            ctx.netId = previousId;
+            buffer.release();
+        }
+    }
 }
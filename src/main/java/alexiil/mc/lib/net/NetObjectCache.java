@@ -27,6 +27,53 @@ public final class NetObjectCache<T> extends NetObjectCacheBase<T> {
         T read(ActiveConnection connection, NetByteBuf buffer) throws InvalidInputDataException;
     }
 
+    /** Statistics for the objects that have been sent to a single connection.
+     *
+     * @see NetObjectCache#getStats(ActiveConnection) */
+    public static final class CacheStats {
+        private final int size;
+        private final long hits, misses, evictions;
+
+        CacheStats(int size, long hits, long misses, long evictions) {
+            this.size = size;
+            this.hits = hits;
+            this.misses = misses;
+            this.evictions = evictions;
+        }
+
+        /** @return The number of objects which are currently cached. */
+        public int getSize() {
+            return size;
+        }
+
+        /** @return The number of times that an object was sent which was already in the cache. */
+        public long getHits() {
+            return hits;
+        }
+
+        /** @return The number of times that an object was sent which wasn't in the cache, and so was added. */
+        public long getMisses() {
+            return misses;
+        }
+
+        /** @return The number of entries which were removed to make space for new entries. */
+        public long getEvictions() {
+            return evictions;
+        }
+
+        /** @return The fraction of sent objects which were already cached, or 0 if nothing has been sent. */
+        public double getHitRatio() {
+            long total = hits + misses;
+            return total == 0 ? 0 : hits / (double) total;
+        }
+
+        @Override
+        public String toString() {
+            return "CacheStats{size=" + size + ", hits=" + hits + ", misses=" + misses + ", evictions=" + evictions
+                + "}";
+        }
+    }
+
     private final ParentNetId netIdParent;
     private final NetIdData netIdPutCacheEntry;
     private final NetIdData netIdRemoveCacheEntry;
@@ -84,7 +131,7 @@ public final class NetObjectCache<T> extends NetObjectCacheBase<T> {
     }
 
     private void receivePutCacheEntry(NetByteBuf buffer, IMsgReadCtx ctx) throws InvalidInputDataException {
-        int id = buffer.readInt();
+        int id = buffer.readVarUnsignedInt();
         T obj = serialiser.read(ctx.getConnection(), buffer);
         if (DEBUG) {
             LibNetworkStack.LOGGER.info(
@@ -95,7 +142,13 @@ public final class NetObjectCache<T> extends NetObjectCacheBase<T> {
     }
 
     private void receiveRemoveCacheEntry(NetByteBuf buffer, IMsgReadCtx ctx) {
-
+        int id = buffer.readVarUnsignedInt();
+        T obj = getData(ctx.getConnection()).idToObj.remove(id);
+        if (DEBUG) {
+            LibNetworkStack.LOGGER.info(
+                "[cache] " + ctx.getConnection() + " " + netIdParent + " Removed ID " + id + " for object " + obj
+            );
+        }
     }
 
     @Override
@@ -106,25 +159,79 @@ public final class NetObjectCache<T> extends NetObjectCacheBase<T> {
         return super.newData(connection);
     }
 
+    /** @return The ID of the given object in the given connection's cache, after sending it to the other side if it
+     *         wasn't already cached.
+     * @throws IllegalStateException if this cache has a maximum number of entries, as the ID could be given to a
+     *             different object at any time. Use {@link #getId(IMsgWriteCtx, Object)} or
+     *             {@link #writeCached(NetByteBuf, IMsgWriteCtx, Object)} instead. */
     public int getId(ActiveConnection connection, T obj) {
+        if (maxEntries != Integer.MAX_VALUE) {
+            throw new IllegalStateException(
+                "Cannot use a bare ID of " + netIdParent + " as it's limited to " + maxEntries
+                    + " entries, so the ID might be reused! Use getId(IMsgWriteCtx, Object) instead."
+            );
+        }
+        return getId0(connection, obj);
+    }
+
+    /** @return The ID of the given object, to be written into the packet of the given context. The object is sent to
+     *         the other side first if it wasn't already cached.
+     * @throws IllegalStateException if this cache has a maximum number of entries, and the packet isn't sent with
+     *             {@link NetIdBase#MAXIMUM_PRIORITY}, as it might then be delayed until after it's ID was given to a
+     *             different object. */
+    public int getId(IMsgWriteCtx ctx, T obj) {
+        checkPriority(ctx);
+        return getId0(ctx.getConnection(), obj);
+    }
+
+    private void checkPriority(IMsgWriteCtx ctx) {
+        if (maxEntries != Integer.MAX_VALUE && ctx.getNetId().getDefaultPriority() != NetIdBase.MAXIMUM_PRIORITY) {
+            throw new IllegalStateException(
+                "The priority of " + ctx.getNetId() + " must be MAXIMUM_PRIORITY, as " + netIdParent
+                    + " is limited to " + maxEntries + " entries, so it's IDs might be reused before it's sent!"
+            );
+        }
+    }
+
+    private int getId0(ActiveConnection connection, T obj) {
         Data data = getData(connection);
-        int id = data.objToId.getInt(obj);
+        int id = data.getExistingId(obj);
         if (id < 0) {
-            id = data.objToId.size();
-            data.objToId.put(obj, id);
+            id = data.allocateId(obj);
             final int i = id;
             if (DEBUG) {
                 LibNetworkStack.LOGGER
                     .info("[cache] " + connection + " " + netIdParent + " Sending new ID " + i + " for object " + obj);
             }
             netIdPutCacheEntry.send(connection, (buffer, ctx) -> {
-                buffer.writeInt(i);
+                buffer.writeVarUnsignedInt(i);
                 serialiser.write(obj, connection, buffer);
             });
         }
         return id;
     }
 
+    /** Removes the given object from the given connection's cache, and tells the other side to forget it. Does nothing
+     * if the object hasn't been sent to that connection. */
+    public void remove(ActiveConnection connection, T obj) {
+        int id = getData(connection).remove(obj);
+        if (id >= 0) {
+            sendRemove(connection, id);
+        }
+    }
+
+    @Override
+    void onEvicted(ActiveConnection connection, int id) {
+        sendRemove(connection, id);
+    }
+
+    private void sendRemove(ActiveConnection connection, int id) {
+        if (DEBUG) {
+            LibNetworkStack.LOGGER.info("[cache] " + connection + " " + netIdParent + " Removing ID " + id);
+        }
+        netIdRemoveCacheEntry.send(connection, (buffer, ctx) -> buffer.writeVarUnsignedInt(id));
+    }
+
     @Nullable
     public T getObj(ActiveConnection connection, int id) {
         NetObjectCache<T>.Data data = getData(connection);
@@ -133,4 +240,62 @@ public final class NetObjectCache<T> extends NetObjectCacheBase<T> {
         }
         return data.idToObj.get(id);
     }
+
+    /** Writes a reference to the given object directly into the buffer. If the object is already in this connection's
+     * cache then this is just it's ID, otherwise the object itself is written inline (together with the ID that later
+     * references will use), so a cold cache never needs a separate put message. Both are written as a single var-uint
+     * (with the lowest bit set for a definition) so references to the first 64 entries only take a single byte.
+     * <p>
+     * Definitions are only written inline if the packet is sent with {@link NetIdBase#MAXIMUM_PRIORITY}, as a packet
+     * that was dropped would otherwise lose the definition. In addition packets that are sent while writing this
+     * packet (which are sent before this packet) mustn't reference the same object if it wasn't already cached.
+     *
+     * @throws IllegalStateException if this cache has a maximum number of entries, and the packet isn't sent with
+     *             {@link NetIdBase#MAXIMUM_PRIORITY}, as the packet might then be delayed until after the object was
+     *             evicted, and it's ID given to a different object.
+     * @see #readCached(NetByteBuf, IMsgReadCtx) */
+    public void writeCached(NetByteBuf buffer, IMsgWriteCtx ctx, T obj) {
+        ActiveConnection connection = ctx.getConnection();
+        if (ctx.getNetId().getDefaultPriority() != NetIdBase.MAXIMUM_PRIORITY) {
+            checkPriority(ctx);
+            buffer.writeVarUnsignedInt(getId0(connection, obj) << 1);
+            return;
+        }
+        Data data = getData(connection);
+        int id = data.getExistingId(obj);
+        if (id >= 0) {
+            buffer.writeVarUnsignedInt(id << 1);
+            return;
+        }
+        id = data.allocateId(obj);
+        if (DEBUG) {
+            LibNetworkStack.LOGGER
+                .info("[cache] " + connection + " " + netIdParent + " Writing new ID " + id + " for object " + obj);
+        }
+        buffer.writeVarUnsignedInt((id << 1) | 1);
+        serialiser.write(obj, connection, buffer);
+    }
+
+    /** Reads an object that was written by {@link #writeCached(NetByteBuf, IMsgWriteCtx, Object)}.
+     *
+     * @throws InvalidInputDataException if the ID isn't in this connection's cache. */
+    public T readCached(NetByteBuf buffer, IMsgReadCtx ctx) throws InvalidInputDataException {
+        int value = buffer.readVarUnsignedInt();
+        int id = value >>> 1;
+        if ((value & 1) != 0) {
+            T obj = serialiser.read(ctx.getConnection(), buffer);
+            if (DEBUG) {
+                LibNetworkStack.LOGGER.info(
+                    "[cache] " + ctx.getConnection() + " " + netIdParent + " Read new ID " + id + " for object " + obj
+                );
+            }
+            getData(ctx.getConnection()).idToObj.put(id, obj);
+            return obj;
+        }
+        T obj = getObj(ctx.getConnection(), id);
+        if (obj == null) {
+            throw new InvalidInputDataException("Unknown cache ID " + id + " for " + netIdParent);
+        }
+        return obj;
+    }
 }
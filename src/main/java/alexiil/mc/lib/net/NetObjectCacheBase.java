@@ -7,35 +7,152 @@
  */
 package alexiil.mc.lib.net;
 
+import java.util.List;
+
+import javax.annotation.Nullable;
+
+import alexiil.mc.lib.net.NetObjectCache.CacheStats;
 import alexiil.mc.lib.net.NetObjectCache.IEntrySerialiser;
 
 import it.unimi.dsi.fastutil.Hash;
 import it.unimi.dsi.fastutil.Hash.Strategy;
 import it.unimi.dsi.fastutil.ints.Int2ObjectMap;
 import it.unimi.dsi.fastutil.ints.Int2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
 import it.unimi.dsi.fastutil.objects.Object2IntLinkedOpenCustomHashMap;
-import it.unimi.dsi.fastutil.objects.Object2IntMap;
 
 abstract class NetObjectCacheBase<T> {
 
     class Data {
-        // TODO: Entry removal!
+        final ActiveConnection connection;
         final Int2ObjectMap<T> idToObj = new Int2ObjectOpenHashMap<>();
-        final Object2IntMap<T> objToId = new Object2IntLinkedOpenCustomHashMap<>(equality);
+
+        /** Ordered from the least recently used entry to the most recently used entry. */
+        final Object2IntLinkedOpenCustomHashMap<T> objToId = new Object2IntLinkedOpenCustomHashMap<>(equality);
+
+        /** IDs which were removed, and so can be used for the next new entry. */
+        final IntArrayList freeIds = new IntArrayList();
+        int nextId;
+
+        long hits, misses, evictions;
+
+        /** The state of the {@link NetObjectDictionary}, if this cache has one. */
+        boolean dictionaryOffered, dictionaryAccepted;
+        @Nullable
+        List<T> receivedDictionary;
+
+        /** The hash of the dictionary that we asked the other side to send, or null if we aren't waiting for one. */
+        @Nullable
+        byte[] requestedDictionaryHash;
 
         Data(ActiveConnection connection) {
+            this.connection = connection;
             objToId.defaultReturnValue(-1);
+            nextId = getFirstDynamicId();
+        }
+
+        /** @return The ID of the given object (marking it as the most recently used entry), or -1 if it isn't in the
+         *         cache. */
+        int getExistingId(T obj) {
+            int id = objToId.getAndMoveToLast(obj);
+            if (id < 0) {
+                misses++;
+            } else {
+                hits++;
+            }
+            return id;
+        }
+
+        /** Adds a new entry for the given object. If the cache is full then the least recently used entry is evicted,
+         * and it's ID is reused for the new entry. At most one entry is evicted, as this may be called while a packet
+         * that references other entries is being written: caches that are bigger than the maximum are only shrunk by
+         * {@link #shrink()}.
+         *
+         * @return The new ID for the object. */
+        int allocateId(T obj) {
+            int id;
+            if (!objToId.isEmpty() && objToId.size() >= maxEntries) {
+                // This doesn't need to hash the entry, so it works even if the object was modified after it was added
+                id = objToId.removeFirstInt();
+                evictions++;
+            } else {
+                id = freeIds.isEmpty() ? nextId++ : freeIds.popInt();
+            }
+            objToId.put(obj, id);
+            return id;
+        }
+
+        /** Evicts the least recently used entries until this cache is no bigger than the maximum. Called by
+         * {@link BufferedConnection#tickWrite()}, so the other side is only told about the evictions after every
+         * packet that might still reference them. */
+        void shrink() {
+            while (objToId.size() > maxEntries) {
+                int evicted = objToId.removeFirstInt();
+                evictions++;
+                freeIds.push(evicted);
+                onEvicted(connection, evicted);
+            }
+        }
+
+        /** @return The ID that the object used to have, or -1 if it wasn't in the cache. */
+        int remove(T obj) {
+            int id = objToId.removeInt(obj);
+            if (id >= 0) {
+                freeIds.push(id);
+            }
+            return id;
+        }
+
+        CacheStats getStats() {
+            return new CacheStats(objToId.size(), hits, misses, evictions);
         }
     }
 
     final Hash.Strategy<T> equality;
     final IEntrySerialiser<T> serialiser;
 
+    /** The maximum number of entries in each connection's cache. */
+    int maxEntries = Integer.MAX_VALUE;
+
     public NetObjectCacheBase(Strategy<T> equality, IEntrySerialiser<T> serialiser) {
         this.equality = equality;
         this.serialiser = serialiser;
     }
 
+    /** Sets the maximum number of entries that each connection may cache. Caches have no maximum by default. Once a
+     * cache is full the least recently used entry is evicted, and it's ID is reused for the new entry. Lowering this
+     * doesn't evict anything straight away: instead caches that are too big are shrunk at the start of the next tick
+     * of their {@link BufferedConnection}, and until then new entries replace the least recently used entries.
+     * <p>
+     * Since IDs are reused, {@link NetObjectCache} only allows IDs of a limited cache to be written into packets that
+     * are sent with {@link NetIdBase#MAXIMUM_PRIORITY} (the same as the cache entries themselves), as a delayed packet
+     * might otherwise be read after it's ID has been given to a different object. */
+    public void setMaxEntries(int maxEntries) {
+        if (maxEntries < 1) {
+            throw new IllegalArgumentException("The maximum number of entries (" + maxEntries + ") must be positive!");
+        }
+        this.maxEntries = maxEntries;
+    }
+
+    public int getMaxEntries() {
+        return maxEntries;
+    }
+
+    /** @return A snapshot of the statistics for the objects that have been sent to the given connection. */
+    public CacheStats getStats(ActiveConnection connection) {
+        return getData(connection).getStats();
+    }
+
+    /** Called by {@link Data#shrink()} with every ID that was evicted from the given connection's cache. */
+    void onEvicted(ActiveConnection connection, int id) {
+        // Reused IDs are always sent with their new object, so by default the other side isn't told about evictions
+    }
+
+    /** @return The first ID that can be allocated to entries which are added to the cache while it's in use. */
+    int getFirstDynamicId() {
+        return 0;
+    }
+
     Data newData(ActiveConnection connection) {
         return new Data(connection);
     }
@@ -7,9 +7,13 @@
  */
 package alexiil.mc.lib.net;
 
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.function.Function;
+import java.util.stream.Collectors;
+
+import javax.annotation.Nullable;
 
 import net.minecraft.util.Identifier;
 import net.minecraft.util.Util;
@@ -20,10 +24,34 @@ import it.unimi.dsi.fastutil.Hash.Strategy;
 
 public class NetObjectCacheSimple<T> extends NetObjectCacheBase<T> {
 
+    @Nullable
+    private NetObjectDictionary<T> dictionary;
+
     public NetObjectCacheSimple(Strategy<T> equality, IEntrySerialiser<T> serialiser) {
         super(equality, serialiser);
     }
 
+    /** Pre-shares the given entries with the other side of every connection, so they never need to be sent. Both
+     * sides must call this (with the same parent) before the cache is used, although the entries themselves may
+     * differ: the sender checks that the receiver has exactly the same entries (by comparing their hashes) before using
+     * them, and if it doesn't the full list is sent once, and then stored on disk by the receiver for later
+     * connections.
+     *
+     * @param parent The parent for the messages used to agree on the dictionary. This should be a new
+     *            {@link ParentNetId} that isn't used for anything else. */
+    public NetObjectCacheSimple<T> withDictionary(ParentNetId parent, List<T> entries) {
+        if (dictionary != null) {
+            throw new IllegalStateException("This cache already has a dictionary!");
+        }
+        dictionary = new NetObjectDictionary<>(this, parent, entries);
+        return this;
+    }
+
+    @Override
+    int getFirstDynamicId() {
+        return dictionary == null ? 0 : dictionary.size();
+    }
+
     public NetObjectCacheSimple(Map<String, T> map, Function<T, String> reverse) {
         super(Util.identityHashStrategy(), new IEntrySerialiser<T>() {
             @Override
@@ -64,6 +92,15 @@ public class NetObjectCacheSimple<T> extends NetObjectCacheBase<T> {
         });
     }
 
+    /** Creates a cache with {@link #createMappedIdentifier(Map, Function)}, which uses every value in the given map as
+     * it's {@link #withDictionary(ParentNetId, List) dictionary}. */
+    public static <T> NetObjectCacheSimple<T> createMappedIdentifier(
+        Map<Identifier, T> map, Function<T, Identifier> reverse, ParentNetId dictionaryParent
+    ) {
+        List<T> entries = map.keySet().stream().sorted().map(map::get).collect(Collectors.toList());
+        return createMappedIdentifier(map, reverse).withDictionary(dictionaryParent, entries);
+    }
+
     public static <T> NetObjectCacheSimple<T> createPartiallyMappedIdentifier(
         Map<Identifier, T> map, Function<T, Identifier> reverse
     ) {
@@ -103,13 +140,30 @@ public class NetObjectCacheSimple<T> extends NetObjectCacheBase<T> {
         });
     }
 
+    /** Creates a cache with {@link #createIdentifierSet(Set)}, which uses every identifier in the given set as it's
+     * {@link #withDictionary(ParentNetId, List) dictionary}. */
+    public static NetObjectCacheSimple<Identifier> createIdentifierSet(
+        Set<Identifier> set, ParentNetId dictionaryParent
+    ) {
+        List<Identifier> entries = set.stream().sorted().collect(Collectors.toList());
+        return createIdentifierSet(set).withDictionary(dictionaryParent, entries);
+    }
+
     public void write(T obj, NetByteBuf buffer, IMsgWriteCtx ctx) {
         NetObjectCacheBase<T>.Data cacheData = ctx.getConnection().getCacheData(this);
-        int id = cacheData.objToId.getInt(obj);
+        if (dictionary != null) {
+            int dictionaryId = dictionary.getSendId(cacheData, ctx.getConnection(), obj);
+            if (dictionaryId >= 0) {
+                buffer.writeBoolean(false);
+                buffer.writeVarUnsignedInt(dictionaryId);
+                return;
+            }
+        }
+        int id = cacheData.getExistingId(obj);
         if (id == -1) {
             buffer.writeBoolean(true);
-            int newId = cacheData.objToId.size();
-            cacheData.objToId.put(obj, newId);
+            // Reused IDs are always sent with the new object, so the other side doesn't need to be told about removals
+            int newId = cacheData.allocateId(obj);
             buffer.writeVarUnsignedInt(newId);
             serialiser.write(obj, ctx.getConnection(), buffer);
         } else {
@@ -127,7 +181,12 @@ public class NetObjectCacheSimple<T> extends NetObjectCacheBase<T> {
             cacheData.idToObj.put(id, obj);
             return obj;
         } else {
-            T obj = cacheData.idToObj.get(id);
+            // The other side's dictionary may have a different size to ours, but it never allocates IDs that are
+            // inside of it, so there's no need to check which one the ID is from
+            T obj = dictionary == null ? null : dictionary.getReceived(cacheData, id);
+            if (obj == null) {
+                obj = cacheData.idToObj.get(id);
+            }
             if (obj == null) {
                 throw new InvalidInputDataException("Unknown ID " + id);
             }
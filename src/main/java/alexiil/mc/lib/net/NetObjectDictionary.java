@@ -0,0 +1,272 @@
+/*
+ * Copyright (c) 2019 AlexIIL
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+package alexiil.mc.lib.net;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import javax.annotation.Nullable;
+
+import io.netty.buffer.Unpooled;
+
+import alexiil.mc.lib.net.impl.ActiveMinecraftConnection;
+
+import it.unimi.dsi.fastutil.objects.Object2IntMap;
+import it.unimi.dsi.fastutil.objects.Object2IntOpenCustomHashMap;
+
+/** A list of entries which are known to both sides of a connection before anything is sent, so a
+ * {@link NetObjectCacheSimple} can refer to them by index without ever sending them.
+ * <p>
+ * Both sides build their own copy of the dictionary, and the first time that an object is written to a connection the
+ * sender offers the hash (SHA-256) of its dictionary. The receiver accepts it if it's own copy (or one that it saved
+ * earlier in {@link LibNetworkStack#DICTIONARY_CACHE_DIRECTORY}) has the same hash, and otherwise asks the sender for
+ * the full dictionary, which it then saves to disk for the next connection. The sender only uses the dictionary after
+ * the receiver has accepted it, so objects are written normally until then.
+ * <p>
+ * The full dictionary is only accepted if it was requested, and if it matches the hash that was offered. Only clients
+ * save received dictionaries, as otherwise a server would save whatever every client chose to send it. */
+final class NetObjectDictionary<T> {
+
+    /** The maximum number of entries that we accept in a received dictionary. */
+    private static final int MAXIMUM_ENTRIES = 1 << 20;
+
+    private final NetObjectCacheSimple<T> cache;
+    private final List<T> entries;
+    private final Object2IntMap<T> entryIds;
+
+    private final NetIdData netIdOffer;
+    private final NetIdSignal netIdRequest;
+    private final NetIdData netIdContent;
+    private final NetIdSignal netIdAccept;
+
+    /** The serialised form of {@link #entries}, and it's hash. Only computed once the dictionary is first used, as
+     * the serialiser needs a connection. */
+    private byte[] content, hash;
+
+    NetObjectDictionary(NetObjectCacheSimple<T> cache, ParentNetId parent, List<T> entries) {
+        this.cache = cache;
+        this.entries = Collections.unmodifiableList(new ArrayList<>(entries));
+        this.entryIds = new Object2IntOpenCustomHashMap<>(cache.equality);
+        entryIds.defaultReturnValue(-1);
+        for (int i = 0; i < entries.size(); i++) {
+            entryIds.putIfAbsent(entries.get(i), i);
+        }
+        netIdOffer = parent.idData("offer").setReceiver(this::receiveOffer);
+        netIdRequest = parent.idSignal("request").setReceiver(this::receiveRequest);
+        netIdContent = parent.idData("content").setReceiver(this::receiveContent);
+        netIdAccept = parent.idSignal("accept").setReceiver(this::receiveAccept);
+    }
+
+    int size() {
+        return entries.size();
+    }
+
+    /** @return The index of the given object in this dictionary, or -1 if it isn't in this dictionary or the other
+     *         side hasn't accepted this dictionary yet. */
+    int getSendId(NetObjectCacheBase<T>.Data data, ActiveConnection connection, T obj) {
+        if (!data.dictionaryOffered) {
+            data.dictionaryOffered = true;
+            byte[] h = getHash(connection);
+            netIdOffer.send(connection, (buffer, ctx) -> buffer.writeBytes(h));
+            return -1;
+        }
+        return data.dictionaryAccepted ? entryIds.getInt(obj) : -1;
+    }
+
+    /** @return The object at the given index, or null if the index isn't part of the dictionary that this side
+     *         accepted. */
+    @Nullable
+    T getReceived(NetObjectCacheBase<T>.Data data, int id) {
+        List<T> received = data.receivedDictionary;
+        return received != null && id < received.size() ? received.get(id) : null;
+    }
+
+    private byte[] getHash(ActiveConnection connection) {
+        if (hash == null) {
+            NetByteBuf buffer = NetByteBuf.buffer();
+            try {
+                buffer.writeVarUnsignedInt(entries.size());
+                for (T entry : entries) {
+                    cache.serialiser.write(entry, connection, buffer);
+                }
+                byte[] bytes = new byte[buffer.readableBytes()];
+                buffer.readBytes(bytes);
+                content = bytes;
+                hash = sha256(bytes);
+            } finally {
+                buffer.release();
+            }
+        }
+        return hash;
+    }
+
+    private void receiveOffer(NetByteBuf buffer, IMsgReadCtx ctx) throws InvalidInputDataException {
+        byte[] offered = readHash(buffer);
+        ActiveConnection connection = ctx.getConnection();
+        NetObjectCacheBase<T>.Data data = cache.getData(connection);
+        if (Arrays.equals(offered, getHash(connection))) {
+            data.receivedDictionary = entries;
+        } else {
+            data.receivedDictionary = readFromDisk(connection, offered);
+        }
+        if (data.receivedDictionary != null) {
+            data.requestedDictionaryHash = null;
+            netIdAccept.send(connection);
+        } else {
+            data.requestedDictionaryHash = offered;
+            netIdRequest.send(connection);
+        }
+    }
+
+    private void receiveRequest(IMsgReadCtx ctx) throws InvalidInputDataException {
+        ActiveConnection connection = ctx.getConnection();
+        if (!cache.getData(connection).dictionaryOffered) {
+            throw new InvalidInputDataException("Received a dictionary request before offering the dictionary!");
+        }
+        getHash(connection);
+        byte[] bytes = content;
+        netIdContent.send(connection, (buffer, writeCtx) -> {
+            buffer.writeVarUnsignedInt(bytes.length);
+            buffer.writeBytes(bytes);
+        });
+    }
+
+    private void receiveContent(NetByteBuf buffer, IMsgReadCtx ctx) throws InvalidInputDataException {
+        int length = buffer.readVarUnsignedInt();
+        if (length < 0 || length > buffer.readableBytes()) {
+            throw new InvalidInputDataException("Invalid dictionary length " + length);
+        }
+        byte[] bytes = new byte[length];
+        buffer.readBytes(bytes);
+        ActiveConnection connection = ctx.getConnection();
+        NetObjectCacheBase<T>.Data data = cache.getData(connection);
+        byte[] expectedHash = data.requestedDictionaryHash;
+        if (expectedHash == null) {
+            throw new InvalidInputDataException("Received a dictionary that wasn't requested!");
+        }
+        data.requestedDictionaryHash = null;
+        if (!Arrays.equals(expectedHash, sha256(bytes))) {
+            throw new InvalidInputDataException("The received dictionary doesn't match the hash that was offered!");
+        }
+        List<T> list;
+        try {
+            list = parse(connection, bytes);
+        } catch (InvalidInputDataException e) {
+            // Most likely the other side has entries that we don't know about, so it'll just have to keep
+            // sending everything normally
+            LibNetworkStack.LOGGER.warn("[dictionary] Unable to use the dictionary from " + connection, e);
+            return;
+        }
+        data.receivedDictionary = list;
+        if (connection instanceof ActiveMinecraftConnection mc && mc.getNetSide() == EnumNetSide.CLIENT) {
+            writeToDisk(expectedHash, bytes);
+        }
+        netIdAccept.send(connection);
+    }
+
+    private void receiveAccept(IMsgReadCtx ctx) {
+        cache.getData(ctx.getConnection()).dictionaryAccepted = true;
+    }
+
+    private List<T> parse(ActiveConnection connection, byte[] bytes) throws InvalidInputDataException {
+        NetByteBuf buffer = NetByteBuf.asNetByteBuf(Unpooled.wrappedBuffer(bytes));
+        try {
+            int count = buffer.readVarUnsignedInt();
+            if (count < 0 || count > MAXIMUM_ENTRIES) {
+                throw new InvalidInputDataException("Invalid dictionary size " + count);
+            }
+            List<T> list = new ArrayList<>(Math.min(count, 1024));
+            for (int i = 0; i < count; i++) {
+                list.add(cache.serialiser.read(connection, buffer));
+            }
+            if (buffer.isReadable()) {
+                throw new InvalidInputDataException(buffer.readableBytes() + " extra bytes after the dictionary!");
+            }
+            return list;
+        } finally {
+            buffer.release();
+        }
+    }
+
+    @Nullable
+    private List<T> readFromDisk(ActiveConnection connection, byte[] expectedHash) {
+        File file = getFile(expectedHash);
+        if (file == null || !file.isFile()) {
+            return null;
+        }
+        try {
+            byte[] bytes = Files.readAllBytes(file.toPath());
+            if (!Arrays.equals(expectedHash, sha256(bytes))) {
+                LibNetworkStack.LOGGER.warn("[dictionary] Ignoring corrupt dictionary " + file);
+                return null;
+            }
+            return parse(connection, bytes);
+        } catch (IOException e) {
+            // Also catches InvalidInputDataException
+            LibNetworkStack.LOGGER.warn("[dictionary] Failed to read " + file, e);
+            return null;
+        }
+    }
+
+    private static void writeToDisk(byte[] hash, byte[] bytes) {
+        File file = getFile(hash);
+        if (file == null) {
+            return;
+        }
+        try {
+            File dir = file.getParentFile();
+            if (!dir.isDirectory()) {
+                dir.mkdirs();
+            }
+            File temp = new File(dir, file.getName() + ".tmp");
+            Files.write(temp.toPath(), bytes);
+            Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            LibNetworkStack.LOGGER.warn("[dictionary] Failed to write " + file, e);
+        }
+    }
+
+    @Nullable
+    private static File getFile(byte[] hash) {
+        File dir = LibNetworkStack.DICTIONARY_CACHE_DIRECTORY;
+        if (dir == null) {
+            return null;
+        }
+        StringBuilder sb = new StringBuilder(hash.length * 2 + 4);
+        for (byte b : hash) {
+            sb.append(Character.forDigit((b >> 4) & 0xF, 16));
+            sb.append(Character.forDigit(b & 0xF, 16));
+        }
+        return new File(dir, sb.append(".bin").toString());
+    }
+
+    private static byte[] readHash(NetByteBuf buffer) throws InvalidInputDataException {
+        if (buffer.readableBytes() != 32) {
+            throw new InvalidInputDataException("Expected a 32 byte hash, but got " + buffer.readableBytes());
+        }
+        byte[] bytes = new byte[32];
+        buffer.readBytes(bytes);
+        return bytes;
+    }
+
+    private static byte[] sha256(byte[] bytes) {
+        try {
+            return MessageDigest.getInstance("SHA-256").digest(bytes);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is required to be supported by every JVM!", e);
+        }
+    }
+}
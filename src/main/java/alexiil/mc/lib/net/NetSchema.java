@@ -0,0 +1,678 @@
+/*
+ * Copyright (c) 2019 AlexIIL
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+package alexiil.mc.lib.net;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.AnnotatedElement;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.RecordComponent;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.function.Function;
+
+import javax.annotation.Nullable;
+
+import net.minecraft.util.Identifier;
+import net.minecraft.util.math.BlockPos;
+
+/** Writes and reads a record (or a class with {@link NetSchema.Order} annotated fields) using the smallest
+ * {@link NetByteBuf} encoding for each field, based on the field's type and annotations:
+ * <ul>
+ * <li>boolean: a single bit ({@link NetByteBuf#writeBoolean(boolean)}).</li>
+ * <li>byte, short, char, and int or long fields with a {@link Range}: the minimum number of bits for the range
+ * ({@link NetByteBuf#writeFixedBits(int, int)}), or nothing at all if the range only contains a single value.</li>
+ * <li>int and long fields without a range: {@link NetByteBuf#writeVarInt(int)} or
+ * {@link NetByteBuf#writeVarUnsignedInt(int)} (if marked as {@link Unsigned}), and the long equivalents.</li>
+ * <li>enums: the minimum number of bits for the ordinal.</li>
+ * <li>float and double: 4 or 8 bytes.</li>
+ * <li>{@link String}, {@link Identifier}, and {@link BlockPos}: their normal {@link NetByteBuf} methods.</li>
+ * <li>other records (or annotated classes): their own schema, written inline.</li>
+ * </ul>
+ * Object fields which are annotated with {@link Nullable} write an extra bit to say if they are null. Every other
+ * field must not be null.
+ * <p>
+ * The fields are read and written through {@link MethodHandle}s which are looked up once, when the schema is created,
+ * so using a schema doesn't need any reflection. Schemas are immutable and may be used from any thread.
+ * <p>
+ * A schema can be used as the payload of a {@link NetIdDataK} with
+ * {@link NetIdDataK#setReadWrite(NetSchema, Function, IMessageReceiver)}, or directly with {@link #write} and
+ * {@link #read}. */
+public final class NetSchema<M> {
+
+    /** The range of values that an int or long field (or record component) may have, inclusive. */
+    @Retention(RetentionPolicy.RUNTIME)
+    @Target({ ElementType.FIELD, ElementType.RECORD_COMPONENT })
+    public @interface Range {
+        long min();
+
+        long max();
+    }
+
+    /** Marks an int or long field (without a {@link Range}) as never being negative, so it's written as an unsigned
+     * var-int. */
+    @Retention(RetentionPolicy.RUNTIME)
+    @Target({ ElementType.FIELD, ElementType.RECORD_COMPONENT })
+    public @interface Unsigned {}
+
+    /** Marks a field of a (non-record) class as part of it's schema. Fields are written in ascending order. */
+    @Retention(RetentionPolicy.RUNTIME)
+    @Target(ElementType.FIELD)
+    public @interface Order {
+        int value();
+    }
+
+    @FunctionalInterface
+    public interface IMessageReceiver<T, M> {
+        void receive(T obj, M message, IMsgReadCtx ctx) throws InvalidInputDataException;
+    }
+
+    /** Creates the message from the read field values. */
+    @FunctionalInterface
+    private interface IFactory {
+        Object create(Object[] values) throws Throwable;
+    }
+
+    private final Class<M> type;
+    private final FieldCodec[] fields;
+    private final IFactory factory;
+
+    private NetSchema(Class<M> type, FieldCodec[] fields, IFactory factory) {
+        this.type = type;
+        this.fields = fields;
+        this.factory = factory;
+    }
+
+    /** Creates a schema for the given record or class, using a private lookup in the class to access it's fields.
+     *
+     * @throws IllegalArgumentException if the class isn't a record, doesn't have any {@link Order} annotated fields,
+     *             or if any of it's fields have an unsupported type or invalid annotations. */
+    public static <M> NetSchema<M> of(Class<M> type) {
+        MethodHandles.Lookup lookup;
+        try {
+            lookup = MethodHandles.privateLookupIn(type, MethodHandles.lookup());
+        } catch (IllegalAccessException e) {
+            throw new IllegalArgumentException("Unable to access " + type, e);
+        }
+        return of(type, lookup);
+    }
+
+    /** Like {@link #of(Class)}, but uses the given lookup (which must be able to access the fields of the class, and
+     * of every nested class) rather than a private lookup. */
+    public static <M> NetSchema<M> of(Class<M> type, MethodHandles.Lookup lookup) {
+        return create(type, lookup, new HashSet<>());
+    }
+
+    private static <M> NetSchema<M> create(Class<M> type, MethodHandles.Lookup lookup, Set<Class<?>> building) {
+        if (!building.add(type)) {
+            throw new IllegalArgumentException(type + " contains itself, which isn't supported!");
+        }
+        try {
+            if (type.isRecord()) {
+                return createRecord(type, lookup, building);
+            } else {
+                return createClass(type, lookup, building);
+            }
+        } catch (IllegalAccessException | NoSuchMethodException e) {
+            throw new IllegalArgumentException("Unable to access " + type, e);
+        } finally {
+            building.remove(type);
+        }
+    }
+
+    private static <M> NetSchema<M> createRecord(Class<M> type, MethodHandles.Lookup lookup, Set<Class<?>> building)
+        throws IllegalAccessException, NoSuchMethodException {
+        RecordComponent[] components = type.getRecordComponents();
+        FieldCodec[] fields = new FieldCodec[components.length];
+        Class<?>[] types = new Class<?>[components.length];
+        for (int i = 0; i < components.length; i++) {
+            RecordComponent component = components[i];
+            types[i] = component.getType();
+            MethodHandle getter = lookup.unreflect(component.getAccessor());
+            fields[i] = createField(component.getName(), component.getType(), component, getter, lookup, building);
+        }
+        MethodHandle constructor = lookup.findConstructor(type, MethodType.methodType(void.class, types))
+            .asSpreader(Object[].class, components.length)
+            .asType(MethodType.methodType(Object.class, Object[].class));
+        return new NetSchema<>(type, fields, values -> constructor.invokeExact(values));
+    }
+
+    private static <M> NetSchema<M> createClass(Class<M> type, MethodHandles.Lookup lookup, Set<Class<?>> building)
+        throws IllegalAccessException, NoSuchMethodException {
+        List<Field> annotated = new ArrayList<>();
+        for (Field field : type.getDeclaredFields()) {
+            if (field.isAnnotationPresent(Order.class)) {
+                if (Modifier.isStatic(field.getModifiers()) || Modifier.isFinal(field.getModifiers())) {
+                    throw new IllegalArgumentException(
+                        "The field " + type.getName() + "." + field.getName() + " must not be static or final!"
+                    );
+                }
+                annotated.add(field);
+            }
+        }
+        if (annotated.isEmpty()) {
+            throw new IllegalArgumentException(
+                type + " isn't a record, and doesn't have any fields annotated with @NetSchema.Order!"
+            );
+        }
+        annotated.sort(Comparator.comparingInt(f -> f.getAnnotation(Order.class).value()));
+        for (int i = 1; i < annotated.size(); i++) {
+            int order = annotated.get(i).getAnnotation(Order.class).value();
+            if (order == annotated.get(i - 1).getAnnotation(Order.class).value()) {
+                throw new IllegalArgumentException(
+                    "The fields " + annotated.get(i - 1).getName() + " and " + annotated.get(i).getName() + " in "
+                        + type + " have the same order (" + order + ")!"
+                );
+            }
+        }
+
+        FieldCodec[] fields = new FieldCodec[annotated.size()];
+        MethodHandle[] setters = new MethodHandle[fields.length];
+        for (int i = 0; i < fields.length; i++) {
+            Field field = annotated.get(i);
+            MethodHandle getter = lookup.unreflectGetter(field);
+            fields[i] = createField(field.getName(), field.getType(), field, getter, lookup, building);
+            MethodType setterType = MethodType.methodType(void.class, Object.class, Object.class);
+            setters[i] = lookup.unreflectSetter(field).asType(setterType);
+        }
+        Constructor<M> ctor = type.getDeclaredConstructor();
+        MethodHandle constructor = lookup.unreflectConstructor(ctor).asType(MethodType.methodType(Object.class));
+        return new NetSchema<>(type, fields, values -> {
+            Object obj = constructor.invokeExact();
+            for (int i = 0; i < setters.length; i++) {
+                setters[i].invokeExact(obj, values[i]);
+            }
+            return obj;
+        });
+    }
+
+    private static FieldCodec createField(
+        String name, Class<?> type, AnnotatedElement element, MethodHandle getter, MethodHandles.Lookup lookup,
+        Set<Class<?>> building
+    ) {
+        Range range = element.getAnnotation(Range.class);
+        boolean unsigned = element.isAnnotationPresent(Unsigned.class);
+        if ((range != null || unsigned) && type != int.class && type != long.class) {
+            throw new IllegalArgumentException(
+                "The field " + name + " has a @Range or @Unsigned annotation, but it isn't an int or a long!"
+            );
+        }
+        if (range != null && unsigned) {
+            throw new IllegalArgumentException("The field " + name + " can't have both a @Range and be @Unsigned!");
+        }
+
+        if (type == boolean.class) {
+            return new BooleanCodec(name, getter);
+        } else if (type == byte.class) {
+            return new RangeCodec(name, getter, type, Byte.MIN_VALUE, Byte.MAX_VALUE);
+        } else if (type == short.class) {
+            return new RangeCodec(name, getter, type, Short.MIN_VALUE, Short.MAX_VALUE);
+        } else if (type == char.class) {
+            return new RangeCodec(name, getter, type, Character.MIN_VALUE, Character.MAX_VALUE);
+        } else if (type == int.class) {
+            if (range != null) {
+                if (range.min() < Integer.MIN_VALUE || range.max() > Integer.MAX_VALUE) {
+                    throw new IllegalArgumentException("The @Range of the int field " + name + " is too large!");
+                }
+                return new RangeCodec(name, getter, type, range.min(), range.max());
+            }
+            return new VarIntCodec(name, getter, unsigned);
+        } else if (type == long.class) {
+            if (range != null) {
+                return new RangeCodec(name, getter, type, range.min(), range.max());
+            }
+            return new VarLongCodec(name, getter, unsigned);
+        } else if (type == float.class) {
+            return new FloatCodec(name, getter);
+        } else if (type == double.class) {
+            return new DoubleCodec(name, getter);
+        }
+
+        if (type.isPrimitive()) {
+            throw new IllegalArgumentException("Unsupported type " + type + " for the field " + name);
+        }
+        final ObjectCodec codec;
+        MethodHandle objGetter = getter.asType(MethodType.methodType(Object.class, Object.class));
+        if (type.isEnum()) {
+            codec = new EnumCodec(name, objGetter, type.getEnumConstants());
+        } else if (type == String.class) {
+            codec = new StringCodec(name, objGetter);
+        } else if (type == Identifier.class) {
+            codec = new IdentifierCodec(name, objGetter);
+        } else if (type == BlockPos.class) {
+            codec = new BlockPosCodec(name, objGetter);
+        } else if (type.isRecord() || hasOrderedFields(type)) {
+            codec = new NestedCodec(name, objGetter, create(type, lookup, building));
+        } else {
+            throw new IllegalArgumentException("Unsupported type " + type + " for the field " + name);
+        }
+        codec.nullable = element.isAnnotationPresent(Nullable.class);
+        return codec;
+    }
+
+    private static boolean hasOrderedFields(Class<?> type) {
+        for (Field field : type.getDeclaredFields()) {
+            if (field.isAnnotationPresent(Order.class)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public Class<M> getType() {
+        return type;
+    }
+
+    /** Writes every field of the given message to the buffer.
+     *
+     * @throws IllegalArgumentException if a field is outside of it's {@link Range}, or a non-{@link Nullable} field is
+     *             null. */
+    public void write(M message, NetByteBuf buffer) {
+        write0(message, buffer);
+    }
+
+    /** Reads a new message from the buffer.
+     *
+     * @throws InvalidInputDataException if the buffer contained a value that the message can't have (like a value
+     *             outside of it's {@link Range}, or an invalid enum ordinal). */
+    public M read(NetByteBuf buffer) throws InvalidInputDataException {
+        return type.cast(read0(buffer));
+    }
+
+    /** @return A writer which writes the message returned by the given function. */
+    public <T> NetIdDataK.IMsgDataWriterK<T> writer(Function<T, M> getter) {
+        return (obj, buffer, ctx) -> write(getter.apply(obj), buffer);
+    }
+
+    /** @return A receiver which reads a message, and then passes it to the given receiver. */
+    public <T> NetIdDataK.IMsgDataReceiverK<T> receiver(IMessageReceiver<T, M> receiver) {
+        return (obj, buffer, ctx) -> receiver.receive(obj, read(buffer), ctx);
+    }
+
+    void write0(Object message, NetByteBuf buffer) {
+        try {
+            for (FieldCodec field : fields) {
+                field.write(message, buffer);
+            }
+        } catch (RuntimeException | Error e) {
+            throw e;
+        } catch (Throwable t) {
+            throw new IllegalStateException("Failed to write " + type, t);
+        }
+    }
+
+    Object read0(NetByteBuf buffer) throws InvalidInputDataException {
+        Object[] values = new Object[fields.length];
+        for (int i = 0; i < fields.length; i++) {
+            values[i] = fields[i].read(buffer);
+        }
+        try {
+            return factory.create(values);
+        } catch (RuntimeException | Error e) {
+            // Records may validate their arguments in the constructor
+            throw new InvalidInputDataException("Failed to create " + type + " from " + Arrays.toString(values), e);
+        } catch (Throwable t) {
+            throw new IllegalStateException("Failed to create " + type, t);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "NetSchema{" + type.getName() + " " + Arrays.toString(fields) + "}";
+    }
+
+    /** @return The number of bits needed to store any value between 0 and span (inclusive). */
+    static int bitsFor(long span) {
+        return 64 - Long.numberOfLeadingZeros(span);
+    }
+
+    abstract static class FieldCodec {
+        final String name;
+
+        FieldCodec(String name) {
+            this.name = name;
+        }
+
+        abstract void write(Object message, NetByteBuf buffer) throws Throwable;
+
+        abstract Object read(NetByteBuf buffer) throws InvalidInputDataException;
+
+        @Override
+        public String toString() {
+            return name;
+        }
+    }
+
+    static final class BooleanCodec extends FieldCodec {
+        final MethodHandle getter;
+
+        BooleanCodec(String name, MethodHandle getter) {
+            super(name);
+            this.getter = getter.asType(MethodType.methodType(boolean.class, Object.class));
+        }
+
+        @Override
+        void write(Object message, NetByteBuf buffer) throws Throwable {
+            buffer.writeBoolean((boolean) getter.invokeExact(message));
+        }
+
+        @Override
+        Object read(NetByteBuf buffer) {
+            return buffer.readBoolean();
+        }
+    }
+
+    /** Writes an integer type as the offset from the minimum value, using the minimum number of bits. */
+    static final class RangeCodec extends FieldCodec {
+        final MethodHandle getter;
+        final Class<?> type;
+        final long min, max;
+        final int bits;
+
+        RangeCodec(String name, MethodHandle getter, Class<?> type, long min, long max) {
+            super(name);
+            if (min > max) {
+                throw new IllegalArgumentException("The @Range of " + name + " has a min larger than it's max!");
+            }
+            this.getter = getter.asType(MethodType.methodType(long.class, Object.class));
+            this.type = type;
+            this.min = min;
+            this.max = max;
+            this.bits = bitsFor(max - min);
+        }
+
+        @Override
+        void write(Object message, NetByteBuf buffer) throws Throwable {
+            long value = (long) getter.invokeExact(message);
+            if (value < min || value > max) {
+                throw new IllegalArgumentException(
+                    "The value of " + name + " (" + value + ") is outside of it's range [" + min + ", " + max + "]"
+                );
+            }
+            long offset = value - min;
+            if (bits > 32) {
+                buffer.writeFixedBits((int) offset, 32);
+                buffer.writeFixedBits((int) (offset >>> 32), bits - 32);
+            } else if (bits > 0) {
+                buffer.writeFixedBits((int) offset, bits);
+            }
+        }
+
+        @Override
+        Object read(NetByteBuf buffer) throws InvalidInputDataException {
+            long offset;
+            if (bits > 32) {
+                offset = Integer.toUnsignedLong(buffer.readFixedBits(32));
+                offset |= Integer.toUnsignedLong(buffer.readFixedBits(bits - 32)) << 32;
+            } else if (bits > 0) {
+                offset = Integer.toUnsignedLong(buffer.readFixedBits(bits));
+            } else {
+                offset = 0;
+            }
+            long value = min + offset;
+            if (Long.compareUnsigned(offset, max - min) > 0) {
+                throw new InvalidInputDataException(
+                    "Read " + name + " as " + value + ", which is outside of it's range [" + min + ", " + max + "]"
+                );
+            }
+            if (type == byte.class) {
+                return (byte) value;
+            } else if (type == short.class) {
+                return (short) value;
+            } else if (type == char.class) {
+                return (char) value;
+            } else if (type == int.class) {
+                return (int) value;
+            } else {
+                return value;
+            }
+        }
+    }
+
+    static final class VarIntCodec extends FieldCodec {
+        final MethodHandle getter;
+        final boolean unsigned;
+
+        VarIntCodec(String name, MethodHandle getter, boolean unsigned) {
+            super(name);
+            this.getter = getter.asType(MethodType.methodType(int.class, Object.class));
+            this.unsigned = unsigned;
+        }
+
+        @Override
+        void write(Object message, NetByteBuf buffer) throws Throwable {
+            int value = (int) getter.invokeExact(message);
+            if (unsigned) {
+                buffer.writeVarUnsignedInt(value);
+            } else {
+                buffer.writeVarInt(value);
+            }
+        }
+
+        @Override
+        Object read(NetByteBuf buffer) {
+            return unsigned ? buffer.readVarUnsignedInt() : buffer.readVarInt();
+        }
+    }
+
+    static final class VarLongCodec extends FieldCodec {
+        final MethodHandle getter;
+        final boolean unsigned;
+
+        VarLongCodec(String name, MethodHandle getter, boolean unsigned) {
+            super(name);
+            this.getter = getter.asType(MethodType.methodType(long.class, Object.class));
+            this.unsigned = unsigned;
+        }
+
+        @Override
+        void write(Object message, NetByteBuf buffer) throws Throwable {
+            long value = (long) getter.invokeExact(message);
+            if (unsigned) {
+                buffer.writeVarUnsignedLong(value);
+            } else {
+                buffer.writeVarLong(value);
+            }
+        }
+
+        @Override
+        Object read(NetByteBuf buffer) {
+            return unsigned ? buffer.readVarUnsignedLong() : buffer.readVarLong();
+        }
+    }
+
+    static final class FloatCodec extends FieldCodec {
+        final MethodHandle getter;
+
+        FloatCodec(String name, MethodHandle getter) {
+            super(name);
+            this.getter = getter.asType(MethodType.methodType(float.class, Object.class));
+        }
+
+        @Override
+        void write(Object message, NetByteBuf buffer) throws Throwable {
+            buffer.writeFloat((float) getter.invokeExact(message));
+        }
+
+        @Override
+        Object read(NetByteBuf buffer) {
+            return buffer.readFloat();
+        }
+    }
+
+    static final class DoubleCodec extends FieldCodec {
+        final MethodHandle getter;
+
+        DoubleCodec(String name, MethodHandle getter) {
+            super(name);
+            this.getter = getter.asType(MethodType.methodType(double.class, Object.class));
+        }
+
+        @Override
+        void write(Object message, NetByteBuf buffer) throws Throwable {
+            buffer.writeDouble((double) getter.invokeExact(message));
+        }
+
+        @Override
+        Object read(NetByteBuf buffer) {
+            return buffer.readDouble();
+        }
+    }
+
+    /** Base class for every non-primitive field, which handles {@link Nullable}. */
+    abstract static class ObjectCodec extends FieldCodec {
+        final MethodHandle getter;
+        boolean nullable;
+
+        ObjectCodec(String name, MethodHandle getter) {
+            super(name);
+            this.getter = getter;
+        }
+
+        @Override
+        final void write(Object message, NetByteBuf buffer) throws Throwable {
+            Object value = getter.invokeExact(message);
+            if (nullable) {
+                buffer.writeBoolean(value != null);
+                if (value == null) {
+                    return;
+                }
+            } else if (value == null) {
+                throw new IllegalArgumentException("The field " + name + " is null, but it isn't @Nullable!");
+            }
+            writeValue(value, buffer);
+        }
+
+        @Override
+        final Object read(NetByteBuf buffer) throws InvalidInputDataException {
+            if (nullable && !buffer.readBoolean()) {
+                return null;
+            }
+            return readValue(buffer);
+        }
+
+        abstract void writeValue(Object value, NetByteBuf buffer);
+
+        abstract Object readValue(NetByteBuf buffer) throws InvalidInputDataException;
+    }
+
+    static final class EnumCodec extends ObjectCodec {
+        final Object[] constants;
+        final int bits;
+
+        EnumCodec(String name, MethodHandle getter, Object[] constants) {
+            super(name, getter);
+            if (constants.length == 0) {
+                throw new IllegalArgumentException("The enum field " + name + " doesn't have any possible values!");
+            }
+            this.constants = constants;
+            this.bits = bitsFor(constants.length - 1);
+        }
+
+        @Override
+        void writeValue(Object value, NetByteBuf buffer) {
+            if (bits > 0) {
+                buffer.writeFixedBits(((Enum<?>) value).ordinal(), bits);
+            }
+        }
+
+        @Override
+        Object readValue(NetByteBuf buffer) throws InvalidInputDataException {
+            int ordinal = bits > 0 ? buffer.readFixedBits(bits) : 0;
+            if (ordinal >= constants.length) {
+                throw new InvalidInputDataException(
+                    "Read " + name + " as ordinal " + ordinal + ", but there are only " + constants.length + " values!"
+                );
+            }
+            return constants[ordinal];
+        }
+    }
+
+    static final class StringCodec extends ObjectCodec {
+        StringCodec(String name, MethodHandle getter) {
+            super(name, getter);
+        }
+
+        @Override
+        void writeValue(Object value, NetByteBuf buffer) {
+            buffer.writeString((String) value);
+        }
+
+        @Override
+        Object readValue(NetByteBuf buffer) {
+            return buffer.readString();
+        }
+    }
+
+    static final class IdentifierCodec extends ObjectCodec {
+        IdentifierCodec(String name, MethodHandle getter) {
+            super(name, getter);
+        }
+
+        @Override
+        void writeValue(Object value, NetByteBuf buffer) {
+            buffer.writeIdentifier((Identifier) value);
+        }
+
+        @Override
+        Object readValue(NetByteBuf buffer) throws InvalidInputDataException {
+            return buffer.readIdentifierSafe();
+        }
+    }
+
+    static final class BlockPosCodec extends ObjectCodec {
+        BlockPosCodec(String name, MethodHandle getter) {
+            super(name, getter);
+        }
+
+        @Override
+        void writeValue(Object value, NetByteBuf buffer) {
+            buffer.writeBlockPos((BlockPos) value);
+        }
+
+        @Override
+        Object readValue(NetByteBuf buffer) {
+            return buffer.readBlockPos();
+        }
+    }
+
+    static final class NestedCodec extends ObjectCodec {
+        final NetSchema<?> schema;
+
+        NestedCodec(String name, MethodHandle getter, NetSchema<?> schema) {
+            super(name, getter);
+            this.schema = schema;
+        }
+
+        @Override
+        void writeValue(Object value, NetByteBuf buffer) {
+            schema.write0(value, buffer);
+        }
+
+        @Override
+        Object readValue(NetByteBuf buffer) throws InvalidInputDataException {
+            return schema.read0(buffer);
+        }
+
+        @Override
+        public String toString() {
+            return name + "=" + schema;
+        }
+    }
+}
@@ -0,0 +1,492 @@
+/*
+ * Copyright (c) 2019 AlexIIL
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+package alexiil.mc.lib.net;
+
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.annotation.Nullable;
+
+import it.unimi.dsi.fastutil.ints.Int2ObjectMap;
+import it.unimi.dsi.fastutil.ints.Int2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.objects.ObjectIterator;
+
+/** A channel for sending payloads which are too large to sensibly write into a single packet (like schematics or
+ * whole regions of a world), without holding the whole payload in memory on either side.
+ * <p>
+ * The sender calls {@link #open(ActiveConnection, NetIdData.IMsgDataWriter)} to get an {@link OutgoingStream}, and
+ * then writes to it (like any other {@link OutputStream}). The written data is sent in chunks of at most
+ * {@link #CHUNK_SIZE} bytes, but only while:
+ * <ul>
+ * <li>The receiver has given us enough credit. Every stream starts with {@link #WINDOW_SIZE} bytes of credit, and the
+ * receiver gives more back as it consumes the chunks that it has received.</li>
+ * <li>There is enough bandwidth left in the current tick, if the connection is a {@link BufferedConnection} with a
+ * maximum bandwidth. (This is shared between every stream of this channel on the same connection).</li>
+ * </ul>
+ * Anything else is kept until the next tick (or until more credit is received), and
+ * {@link OutgoingStream#getPendingBytes()} can be used by the sender to stop writing while too much is waiting to be
+ * sent.
+ * <p>
+ * The receiver sets an {@link IStreamOpenHandler} with {@link #setReceiver(IStreamOpenHandler)}, which is given the
+ * header of every new stream and returns the {@link IStreamReceiver} that will be given each chunk as it arrives.
+ * <p>
+ * Streams aren't thread safe: they must only be opened, written to, and consumed on the thread that ticks and receives
+ * packets for their connection (normally the main thread). Every stream is aborted by
+ * {@link ActiveConnection#abortStreams()} once the connection has closed. */
+public final class NetStream {
+
+    /** The maximum number of bytes sent in a single chunk. */
+    public static final int CHUNK_SIZE = 16 * 1024;
+
+    /** The number of bytes that may be sent before the receiver has consumed any of them. */
+    public static final int WINDOW_SIZE = 256 * 1024;
+
+    /** The receiver only gives back credit once at least this many bytes have been consumed, so that it doesn't send
+     * a credit packet for every chunk. */
+    private static final int CREDIT_BATCH = WINDOW_SIZE / 4;
+
+    @FunctionalInterface
+    public interface IStreamOpenHandler {
+        /** Called when the other side opens a new stream.
+         *
+         * @param header The data written by the header writer given to
+         *            {@link NetStream#open(ActiveConnection, NetIdData.IMsgDataWriter)}.
+         * @return The receiver for the stream's data, or null to cancel the stream. */
+        @Nullable
+        IStreamReceiver onOpen(IncomingStream stream, NetByteBuf header, IMsgReadCtx ctx)
+            throws InvalidInputDataException;
+    }
+
+    public interface IStreamReceiver {
+        /** Called with every chunk of data, in order. The buffer is only valid until this returns. */
+        void onData(IncomingStream stream, NetByteBuf data, IMsgReadCtx ctx) throws InvalidInputDataException;
+
+        /** Called once the sender has closed the stream.
+         *
+         * @param aborted True if the sender called {@link OutgoingStream#abort()}, so the data is incomplete. */
+        void onClose(IncomingStream stream, boolean aborted, IMsgReadCtx ctx) throws InvalidInputDataException;
+    }
+
+    /** The per-connection streams. */
+    final class Data {
+        final ActiveConnection connection;
+        final Int2ObjectMap<OutgoingStream> outgoing = new Int2ObjectOpenHashMap<>();
+        final Int2ObjectMap<IncomingStream> incoming = new Int2ObjectOpenHashMap<>();
+        int nextStreamId;
+
+        /** The number of bytes sent by every outgoing stream since the last tick. */
+        long sentThisTick;
+
+        Data(ActiveConnection connection) {
+            this.connection = connection;
+        }
+
+        /** Called by {@link BufferedConnection#tickWrite()}. */
+        void tick() {
+            sentThisTick = 0;
+            ObjectIterator<OutgoingStream> iterator = outgoing.values().iterator();
+            while (iterator.hasNext()) {
+                if (iterator.next().drain()) {
+                    iterator.remove();
+                }
+            }
+        }
+
+        /** Called by {@link ActiveConnection#abortStreams()}. */
+        void abort() {
+            for (OutgoingStream stream : outgoing.values()) {
+                stream.onCancel();
+            }
+            outgoing.clear();
+            if (incoming.isEmpty()) {
+                return;
+            }
+            List<IncomingStream> streams = new ArrayList<>(incoming.values());
+            incoming.clear();
+            IMsgReadCtx ctx = new MessageContext.Read(connection, netIdClose);
+            for (IncomingStream stream : streams) {
+                try {
+                    stream.receiver.onClose(stream, true, ctx);
+                } catch (InvalidInputDataException e) {
+                    // There's no connection left to disconnect
+                    LibNetworkStack.LOGGER.warn("Failed to abort " + stream, e);
+                }
+            }
+        }
+
+        long tickBudget() {
+            if (connection instanceof BufferedConnection buffered) {
+                int max = buffered.getEffectiveMaxBandwidth();
+                if (max != Integer.MAX_VALUE) {
+                    return max / BufferedConnection.TICKS_PER_SECOND;
+                }
+            }
+            return Long.MAX_VALUE;
+        }
+    }
+
+    /** The sending side of a single stream. Closing this sends everything that has been written so far, and then
+     * tells the receiver that the stream has finished. This is not thread safe, and must only be used on the thread
+     * that ticks the connection. */
+    public final class OutgoingStream extends OutputStream {
+        private final Data data;
+        private final int id;
+        private final NetByteBuf pending = NetByteBuf.buffer();
+        private long credit = WINDOW_SIZE;
+        private long sentBytes;
+        private boolean closing, finished, cancelled;
+
+        OutgoingStream(Data data, int id) {
+            this.data = data;
+            this.id = id;
+        }
+
+        @Override
+        public void write(int b) {
+            checkOpen();
+            pending.writeByte(b);
+            flush();
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            checkOpen();
+            pending.writeBytes(b, off, len);
+            flush();
+        }
+
+        /** Writes all of the readable bytes of the given buffer, without changing it's reader index. */
+        public void write(NetByteBuf buffer) {
+            checkOpen();
+            pending.writeBytes(buffer, buffer.readerIndex(), buffer.readableBytes());
+            flush();
+        }
+
+        private void checkOpen() {
+            if (closing) {
+                throw new IllegalStateException("Cannot write to " + this + " as it has been closed!");
+            }
+        }
+
+        /** Sends as much of the pending data as the credit and bandwidth allow. This is also called automatically
+         * after every write, and every tick. */
+        @Override
+        public void flush() {
+            if (!finished && drain()) {
+                data.outgoing.remove(id);
+            }
+        }
+
+        /** Closes this stream once all of the pending data has been sent. */
+        @Override
+        public void close() {
+            if (!closing) {
+                closing = true;
+                flush();
+            }
+        }
+
+        /** Discards all of the pending data, and tells the receiver that the stream was aborted. */
+        public void abort() {
+            if (finished) {
+                return;
+            }
+            closing = true;
+            pending.clear();
+            finish(true);
+            data.outgoing.remove(id);
+        }
+
+        /** @return True if this has finished (either because it was closed and everything was sent, because it was
+         *         aborted, or because the receiver cancelled it). */
+        boolean drain() {
+            if (finished) {
+                return true;
+            }
+            long budget = data.tickBudget();
+            // This can go over the budget by up to a single chunk, so that tiny budgets can't stop the stream
+            while (pending.isReadable() && credit > 0 && data.sentThisTick < budget) {
+                int length = (int) Math.min(Math.min(pending.readableBytes(), CHUNK_SIZE), credit);
+                netIdData.send(data.connection, (buffer, ctx) -> {
+                    buffer.writeVarUnsignedInt(id);
+                    buffer.writeBytes(pending, length);
+                });
+                credit -= length;
+                sentBytes += length;
+                data.sentThisTick += length;
+            }
+            pending.discardSomeReadBytes();
+            if (closing && !pending.isReadable()) {
+                finish(false);
+                return true;
+            }
+            return false;
+        }
+
+        private void finish(boolean aborted) {
+            finished = true;
+            pending.release();
+            if (!cancelled) {
+                netIdClose.send(data.connection, (buffer, ctx) -> {
+                    buffer.writeVarUnsignedInt(id);
+                    buffer.writeBoolean(aborted);
+                });
+            }
+        }
+
+        void onCredit(int bytes) {
+            credit += bytes;
+            flush();
+        }
+
+        void onCancel() {
+            cancelled = true;
+            closing = true;
+            if (!finished) {
+                finish(true);
+            }
+        }
+
+        /** @return The number of bytes which have been written, but haven't been sent yet. */
+        public int getPendingBytes() {
+            return finished ? 0 : pending.readableBytes();
+        }
+
+        /** @return The number of bytes that can be sent before the receiver needs to give us more credit. */
+        public long getCredit() {
+            return credit;
+        }
+
+        /** @return The total number of bytes sent. */
+        public long getSentBytes() {
+            return sentBytes;
+        }
+
+        /** @return True if the receiver cancelled this stream (either in it's {@link IStreamOpenHandler}, or with
+         *         {@link IncomingStream#cancel()}), or if the connection was closed. */
+        public boolean isCancelled() {
+            return cancelled;
+        }
+
+        /** @return True if this stream has been closed and everything has been sent, or it has been aborted or
+         *         cancelled. */
+        public boolean isFinished() {
+            return finished;
+        }
+
+        @Override
+        public String toString() {
+            return "OutgoingStream " + id + " of " + NetStream.this;
+        }
+    }
+
+    /** The receiving side of a single stream. */
+    public final class IncomingStream {
+        private final Data data;
+        private final int id;
+        private IStreamReceiver receiver;
+        private boolean autoCredit = true;
+        private boolean cancelled;
+
+        /** The number of bytes received but not consumed, which must never be larger than the credit that we have
+         * given the sender. */
+        private long unconsumed;
+
+        /** The number of bytes consumed since credit was last given back to the sender. */
+        private int consumedSinceCredit;
+        private long receivedBytes;
+
+        IncomingStream(Data data, int id) {
+            this.data = data;
+            this.id = id;
+        }
+
+        /** Sets whether the data given to {@link IStreamReceiver#onData(IncomingStream, NetByteBuf, IMsgReadCtx)} is
+         * counted as consumed as soon as it returns (which is the default). If this is false then
+         * {@link #consumed(int)} must be called instead, which allows the receiver to slow down the sender if it's
+         * processing the data over multiple ticks. */
+        public void setAutoCredit(boolean autoCredit) {
+            this.autoCredit = autoCredit;
+        }
+
+        /** Tells the sender that the given number of bytes have been processed, so it may send that many more. */
+        public void consumed(int bytes) {
+            if (bytes < 0 || bytes > unconsumed) {
+                throw new IllegalArgumentException(
+                    "Cannot consume " + bytes + " bytes, as only " + unconsumed + " are unconsumed!"
+                );
+            }
+            unconsumed -= bytes;
+            consumedSinceCredit += bytes;
+            if (consumedSinceCredit >= CREDIT_BATCH && !cancelled && data.incoming.get(id) == this) {
+                int credit = consumedSinceCredit;
+                consumedSinceCredit = 0;
+                netIdCredit.send(data.connection, (buffer, ctx) -> {
+                    buffer.writeVarUnsignedInt(id);
+                    buffer.writeVarUnsignedInt(credit);
+                });
+            }
+        }
+
+        /** Tells the sender to stop sending this stream. No more data will be received after this. This may also be
+         * called from {@link IStreamOpenHandler#onOpen(IncomingStream, NetByteBuf, IMsgReadCtx)}. */
+        public void cancel() {
+            if (cancelled) {
+                return;
+            }
+            cancelled = true;
+            // Not in the map yet if this is called by the open handler
+            if (data.incoming.get(id) == this) {
+                data.incoming.remove(id);
+            } else if (receiver != null) {
+                // Already closed
+                return;
+            }
+            netIdCancel.send(data.connection, (buffer, ctx) -> buffer.writeVarUnsignedInt(id));
+        }
+
+        /** @return The total number of bytes received. */
+        public long getReceivedBytes() {
+            return receivedBytes;
+        }
+
+        void onData(NetByteBuf buffer, IMsgReadCtx ctx) throws InvalidInputDataException {
+            int length = buffer.readableBytes();
+            unconsumed += length;
+            receivedBytes += length;
+            if (unconsumed > WINDOW_SIZE) {
+                throw new InvalidInputDataException(
+                    "The sender of " + this + " sent " + unconsumed + " bytes more than the window size allows!"
+                );
+            }
+            receiver.onData(this, buffer, ctx);
+            if (autoCredit && data.incoming.get(id) == this) {
+                consumed(length);
+            }
+        }
+
+        @Override
+        public String toString() {
+            return "IncomingStream " + id + " of " + NetStream.this;
+        }
+    }
+
+    private final ParentNetId parent;
+    private final NetIdData netIdOpen;
+    private final NetIdData netIdData;
+    private final NetIdData netIdClose;
+    private final NetIdData netIdCredit;
+    private final NetIdData netIdCancel;
+
+    @Nullable
+    private IStreamOpenHandler openHandler;
+
+    public NetStream(ParentNetId parent, String name) {
+        this.parent = parent.child(name);
+        netIdOpen = this.parent.idData("open").setReceiver(this::receiveOpen);
+        netIdData = this.parent.idData("data").setReceiver(this::receiveData);
+        netIdClose = this.parent.idData("close").setReceiver(this::receiveClose);
+        netIdCredit = this.parent.idData("credit").setReceiver(this::receiveCredit);
+        netIdCancel = this.parent.idData("cancel").setReceiver(this::receiveCancel);
+    }
+
+    public NetStream setReceiver(@Nullable IStreamOpenHandler handler) {
+        this.openHandler = handler;
+        return this;
+    }
+
+    /** Opens a new stream, without any header. */
+    public OutgoingStream open(ActiveConnection connection) {
+        return open(connection, null);
+    }
+
+    /** Opens a new stream.
+     *
+     * @param headerWriter Writes the data that is passed to the other side's {@link IStreamOpenHandler}, for example
+     *            the name and size of the payload. */
+    public OutgoingStream open(ActiveConnection connection, @Nullable NetIdData.IMsgDataWriter headerWriter) {
+        Data data = connection.getStreamData(this);
+        int id = data.nextStreamId;
+        data.nextStreamId = (id + 1) & Integer.MAX_VALUE;
+        OutgoingStream stream = new OutgoingStream(data, id);
+        data.outgoing.put(id, stream);
+        netIdOpen.send(connection, (buffer, ctx) -> {
+            buffer.writeVarUnsignedInt(id);
+            if (headerWriter != null) {
+                headerWriter.write(buffer, ctx);
+            }
+        });
+        return stream;
+    }
+
+    private void receiveOpen(NetByteBuf buffer, IMsgReadCtx ctx) throws InvalidInputDataException {
+        Data data = ctx.getConnection().getStreamData(this);
+        int id = buffer.readVarUnsignedInt();
+        if (data.incoming.containsKey(id)) {
+            throw new InvalidInputDataException(
+                "The sender opened stream " + id + " of " + this + " while it was still open!"
+            );
+        }
+        IncomingStream stream = new IncomingStream(data, id);
+        // The stream is only added once it has a receiver, so a failing handler can't leave half of a stream behind
+        IStreamReceiver receiver = openHandler == null ? null : openHandler.onOpen(stream, buffer, ctx);
+        if (receiver == null) {
+            stream.cancel();
+        } else if (!stream.cancelled) {
+            stream.receiver = receiver;
+            data.incoming.put(id, stream);
+        }
+    }
+
+    private void receiveData(NetByteBuf buffer, IMsgReadCtx ctx) throws InvalidInputDataException {
+        Data data = ctx.getConnection().getStreamData(this);
+        IncomingStream stream = data.incoming.get(buffer.readVarUnsignedInt());
+        // Data for cancelled streams may still be on it's way
+        if (stream != null) {
+            stream.onData(buffer, ctx);
+        }
+    }
+
+    private void receiveClose(NetByteBuf buffer, IMsgReadCtx ctx) throws InvalidInputDataException {
+        Data data = ctx.getConnection().getStreamData(this);
+        int id = buffer.readVarUnsignedInt();
+        boolean aborted = buffer.readBoolean();
+        IncomingStream stream = data.incoming.remove(id);
+        if (stream != null) {
+            stream.receiver.onClose(stream, aborted, ctx);
+        }
+    }
+
+    private void receiveCredit(NetByteBuf buffer, IMsgReadCtx ctx) throws InvalidInputDataException {
+        Data data = ctx.getConnection().getStreamData(this);
+        int id = buffer.readVarUnsignedInt();
+        int credit = buffer.readVarUnsignedInt();
+        if (credit <= 0) {
+            throw new InvalidInputDataException("Invalid credit " + credit);
+        }
+        OutgoingStream stream = data.outgoing.get(id);
+        // The stream may have finished already
+        if (stream != null) {
+            stream.onCredit(credit);
+        }
+    }
+
+    private void receiveCancel(NetByteBuf buffer, IMsgReadCtx ctx) throws InvalidInputDataException {
+        Data data = ctx.getConnection().getStreamData(this);
+        OutgoingStream stream = data.outgoing.remove(buffer.readVarUnsignedInt());
+        if (stream != null) {
+            stream.onCancel();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "NetStream " + parent;
+    }
+}
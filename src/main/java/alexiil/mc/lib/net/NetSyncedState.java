@@ -0,0 +1,232 @@
+/*
+ * Copyright (c) 2019 AlexIIL
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+package alexiil.mc.lib.net;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.WeakHashMap;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+import java.util.function.ObjIntConsumer;
+import java.util.function.Predicate;
+import java.util.function.ToIntFunction;
+
+import javax.annotation.Nullable;
+
+/** A set of fields of some object (usually a block entity) which are kept in sync over a connection, by only sending
+ * the fields that have changed since the last time {@link #send(ActiveConnection, Object)} was called for that object
+ * and connection.
+ * <p>
+ * Every connection keeps a snapshot of the values that were last sent for each object. The first send for an object
+ * (or the first after {@link #forget(ActiveConnection, Object)}) sends every field, and later sends only write a
+ * bitmask of the changed fields followed by their new values. Nothing is sent if no fields have changed.
+ * <p>
+ * Field values are compared with {@link Objects#equals(Object, Object)}, and the snapshot keeps the value returned by
+ * the getter, so getters must return immutable values (or copies) rather than objects which are modified later.
+ * <p>
+ * The underlying {@link NetIdDataK} must keep {@link NetIdBase#MAXIMUM_PRIORITY}, as a delta that was dropped by a
+ * {@link BufferedConnection} would leave the other side out of sync. */
+public final class NetSyncedState<T> {
+
+    /** The maximum number of fields, as the changed field mask is written as a single int. */
+    public static final int MAXIMUM_FIELDS = 32;
+
+    @FunctionalInterface
+    public interface IFieldWriter<V> {
+        void write(V value, NetByteBuf buffer, IMsgWriteCtx ctx);
+    }
+
+    @FunctionalInterface
+    public interface IFieldReader<V> {
+        V read(NetByteBuf buffer, IMsgReadCtx ctx) throws InvalidInputDataException;
+    }
+
+    @FunctionalInterface
+    public interface IChangeListener<T> {
+        /** Called after the changed fields have been applied to the object.
+         *
+         * @param changedFields A bitmask of the fields that were received, in the order that they were added.
+         * @param full True if every field was sent, rather than just the changed ones. */
+        void onChanged(T obj, int changedFields, boolean full, IMsgReadCtx ctx) throws InvalidInputDataException;
+    }
+
+    static final class Field<T, V> {
+        final String name;
+        final Function<T, V> getter;
+        final BiConsumer<T, V> setter;
+        final IFieldWriter<V> writer;
+        final IFieldReader<V> reader;
+
+        Field(
+            String name, Function<T, V> getter, BiConsumer<T, V> setter, IFieldWriter<V> writer, IFieldReader<V> reader
+        ) {
+            this.name = name;
+            this.getter = getter;
+            this.setter = setter;
+            this.writer = writer;
+            this.reader = reader;
+        }
+
+        @SuppressWarnings("unchecked")
+        void write(Object value, NetByteBuf buffer, IMsgWriteCtx ctx) {
+            writer.write((V) value, buffer, ctx);
+        }
+
+        void read(T obj, NetByteBuf buffer, IMsgReadCtx ctx) throws InvalidInputDataException {
+            setter.accept(obj, reader.read(buffer, ctx));
+        }
+    }
+
+    /** The per-connection snapshots. */
+    final class Data {
+        final Map<T, Object[]> snapshots = new WeakHashMap<>();
+    }
+
+    private final NetIdDataK<T> netId;
+    private final List<Field<T, ?>> fields = new ArrayList<>();
+    private boolean fieldsUsed;
+
+    @Nullable
+    private IChangeListener<T> changeListener;
+
+    public NetSyncedState(ParentNetIdSingle<T> parent, String name) {
+        this.netId = parent.idData(name).setReceiver(this::receive);
+    }
+
+    /** @return The {@link NetIdDataK} that the changes are sent with, for changing its flags. */
+    public NetIdDataK<T> getNetId() {
+        return netId;
+    }
+
+    public NetSyncedState<T> setChangeListener(@Nullable IChangeListener<T> listener) {
+        this.changeListener = listener;
+        return this;
+    }
+
+    public <V> NetSyncedState<T> field(
+        String name, Function<T, V> getter, BiConsumer<T, V> setter, IFieldWriter<V> writer, IFieldReader<V> reader
+    ) {
+        if (fieldsUsed) {
+            throw new IllegalStateException(
+                "Cannot add the field '" + name + "' as " + this + " has already been used!"
+            );
+        }
+        if (fields.size() >= MAXIMUM_FIELDS) {
+            throw new IllegalStateException("Cannot add more than " + MAXIMUM_FIELDS + " fields to " + this + "!");
+        }
+        for (Field<T, ?> field : fields) {
+            if (field.name.equals(name)) {
+                throw new IllegalArgumentException("Duplicate field name '" + name + "' in " + this + "!");
+            }
+        }
+        fields.add(new Field<>(name, getter, setter, writer, reader));
+        return this;
+    }
+
+    /** Adds a field which is written with {@link NetByteBuf#writeVarInt(int)}. */
+    public NetSyncedState<T> intField(String name, ToIntFunction<T> getter, ObjIntConsumer<T> setter) {
+        return field(
+            name, getter::applyAsInt, setter::accept, (v, buffer, ctx) -> buffer.writeVarInt(v),
+            (buffer, ctx) -> buffer.readVarInt()
+        );
+    }
+
+    /** Adds a field which is packed into a single bit with {@link NetByteBuf#writeBoolean(boolean)}. */
+    public NetSyncedState<T> booleanField(String name, Predicate<T> getter, BiConsumer<T, Boolean> setter) {
+        return field(
+            name, getter::test, setter, (v, buffer, ctx) -> buffer.writeBoolean(v),
+            (buffer, ctx) -> buffer.readBoolean()
+        );
+    }
+
+    /** Adds a field which is written with {@link NetByteBuf#writeEnumConstant(Enum)}. */
+    public <E extends Enum<E>> NetSyncedState<T> enumField(
+        String name, Class<E> enumClass, Function<T, E> getter, BiConsumer<T, E> setter
+    ) {
+        return field(
+            name, getter, setter, (v, buffer, ctx) -> buffer.writeEnumConstant(v),
+            (buffer, ctx) -> buffer.readEnumConstant(enumClass)
+        );
+    }
+
+    /** Sends every field of the given object which has changed since the last call to this method for the same
+     * connection and object. */
+    public void send(ActiveConnection connection, T obj) {
+        fieldsUsed = true;
+        if (netId.getDefaultPriority() != NetIdBase.MAXIMUM_PRIORITY) {
+            throw new IllegalStateException(
+                "The priority of " + netId + " must be MAXIMUM_PRIORITY, as dropped deltas can't be detected!"
+            );
+        }
+        Data data = connection.getSyncedStateData(this);
+        Object[] previous = data.snapshots.get(obj);
+        int count = fields.size();
+        Object[] current = new Object[count];
+        int changed = 0;
+        for (int i = 0; i < count; i++) {
+            Object value = fields.get(i).getter.apply(obj);
+            current[i] = value;
+            if (previous == null || !Objects.equals(previous[i], value)) {
+                changed |= 1 << i;
+            }
+        }
+        if (changed == 0) {
+            return;
+        }
+        final boolean full = previous == null;
+        final int mask = changed;
+        netId.send(connection, obj, (o, buffer, ctx) -> {
+            buffer.writeBoolean(full);
+            if (!full) {
+                buffer.writeFixedBits(mask, count);
+            }
+            for (int i = 0; i < count; i++) {
+                if ((mask & (1 << i)) != 0) {
+                    fields.get(i).write(current[i], buffer, ctx);
+                }
+            }
+            // Only once everything has been written, as the next delta assumes that the other side has this state
+            data.snapshots.put(obj, current);
+        });
+    }
+
+    /** Forgets the snapshot of the given object for the given connection, so the next
+     * {@link #send(ActiveConnection, Object)} will send every field. This should be called whenever the other side may
+     * have lost the object's state (for example when a chunk is unloaded on the client). */
+    public void forget(ActiveConnection connection, T obj) {
+        connection.getSyncedStateData(this).snapshots.remove(obj);
+    }
+
+    /** Sends every field of the given object, regardless of whether they have changed. */
+    public void sendFull(ActiveConnection connection, T obj) {
+        forget(connection, obj);
+        send(connection, obj);
+    }
+
+    private void receive(T obj, NetByteBuf buffer, IMsgReadCtx ctx) throws InvalidInputDataException {
+        fieldsUsed = true;
+        int count = fields.size();
+        boolean full = buffer.readBoolean();
+        int mask = full ? (int) ((1L << count) - 1) : buffer.readFixedBits(count);
+        for (int i = 0; i < count; i++) {
+            if ((mask & (1 << i)) != 0) {
+                fields.get(i).read(obj, buffer, ctx);
+            }
+        }
+        if (changeListener != null) {
+            changeListener.onChanged(obj, mask, full, ctx);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "NetSyncedState " + netId;
+    }
+}
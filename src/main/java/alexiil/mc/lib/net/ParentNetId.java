@@ -69,6 +69,12 @@ public final class ParentNetId extends ParentNetIdBase {
         return new NetIdSignal(this, name);
     }
 
+    /** Returns a new {@link NetStream} (with a new child of this as it's parent), for sending payloads that are too
+     * large to fit in a single packet. */
+    public NetStream idStream(String name) {
+        return new NetStream(this, name);
+    }
+
     /** Returns a new {@link ParentNetId} with this as it's child. This is mostly useful for organising different
      * packets or mods from the root node. */
     public ParentNetId child(String childName) {
@@ -41,6 +41,12 @@ public abstract class ParentNetIdDuel<Parent, T> extends ParentNetIdSingle<T> {
         super.writeContextCall(buffer, ctx, value);
     }
 
+    @Override
+    final void writeContextFast(NetByteBuf buffer, IMsgWriteCtx ctx, T value) {
+        parent.writeContextFast(buffer, ctx, extractParent(value));
+        writeContext0(buffer, ctx, value);
+    }
+
     @Override
     protected void writeDynamicContext(
         CheckingNetByteBuf buffer, IMsgWriteCtx ctx, T value, List<TreeNetIdBase> resolvedPath
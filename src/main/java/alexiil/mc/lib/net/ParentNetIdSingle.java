@@ -79,6 +79,11 @@ public abstract class ParentNetIdSingle<T> extends ParentNetIdBase {
         return new NetIdDataK<>(this, name, dataLength);
     }
 
+    /** @see NetSyncedState */
+    public NetSyncedState<T> idSyncedState(String name) {
+        return new NetSyncedState<>(this, name);
+    }
+
     public NetIdSignalK<T> idSignal(String name) {
         return new NetIdSignalK<>(this, name);
     }
@@ -115,6 +120,12 @@ public abstract class ParentNetIdSingle<T> extends ParentNetIdBase {
         writeContext(buffer, ctx, value);
     }
 
+    /** Equivalent to {@link #writeContextCall(CheckingNetByteBuf, IMsgWriteCtx, Object)}, but for the fast write path
+     * which never writes type data. Only valid for ids whose path doesn't contain a dynamic parent. */
+    void writeContextFast(NetByteBuf buffer, IMsgWriteCtx ctx, T value) {
+        writeContext(buffer, ctx, value);
+    }
+
     protected void writeDynamicContext(
         CheckingNetByteBuf buffer, IMsgWriteCtx ctx, T value, List<TreeNetIdBase> resolvedPath
     ) {
@@ -0,0 +1,180 @@
+/*
+ * Copyright (c) 2019 AlexIIL
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+package alexiil.mc.lib.net;
+
+import java.util.function.Consumer;
+
+import io.netty.buffer.CompositeByteBuf;
+
+import it.unimi.dsi.fastutil.ints.Int2ObjectMap;
+import it.unimi.dsi.fastutil.ints.Int2ObjectOpenHashMap;
+
+/** Splits up packets which are larger than {@link BufferedConnection#maximumPacketSize()}, and re-assembles them on
+ * the other side.
+ * <p>
+ * Every part is written as {@link InternalMsgUtil#ID_INTERNAL_SPLIT_PACKET}, followed by the split ID, the total
+ * length of the packet, and the length of this part (all as var-uints), and then the data of the part itself. Parts
+ * of the same packet are always received in order, but parts of different packets may be interleaved (as they can be
+ * sent with different priorities). Neither side copies the data of the whole packet: the sender writes slices of the
+ * original packet, and the receiver joins slices of the received data together into a composite buffer. (Parts that
+ * only use a small amount of the data they were received in are copied instead, so that they don't keep the rest of
+ * it alive).
+ * <p>
+ * The receiving side is used by the decoding thread, but may be released by a different thread once the connection
+ * has been closed, so it's only accessed while synchronized on {@link #receiving}. */
+final class SplitPacketStage {
+
+    /** The maximum length of the header written in front of every part. */
+    static final int HEADER_LENGTH = 16;
+
+    /** The maximum total length that we accept, to stop a malicious sender from making us hold on to a huge amount of
+     * memory. This is a bit larger than the largest packet, as the packet's header is included. */
+    private static final int MAXIMUM_LENGTH = TreeNetIdBase.MAXIMUM_PACKET_LENGTH + 64;
+
+    /** The maximum number of split packets that may be received at the same time. */
+    private static final int MAXIMUM_RECEIVING = 64;
+
+    /** The maximum sum of the total lengths of every split packet that is being received at the same time. */
+    private static final int MAXIMUM_RECEIVING_LENGTH = MAXIMUM_LENGTH * 2;
+
+    private static final class Receiving {
+        final int totalLength;
+        final CompositeByteBuf parts;
+
+        Receiving(int totalLength, CompositeByteBuf parts) {
+            this.totalLength = totalLength;
+            this.parts = parts;
+        }
+    }
+
+    /** Only used by the sending thread. */
+    private int nextSplitId;
+
+    /** Only used by the decoding thread, and by {@link #releaseReceiving()}. */
+    private final Int2ObjectMap<Receiving> receiving = new Int2ObjectOpenHashMap<>();
+
+    /** The sum of the {@link Receiving#totalLength} of every packet in {@link #receiving}. */
+    private int receivingLength;
+
+    /** True once {@link #releaseReceiving()} has been called, after which every part is ignored. */
+    private boolean released;
+
+    /** Splits the given packet into parts, each of which is at most maxLength bytes long (including their header).
+     *
+     * @param data The packet to split. This isn't released.
+     * @param partConsumer Called with every part in order. The parts are released after the consumer returns, so it
+     *            must retain them if it keeps them. */
+    void split(ActiveConnection connection, NetByteBuf data, int maxLength, Consumer<NetByteBuf> partConsumer) {
+        int splitId = nextSplitId;
+        nextSplitId = (nextSplitId + 1) & Integer.MAX_VALUE;
+        int total = data.readableBytes();
+        int maxPart = maxLength - HEADER_LENGTH;
+        if (maxPart <= 0) {
+            throw new IllegalStateException("The maximum packet size (" + maxLength + ") is too small to split into!");
+        }
+        int start = data.readerIndex();
+        for (int offset = 0; offset < total; offset += maxPart) {
+            int length = Math.min(maxPart, total - offset);
+            NetByteBuf header = connection.allocBuffer(HEADER_LENGTH);
+            header.writeVarUnsignedInt(InternalMsgUtil.ID_INTERNAL_SPLIT_PACKET);
+            header.writeVarUnsignedInt(splitId);
+            header.writeVarUnsignedInt(total);
+            header.writeVarUnsignedInt(length);
+            CompositeByteBuf composite = connection.getAllocator().compositeBuffer(2);
+            composite.addComponent(true, header);
+            composite.addComponent(true, data.retainedSlice(start + offset, length));
+            NetByteBuf part = NetByteBuf.asNetByteBuf(composite);
+            try {
+                partConsumer.accept(part);
+            } finally {
+                part.release();
+            }
+        }
+    }
+
+    /** Reads a single part (after it's {@link InternalMsgUtil#ID_INTERNAL_SPLIT_PACKET}).
+     *
+     * @return The complete packet if this was the last part, or null if more parts are needed. The caller must release
+     *         the returned buffer. */
+    NetByteBuf receive(ActiveConnection connection, NetByteBuf buffer) throws InvalidInputDataException {
+        int splitId = buffer.readVarUnsignedInt();
+        int total = buffer.readVarUnsignedInt();
+        int length = buffer.readVarUnsignedInt();
+        if (total <= 0 || total > MAXIMUM_LENGTH) {
+            throw new InvalidInputDataException("Invalid split packet length " + total);
+        }
+        if (length <= 0 || length > buffer.readableBytes()) {
+            throw new InvalidInputDataException(
+                "Invalid split packet part length " + length + " (only " + buffer.readableBytes() + " bytes left)"
+            );
+        }
+        synchronized (receiving) {
+            if (released) {
+                buffer.skipBytes(length);
+                return null;
+            }
+            return receive0(connection, buffer, splitId, total, length);
+        }
+    }
+
+    private NetByteBuf receive0(ActiveConnection connection, NetByteBuf buffer, int splitId, int total, int length)
+        throws InvalidInputDataException {
+        Receiving packet = receiving.get(splitId);
+        if (packet == null) {
+            if (receiving.size() >= MAXIMUM_RECEIVING) {
+                throw new InvalidInputDataException("Too many split packets are being received at once!");
+            }
+            if (receivingLength + total > MAXIMUM_RECEIVING_LENGTH) {
+                throw new InvalidInputDataException(
+                    "Too much split packet data is being received at once! (" + receivingLength + " bytes, and "
+                        + total + " more)"
+                );
+            }
+            packet = new Receiving(total, connection.getAllocator().compositeBuffer(Integer.MAX_VALUE));
+            receiving.put(splitId, packet);
+            receivingLength += total;
+        } else if (packet.totalLength != total) {
+            throw new InvalidInputDataException(
+                "Split packet " + splitId + " changed length from " + packet.totalLength + " to " + total
+            );
+        }
+        int received = packet.parts.readableBytes() + length;
+        if (received > total) {
+            throw new InvalidInputDataException(
+                "Split packet " + splitId + " received " + received + " bytes, but it is only " + total + " long!"
+            );
+        }
+        if (length * 2 < buffer.capacity()) {
+            // A slice would keep the whole of the received data alive until the packet is complete
+            NetByteBuf copy = connection.allocBuffer(length);
+            copy.writeBytes(buffer, length);
+            packet.parts.addComponent(true, copy);
+        } else {
+            packet.parts.addComponent(true, buffer.readRetainedSlice(length));
+        }
+        if (received < total) {
+            return null;
+        }
+        receiving.remove(splitId);
+        receivingLength -= total;
+        return NetByteBuf.asNetByteBuf(packet.parts);
+    }
+
+    /** Releases every partially received packet, and ignores every part received afterwards. This may be called from
+     * any thread. */
+    void releaseReceiving() {
+        synchronized (receiving) {
+            released = true;
+            for (Receiving packet : receiving.values()) {
+                packet.parts.release();
+            }
+            receiving.clear();
+            receivingLength = 0;
+        }
+    }
+}
@@ -7,6 +7,8 @@
  */
 package alexiil.mc.lib.net;
 
+import java.util.concurrent.atomic.AtomicInteger;
+
 /** The base class for all networking ID's. Most of the time you should use one of the subclasses: either the parent
  * node {@link ParentNetIdBase}, or the leaf node {@link NetIdBase}. */
 public abstract class TreeNetIdBase {
@@ -18,6 +20,8 @@ public abstract class TreeNetIdBase {
 
     static final int MAXIMUM_PACKET_LENGTH = 0x1_00_00_00;
 
+    private static final AtomicInteger NEXT_STATIC_INDEX = new AtomicInteger();
+
     /** The name - must be unique to the parent that uses it, so for top level mod packets this MUST include the
      * modid. */
     public final String name;
@@ -36,6 +40,12 @@ public abstract class TreeNetIdBase {
     final boolean pathContainsDynamicParent;
     final NetIdPath path;
 
+    /** A dense index (starting at 0) shared between every ID with a static {@link #path}, used by
+     * {@link ActiveConnection} to look up write ID's with an array rather than hashing the path. -1 if the path
+     * contains a dynamic parent (or this is only used for reading), as then the path isn't known until it's
+     * written. */
+    final int staticIndex;
+
     public TreeNetIdBase(ParentNetIdBase parent, String name, int thisLength) {
         this.parent = parent;
         this.name = name;
@@ -71,6 +81,15 @@ public abstract class TreeNetIdBase {
             path = parent.path.withChild(this);
             pathContainsDynamicParent = parent.pathContainsDynamicParent || this instanceof DynamicNetId;
         }
+
+        if (
+            pathContainsDynamicParent || this instanceof ResolvedParentNetId || this instanceof ResolvedDynamicNetId
+                || this instanceof ResolvedNetId
+        ) {
+            staticIndex = -1;
+        } else {
+            staticIndex = NEXT_STATIC_INDEX.getAndIncrement();
+        }
     }
 
     @Override
@@ -7,10 +7,13 @@
  */
 package alexiil.mc.lib.net.impl;
 
+import java.util.concurrent.atomic.AtomicBoolean;
+
 import net.minecraft.client.MinecraftClient;
 import net.minecraft.client.network.ClientPlayNetworkHandler;
 import net.minecraft.client.render.RenderTickCounter;
 import net.minecraft.entity.player.PlayerEntity;
+import net.minecraft.network.ClientConnection;
 import net.minecraft.network.packet.Packet;
 import net.minecraft.network.packet.c2s.play.CustomPayloadC2SPacket;
 import net.minecraft.util.Util;
@@ -21,23 +24,14 @@ import alexiil.mc.lib.net.mixin.impl.MinecraftClientMixin;
 
 public class ActiveClientConnection extends ActiveMinecraftConnection {
 
-    private static final int DATAPOINT_SATURATION_COUNT = 30;
-
     public final ClientPlayNetworkHandler netHandler;
 
-    private long currentServerTick = Long.MIN_VALUE, prevServerTick;
-    private long currentServerSendTime, prevServerSendTime;
-    private long currentServerReceiveTime, prevServerReceiveTime;
-
-    private double averageSendTimeDelta;
-    private double averageReceiveTimeDelta;
+    private long currentServerTick = Long.MIN_VALUE;
 
-    private int datapointCount;
+    private final ServerTickClock serverTickClock = new ServerTickClock();
 
-    private long lastClientMs = Long.MIN_VALUE;
-
-    private long smoothedServerTickValue = Long.MIN_VALUE;
-    private double smoothedServerTickDelta = 0;
+    /** True if a drain of the receive queue has been passed to the client thread, but hasn't started yet. */
+    final AtomicBoolean drainScheduled = new AtomicBoolean();
 
     public ActiveClientConnection(ClientPlayNetworkHandler netHandler) {
         this.netHandler = netHandler;
@@ -60,6 +54,11 @@ public class ActiveClientConnection extends ActiveMinecraftConnection {
         netHandler.sendPacket(packet);
     }
 
+    @Override
+    protected ClientConnection getUnderlyingConnection() {
+        return netHandler.getConnection();
+    }
+
     @Override
     public EnumNetSide getNetSide() {
         return EnumNetSide.CLIENT;
@@ -79,43 +78,8 @@ public class ActiveClientConnection extends ActiveMinecraftConnection {
     }
 
     void receiveServerTick(long tick, long sendTime) {
-        if (lastClientMs == Long.MIN_VALUE) {
-            lastClientMs = Util.getMeasuringTimeMs();
-        }
-
-        prevServerTick = currentServerTick;
-        prevServerSendTime = currentServerSendTime;
-        prevServerReceiveTime = currentServerReceiveTime;
-
         currentServerTick = tick;
-        currentServerSendTime = sendTime;
-        currentServerReceiveTime = lastClientMs;
-
-        if (datapointCount < 1) {
-            datapointCount = 1;
-
-            smoothedServerTickValue = tick;
-            smoothedServerTickDelta = 0;
-
-            return;
-        } else if (datapointCount == 1) {
-            datapointCount++;
-
-            averageSendTimeDelta = currentServerSendTime - prevServerSendTime;
-            averageReceiveTimeDelta = currentServerReceiveTime - prevServerReceiveTime;
-
-            return;
-        } else if (datapointCount < DATAPOINT_SATURATION_COUNT) {
-            datapointCount++;
-        }
-
-        double divisor = DATAPOINT_SATURATION_COUNT;
-
-        averageSendTimeDelta
-            = (averageSendTimeDelta * datapointCount + currentServerSendTime - prevServerSendTime) / divisor;
-
-        averageReceiveTimeDelta
-            = (averageReceiveTimeDelta * datapointCount + currentServerReceiveTime - prevServerReceiveTime) / divisor;
+        serverTickClock.onServerTick(tick, sendTime, Util.getMeasuringTimeMs());
     }
 
     /** Called by {@link MinecraftClientMixin} (<strong>ONLY</strong>) when minecraft increases it's
@@ -125,25 +89,7 @@ public class ActiveClientConnection extends ActiveMinecraftConnection {
      * @param milliseconds The value of {@link Util#getMeasuringTimeMs()} that was passed into
      *            {@link RenderTickCounter#beginRenderTick(long)}. */
     public void onIncrementMinecraftTickCounter(long milliseconds) {
-        if (datapointCount <= 0) {
-            lastClientMs = milliseconds;
-            return;
-        }
-
-        if (datapointCount == 1) {
-            // The average's won't have populated so there's not much we can do
-            lastClientMs = milliseconds;
-            return;
-        }
-
-        // Now we have an average of the tick gap and network gap
-        // For now just ignore the receive time deltas
-
-        // First try: Very basic, used to test everything
-
-        smoothedServerTickValue = currentServerTick;
-        smoothedServerTickDelta = 0;
-        return;
+        serverTickClock.update(milliseconds);
     }
 
     /** Gets the last received tick that the server has sent. It is never normally a good idea to use this method
@@ -160,12 +106,18 @@ public class ActiveClientConnection extends ActiveMinecraftConnection {
      *         but a best-effort is made to try and keep the rate that this changes roughly equal to the server tick
      *         speed, rather than being solely based on the network connection. */
     public long getSmoothedServerTickValue() {
-        return smoothedServerTickValue;
+        return serverTickClock.getTickValue();
     }
 
     /** @return A value between 0 and 1 (to be used along side {@link #getSmoothedServerTickValue()}) which is analogous
      *         to {@link MinecraftClient#getTickDelta()}. */
     public double getSmoothedServerTickDelta() {
-        return smoothedServerTickDelta;
+        return serverTickClock.getTickDelta();
+    }
+
+    /** @return The estimator behind {@link #getSmoothedServerTickValue()}, which also exposes the estimated server tick
+     *         rate and jitter. */
+    public ServerTickClock getServerTickClock() {
+        return serverTickClock;
     }
 }
@@ -7,15 +7,24 @@
  */
 package alexiil.mc.lib.net.impl;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import io.netty.channel.Channel;
+
 import net.minecraft.entity.player.PlayerEntity;
+import net.minecraft.network.ClientConnection;
 import net.minecraft.network.packet.Packet;
 import net.minecraft.util.Identifier;
 
 import alexiil.mc.lib.net.BufferedConnection;
 import alexiil.mc.lib.net.EnumNetSide;
+import alexiil.mc.lib.net.InternalMsgUtil;
 import alexiil.mc.lib.net.LibNetworkStack;
 import alexiil.mc.lib.net.NetByteBuf;
 import alexiil.mc.lib.net.NetIdData;
+import alexiil.mc.lib.net.mixin.impl.ClientConnectionAccessor;
 
 /** A connection to the other side - this is either an {@link ActiveClientConnection} or an
  * {@link ActiveServerConnection}. */
@@ -24,7 +33,12 @@ public abstract class ActiveMinecraftConnection extends BufferedConnection {
     // As this is networking we need to ensure that we send as little data as possible
     // Which is why we use the full domain, and a fully descriptive path for it
     // (What?)
-    public static final Identifier PACKET_ID = new Identifier("libnetworkstack", "data");
+    /** The custom payload channel that LNS sends everything on. This includes the
+     * {@link InternalMsgUtil#PROTOCOL_VERSION}, and minecraft ignores custom payloads on channels that it doesn't
+     * know about, so if the other side has a different version of LNS then neither side receives anything (rather
+     * than disconnecting when the first unknown internal ID is read). */
+    public static final Identifier PACKET_ID
+        = new Identifier("libnetworkstack", "data/v" + InternalMsgUtil.PROTOCOL_VERSION);
 
     private static final NetIdData NET_ID_COMPACT_PACKET = //
         McNetworkStack.ROOT.idData("libnetworkstack:compact_id", 4)//
@@ -55,6 +69,11 @@ public abstract class ActiveMinecraftConnection extends BufferedConnection {
     private int theirCustomId = NET_ID_NOT_OPTIMISED;
     private boolean hasSentCustomId;
 
+    /** True while {@link #tickFlushDeferred()} is running. This (and {@link #deferredPackets}) are only used while
+     * holding {@link #getQueueLock()}, as {@link #onFlushTimer()} can send packets from the netty thread. */
+    private boolean deferPackets;
+    private final List<Packet<?>> deferredPackets = new ArrayList<>();
+
     public ActiveMinecraftConnection() {
         super(McNetworkStack.ROOT, /* Drop after 3 seconds by default */ 3 * 20);
     }
@@ -74,19 +93,74 @@ public abstract class ActiveMinecraftConnection extends BufferedConnection {
         if (COMPACT_PACKETS && theirCustomId != NET_ID_NOT_OPTIMISED) {
             packet = toCompactPacket(theirCustomId, data);
         } else {
+            // The packet keeps the buffer (and never releases it), which keepsSentData allows
             data.retain();
             packet = toNormalPacket(data);
         }
-        sendPacket(packet);
+        synchronized (getQueueLock()) {
+            // Anything sent after a deferred flush (but before the main thread sends the deferred packets) has to
+            // wait as well, otherwise it would overtake them
+            if (deferPackets || !deferredPackets.isEmpty()) {
+                deferredPackets.add(packet);
+            } else {
+                sendPacket(packet);
+            }
+        }
     }
 
+    /** Minecraft's packets keep the data that they're given, so flushed packets are copied straight into a single
+     * unpooled buffer, rather than being joined together in a composite buffer that would need to be copied again. */
     @Override
-    public void tick() {
+    protected final boolean keepsSentData() {
+        return true;
+    }
+
+    @Override
+    public void tickWrite() {
         if (COMPACT_PACKETS && !hasSentCustomId && hasPackets()) {
             hasSentCustomId = true;
             sendCustomId();
         }
-        super.tick();
+        super.tickWrite();
+    }
+
+    /** Schedules the flush on the netty event loop of the underlying {@link ClientConnection}, which is the thread
+     * that would write the packets anyway. */
+    @Override
+    protected void scheduleFlush(long delayNanos) {
+        Channel channel = ((ClientConnectionAccessor) getUnderlyingConnection()).libnetworkstack_getChannel();
+        if (channel != null && channel.isOpen()) {
+            channel.eventLoop().schedule(this::onFlushTimer, delayNanos, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    /** Calls {@link #tickFlush()}, but stores the packets that it creates rather than sending them, so that they can
+     * be sent afterwards by {@link #sendDeferredPackets()} on the main thread. This is used to flush every server
+     * connection in parallel.
+     *
+     * @return The time (in nanoseconds) that the flush took. */
+    long tickFlushDeferred() {
+        long start = System.nanoTime();
+        synchronized (getQueueLock()) {
+            deferPackets = true;
+            try {
+                tickFlush();
+            } finally {
+                deferPackets = false;
+            }
+        }
+        return System.nanoTime() - start;
+    }
+
+    /** Sends every packet that was created by {@link #tickFlushDeferred()} (or by a flush that happened after it), in
+     * the order that they were created. */
+    void sendDeferredPackets() {
+        synchronized (getQueueLock()) {
+            for (Packet<?> packet : deferredPackets) {
+                sendPacket(packet);
+            }
+            deferredPackets.clear();
+        }
     }
 
     private void sendCustomId() {
@@ -105,4 +179,6 @@ public abstract class ActiveMinecraftConnection extends BufferedConnection {
     protected abstract Packet<?> toCompactPacket(int receiverId, NetByteBuf data);
 
     protected abstract void sendPacket(Packet<?> packet);
+
+    protected abstract ClientConnection getUnderlyingConnection();
 }
@@ -7,22 +7,39 @@
  */
 package alexiil.mc.lib.net.impl;
 
+import java.util.IdentityHashMap;
+import java.util.Map;
+
 import net.minecraft.entity.player.PlayerEntity;
+import net.minecraft.network.ClientConnection;
 import net.minecraft.network.packet.Packet;
 import net.minecraft.network.packet.s2c.play.CustomPayloadS2CPacket;
 import net.minecraft.server.network.ServerPlayNetworkHandler;
 import net.minecraft.server.network.ServerPlayerEntity;
+import net.minecraft.server.world.ServerWorld;
 import net.minecraft.util.Util;
+import net.minecraft.util.math.ChunkPos;
 
 import alexiil.mc.lib.net.EnumNetSide;
 import alexiil.mc.lib.net.NetByteBuf;
 
+import it.unimi.dsi.fastutil.longs.LongSet;
+
 /** A connection on the server side to a specific {@link ServerPlayerEntity}. */
 public class ActiveServerConnection extends ActiveMinecraftConnection {
     public final ServerPlayNetworkHandler netHandler;
 
     private long serverTick = Long.MIN_VALUE;
 
+    /** The chunks that this player is watching (by {@link ChunkPos#toLong()}) in each world. A player can briefly
+     * watch the same chunk position in two worlds while changing dimension. Only used by
+     * {@link ServerConnectionIndex}. */
+    final Map<ServerWorld, LongSet> watchedChunks = new IdentityHashMap<>();
+
+    /** The world and chunk column that this connection is indexed in by {@link ServerConnectionIndex}. */
+    ServerWorld indexedWorld;
+    long indexedColumn;
+
     public ActiveServerConnection(ServerPlayNetworkHandler netHandler) {
         this.netHandler = netHandler;
     }
@@ -44,6 +61,11 @@ public class ActiveServerConnection extends ActiveMinecraftConnection {
         netHandler.sendPacket(packet);
     }
 
+    @Override
+    protected ClientConnection getUnderlyingConnection() {
+        return netHandler.connection;
+    }
+
     @Override
     public PlayerEntity getPlayer() {
         return netHandler.player;
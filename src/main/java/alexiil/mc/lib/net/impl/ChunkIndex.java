@@ -0,0 +1,108 @@
+/*
+ * Copyright (c) 2019 AlexIIL
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+package alexiil.mc.lib.net.impl;
+
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.function.Consumer;
+
+import it.unimi.dsi.fastutil.longs.Long2ObjectMap;
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+
+/** A multimap from (world, chunk) to values, which is optimised for iterating over the values of a single chunk much
+ * more often than values are added or removed. Every chunk stores its values in an array which is replaced whenever
+ * it changes, so iteration never allocates, and values may be added or removed while iterating (although the
+ * iteration will only see the values from before it started).
+ * <p>
+ * This isn't thread safe.
+ *
+ * @param <W> The world type. Worlds are compared by identity.
+ * @param <V> The value type. Values are compared by identity. */
+public final class ChunkIndex<W, V> {
+
+    private static final Object[] EMPTY = new Object[0];
+
+    private final Map<W, Long2ObjectMap<Object[]>> worlds = new IdentityHashMap<>();
+
+    /** Adds the given value to the given chunk. Does nothing if it has already been added. */
+    public void add(W world, long chunk, V value) {
+        Long2ObjectMap<Object[]> chunks = worlds.computeIfAbsent(world, w -> new Long2ObjectOpenHashMap<>());
+        Object[] values = chunks.get(chunk);
+        if (values == null) {
+            chunks.put(chunk, new Object[] { value });
+            return;
+        }
+        for (Object v : values) {
+            if (v == value) {
+                return;
+            }
+        }
+        Object[] added = Arrays.copyOf(values, values.length + 1);
+        added[values.length] = value;
+        chunks.put(chunk, added);
+    }
+
+    /** Removes the given value from the given chunk. Does nothing if it wasn't in the chunk. */
+    public void remove(W world, long chunk, V value) {
+        Long2ObjectMap<Object[]> chunks = worlds.get(world);
+        if (chunks == null) {
+            return;
+        }
+        Object[] values = chunks.get(chunk);
+        if (values == null) {
+            return;
+        }
+        for (int i = 0; i < values.length; i++) {
+            if (values[i] == value) {
+                if (values.length == 1) {
+                    chunks.remove(chunk);
+                    if (chunks.isEmpty()) {
+                        worlds.remove(world);
+                    }
+                } else {
+                    Object[] removed = new Object[values.length - 1];
+                    System.arraycopy(values, 0, removed, 0, i);
+                    System.arraycopy(values, i + 1, removed, i, removed.length - i);
+                    chunks.put(chunk, removed);
+                }
+                return;
+            }
+        }
+    }
+
+    /** Calls the given consumer with every value in the given chunk.
+     *
+     * @return The number of values. */
+    @SuppressWarnings("unchecked")
+    public int forEach(W world, long chunk, Consumer<? super V> consumer) {
+        Object[] values = get(world, chunk);
+        for (Object value : values) {
+            consumer.accept((V) value);
+        }
+        return values.length;
+    }
+
+    /** @return The number of values in the given chunk. */
+    public int count(W world, long chunk) {
+        return get(world, chunk).length;
+    }
+
+    Object[] get(W world, long chunk) {
+        Long2ObjectMap<Object[]> chunks = worlds.get(world);
+        if (chunks == null) {
+            return EMPTY;
+        }
+        Object[] values = chunks.get(chunk);
+        return values == null ? EMPTY : values;
+    }
+
+    public void clear() {
+        worlds.clear();
+    }
+}
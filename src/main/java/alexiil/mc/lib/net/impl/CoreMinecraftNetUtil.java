@@ -8,11 +8,14 @@
 package alexiil.mc.lib.net.impl;
 
 import java.util.ArrayList;
-import java.util.Collection;
-import java.util.HashMap;
-import java.util.Iterator;
 import java.util.List;
-import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.function.Consumer;
 
 import javax.annotation.Nullable;
 
@@ -23,7 +26,7 @@ import net.fabricmc.fabric.api.client.networking.v1.ClientPlayNetworking;
 import net.fabricmc.fabric.api.event.lifecycle.v1.ServerLifecycleEvents;
 import net.fabricmc.fabric.api.event.lifecycle.v1.ServerTickEvents;
 import net.fabricmc.fabric.api.networking.v1.PacketSender;
-import net.fabricmc.fabric.api.networking.v1.PlayerLookup;
+import net.fabricmc.fabric.api.networking.v1.ServerPlayConnectionEvents;
 import net.fabricmc.fabric.api.networking.v1.ServerPlayNetworking;
 
 import net.minecraft.block.entity.BlockEntity;
@@ -46,6 +49,7 @@ import alexiil.mc.lib.net.InvalidInputDataException;
 import alexiil.mc.lib.net.LibNetworkStack;
 import alexiil.mc.lib.net.NetByteBuf;
 import alexiil.mc.lib.net.mixin.api.INetworkStateMixin;
+import alexiil.mc.lib.net.mixin.api.IServerPlayNetworkHandlerMixin;
 
 public class CoreMinecraftNetUtil {
 
@@ -55,51 +59,80 @@ public class CoreMinecraftNetUtil {
     static int clientExpectedId;
 
     private static ActiveClientConnection currentClientConnection;
-    private static final Map<ServerPlayNetworkHandler, ActiveServerConnection> serverConnections = new HashMap<>();
+
+    /** Every open server connection, for ticking. Connections are looked up by their network handler with
+     * {@link IServerPlayNetworkHandlerMixin} instead, as that's called from the network thread as well. */
+    private static final Set<ActiveServerConnection> serverConnections = ConcurrentHashMap.newKeySet();
+
+    /** The pool that server connections are flushed on, or null if {@link LibNetworkStack#CONFIG_PARALLEL_FLUSH} is
+     * disabled. */
+    @Nullable
+    private static final ForkJoinPool FLUSH_POOL = LibNetworkStack.CONFIG_PARALLEL_FLUSH ? createFlushPool() : null;
+
+    /** The connections which will be flushed by {@link #FLUSH_POOL} in the current tick. */
+    private static final List<ActiveServerConnection> flushingConnections = new ArrayList<>();
+    private static final List<ForkJoinTask<Long>> flushTasks = new ArrayList<>();
+
+    private static int lastServerDrainCount;
+    private static long lastServerDrainNanos;
+    private static long lastServerFlushNanos;
+    private static long lastServerFlushSavedNanos;
 
     public static List<ActiveMinecraftConnection> getNearbyActiveConnections(BlockEntity be, int distance) {
         List<ActiveMinecraftConnection> list = new ArrayList<>();
+        forEachNearbyActiveConnection(be, distance, list::add);
+        return list;
+    }
+
+    /** Calls the given consumer with every connection whose player is within the given distance of the given block
+     * entity. Unlike {@link #getNearbyActiveConnections(BlockEntity, int)} this doesn't allocate anything, as on the
+     * server connections are looked up from an index of player positions (which is updated at the end of every
+     * server tick).
+     *
+     * @return The number of connections that were passed to the consumer. */
+    public static int forEachNearbyActiveConnection(
+        BlockEntity be, int distance, Consumer<? super ActiveMinecraftConnection> consumer
+    ) {
         World w = be.getWorld();
         if (w == null) {
-            return list;
+            return 0;
         }
+        double x = be.getPos().getX() + 0.5;
+        double y = be.getPos().getY() + 0.5;
+        double z = be.getPos().getZ() + 0.5;
         if (w.isClient) {
             if (currentClientConnection == null) {
-                return list;
+                return 0;
             }
             double distanceSq = distance * distance;
-            double x = be.getPos().getX() + 0.5;
-            double y = be.getPos().getY() + 0.5;
-            double z = be.getPos().getZ() + 0.5;
             if (currentClientConnection.getPlayer().squaredDistanceTo(x, y, z) < distanceSq) {
-                list.add(currentClientConnection);
+                consumer.accept(currentClientConnection);
+                return 1;
             }
+            return 0;
         } else {
-            Collection<ServerPlayerEntity> players = PlayerLookup.around((ServerWorld) w, be.getPos(), distance);
-            for (ServerPlayerEntity player : players) {
-                ActiveServerConnection con = getServerConnection(player.networkHandler);
-                if (con != null) {
-                    list.add(con);
-                }
-            }
+            return ServerConnectionIndex.forEachNearby((ServerWorld) w, x, y, z, distance, consumer);
         }
-        return list;
     }
 
     public static List<ActiveMinecraftConnection> getPlayersWatching(World world, BlockPos pos) {
+        List<ActiveMinecraftConnection> list = new ArrayList<>();
+        forEachPlayerWatching(world, pos, list::add);
+        return list;
+    }
+
+    /** Calls the given consumer with the connection of every player that is watching the chunk that contains the
+     * given position. Unlike {@link #getPlayersWatching(World, BlockPos)} this doesn't allocate anything, as the
+     * connections are looked up from an index of the chunks that have been sent to each player.
+     *
+     * @return The number of connections that were passed to the consumer. */
+    public static int forEachPlayerWatching(
+        World world, BlockPos pos, Consumer<? super ActiveMinecraftConnection> consumer
+    ) {
         if (!(world instanceof ServerWorld)) {
             throw new IllegalArgumentException("getPlayersWatching must be given a ServerWorld instance.");
         }
-
-        Collection<ServerPlayerEntity> players = PlayerLookup.tracking((ServerWorld) world, pos);
-        List<ActiveMinecraftConnection> list = new ArrayList<>();
-        for (ServerPlayerEntity player : players) {
-            ActiveMinecraftConnection connection = getConnection(player);
-            if (connection != null) {
-                list.add(connection);
-            }
-        }
-        return list;
+        return ServerConnectionIndex.forEachWatching((ServerWorld) world, pos, consumer);
     }
 
     public static ActiveMinecraftConnection getConnection(PlayerEntity player) {
@@ -135,26 +168,22 @@ public class CoreMinecraftNetUtil {
                 PacketSender responseSender
             ) {
                 ActiveServerConnection connection = getServerConnection(handler);
-                if (connection == null) {
+                if (connection == null || !handler.isConnectionOpen()) {
                     return;
                 }
 
-                NetByteBuf b = NetByteBuf.asNetByteBuf(buf.copy());
-                server.execute(() -> {
-                    try {
-                        connection.onReceiveRawData(b);
-                        b.release();
-                    } catch (InvalidInputDataException e) {
-                        e.printStackTrace();
-                        handler.disconnect(
-                            Text.of("LibNetworkStack: read error (see server logs for more details)\n" + e)
-                        );
-                    }
+                // Retained rather than copied, as the packet has it's own copy of the data already
+                NetByteBuf b = NetByteBuf.asNetByteBuf(buf.retainedSlice());
+                receive(connection, b, server, e -> {
+                    e.printStackTrace();
+                    handler.disconnect(Text.of("LibNetworkStack: read error (see server logs for more details)\n" + e));
                 });
             }
         };
         ServerPlayNetworking.registerGlobalReceiver(ActiveMinecraftConnection.PACKET_ID, handler);
 
+        ServerPlayConnectionEvents.INIT.register((handler, server) -> getServerConnection(handler));
+        ServerPlayConnectionEvents.DISCONNECT.register((handler, server) -> onServerDisconnect(handler));
         ServerTickEvents.END_SERVER_TICK.register(server -> onServerTick());
         ServerLifecycleEvents.SERVER_STOPPING.register(server -> onServerStop());
 
@@ -176,17 +205,12 @@ public class CoreMinecraftNetUtil {
                 PacketSender responseSender
             ) {
                 ActiveClientConnection connection = getOrCreateClientConnection(handler);
-                NetByteBuf b = NetByteBuf.asNetByteBuf(buffer.copy());
-                client.execute(() -> {
-                    try {
-                        connection.onReceiveRawData(b);
-                        b.release();
-                    } catch (InvalidInputDataException e) {
-                        e.printStackTrace();
-                        handler.getConnection()
-                            .disconnect(Text.of("LibNetworkStack: read error (see logs for details)"));
-                    }
+                NetByteBuf b = NetByteBuf.asNetByteBuf(buffer.retainedSlice());
+                receive(connection, b, client, e -> {
+                    e.printStackTrace();
+                    handler.getConnection().disconnect(Text.of("LibNetworkStack: read error (see logs for details)"));
                 });
+                scheduleClientDrain(connection, client);
             }
         };
 
@@ -199,16 +223,39 @@ public class CoreMinecraftNetUtil {
 
     static void onClientReceivePacket(ClientPlayNetworkHandler ctx, NetByteBuf buffer) {
         ActiveClientConnection connection = getOrCreateClientConnection(ctx);
-        NetByteBuf b = buffer.copy();
-        MinecraftClient.getInstance().execute(() -> {
-            try {
-                connection.onReceiveRawData(b);
-                b.release();
-            } catch (InvalidInputDataException e) {
-                e.printStackTrace();
-                ctx.getConnection().disconnect(Text.of("LibNetworkStack: read error (see logs for details)"));
-            }
+        // The compact packets own their payload array, so this doesn't need to copy it
+        NetByteBuf b = NetByteBuf.asNetByteBuf(buffer.retainedSlice());
+        MinecraftClient client = MinecraftClient.getInstance();
+        receive(connection, b, client, e -> {
+            e.printStackTrace();
+            ctx.getConnection().disconnect(Text.of("LibNetworkStack: read error (see logs for details)"));
         });
+        scheduleClientDrain(connection, client);
+    }
+
+    /** Drains the receive queue of the given connection on the client thread as soon as possible (usually before the
+     * next frame), rather than waiting for the end of the client tick. This keeps the arrival times used by the
+     * {@link ServerTickClock} and for latency measurements accurate. Only one drain is scheduled at a time. */
+    private static void scheduleClientDrain(ActiveClientConnection connection, MinecraftClient client) {
+        if (connection.drainScheduled.compareAndSet(false, true)) {
+            client.execute(() -> {
+                // Cleared before draining, so anything queued after this point schedules another drain
+                connection.drainScheduled.set(false);
+                if (connection == currentClientConnection) {
+                    drainClient(connection);
+                }
+            });
+        }
+    }
+
+    private static void drainClient(ActiveClientConnection connection) {
+        try {
+            connection.drainReceiveQueue();
+        } catch (InvalidInputDataException e) {
+            e.printStackTrace();
+            connection.netHandler.getConnection()
+                .disconnect(Text.of("LibNetworkStack: read error (see logs for details)"));
+        }
     }
 
     /** @return The current client connection. Throws an exception if this is not available right now (likely because
@@ -230,6 +277,9 @@ public class CoreMinecraftNetUtil {
     private static ActiveClientConnection getOrCreateClientConnection(ClientPlayNetworkHandler ctx) {
         ActiveClientConnection connection = currentClientConnection;
         if (connection == null || connection.netHandler != ctx) {
+            if (connection != null) {
+                connection.discardReceiveQueue();
+            }
             connection = new ActiveClientConnection(ctx);
             connection.postConstruct();
             currentClientConnection = connection;
@@ -239,38 +289,127 @@ public class CoreMinecraftNetUtil {
 
     static void onServerReceivePacket(ServerPlayNetworkHandler ctx, NetByteBuf buffer) {
         ActiveServerConnection connection = getServerConnection(ctx);
-        if (connection == null) {
+        if (connection == null || !ctx.isConnectionOpen()) {
             return;
         }
 
-        NetByteBuf b = buffer.copy();
-        ctx.player.server.execute(() -> {
+        NetByteBuf b = NetByteBuf.asNetByteBuf(buffer.retainedSlice());
+        receive(connection, b, ctx.player.server, e -> {
+            e.printStackTrace();
+            ctx.disconnect(Text.of("LibNetworkStack: read error (see server logs for more details)\n" + e));
+        });
+    }
+
+    /** Adds received data to the connection's receive queue (which is drained by the tick handlers), either as it is,
+     * or (if {@link LibNetworkStack#CONFIG_OFF_THREAD_DECODE} is enabled) by decoding it on the calling thread and
+     * only queueing the decoded packets.
+     * 
+     * @param data The received data, which is released by this.
+     * @param mainThread The main thread executor - either the server or the client.
+     * @param errorHandler Called on the main thread if the data failed to decode. */
+    private static void receive(
+        ActiveMinecraftConnection connection, NetByteBuf data, Executor mainThread,
+        Consumer<InvalidInputDataException> errorHandler
+    ) {
+        if (LibNetworkStack.CONFIG_OFF_THREAD_DECODE) {
             try {
-                connection.onReceiveRawData(b);
-                b.release();
+                connection.queueReceivedDataOffThread(data);
             } catch (InvalidInputDataException e) {
-                e.printStackTrace();
-                ctx.disconnect(Text.of("LibNetworkStack: read error (see server logs for more details)\n" + e));
+                mainThread.execute(() -> errorHandler.accept(e));
+            } finally {
+                data.release();
             }
-        });
+        } else {
+            connection.queueReceivedData(data);
+        }
+    }
+
+    /** @return The total number of received entries that were read from every server connection's receive queue in
+     *         the last server tick. */
+    public static int getLastServerDrainCount() {
+        return lastServerDrainCount;
+    }
+
+    /** @return The total time (in nanoseconds) spent reading every server connection's receive queue in the last
+     *         server tick. */
+    public static long getLastServerDrainNanos() {
+        return lastServerDrainNanos;
+    }
+
+    /** @return The time (in nanoseconds) that the main thread spent flushing every server connection in the last
+     *         server tick. */
+    public static long getLastServerFlushNanos() {
+        return lastServerFlushNanos;
     }
 
-    private static ActiveServerConnection getServerConnection(ServerPlayNetworkHandler netHandler) {
-        return serverConnections.computeIfAbsent(netHandler, c -> {
+    /** @return The time (in nanoseconds) that flushing the server connections in parallel saved the main thread in the
+     *         last server tick. This is the total time spent flushing on every thread, minus the time that the main
+     *         thread spent waiting for them, so it may be negative if parallel flushing is slower. Always 0 if
+     *         parallel flushing is disabled ("flush.parallel" in the config). */
+    public static long getLastServerFlushSavedNanos() {
+        return lastServerFlushSavedNanos;
+    }
+
+    @Nullable
+    static ActiveServerConnection getExistingServerConnection(ServerPlayNetworkHandler netHandler) {
+        return ((IServerPlayNetworkHandlerMixin) netHandler).libnetworkstack_getConnection();
+    }
+
+    /** @return The connection for the given handler, creating it if it doesn't exist yet. This is normally created by
+     *         {@link ServerPlayConnectionEvents#INIT}, but may be called from any thread. */
+    static ActiveServerConnection getServerConnection(ServerPlayNetworkHandler netHandler) {
+        IServerPlayNetworkHandlerMixin mixin = (IServerPlayNetworkHandlerMixin) netHandler;
+        ActiveServerConnection connection = mixin.libnetworkstack_getConnection();
+        if (connection != null) {
+            return connection;
+        }
+        synchronized (netHandler) {
+            connection = mixin.libnetworkstack_getConnection();
+            if (connection != null) {
+                return connection;
+            }
             if (!netHandler.isConnectionOpen()) {
                 LibNetworkStack.LOGGER.warn(
                     "Disallowed server connection for " + netHandler.player + " because it's channel is not open!"
                 );
                 return null;
-            } else {
-                if (DEBUG) {
-                    LibNetworkStack.LOGGER.info("Creating new server connection for " + netHandler.player);
-                }
             }
-            ActiveServerConnection connection = new ActiveServerConnection(netHandler);
+            if (DEBUG) {
+                LibNetworkStack.LOGGER.info("Creating new server connection for " + netHandler.player);
+            }
+            connection = new ActiveServerConnection(netHandler);
             connection.postConstruct();
+            mixin.libnetworkstack_setConnection(connection);
+            serverConnections.add(connection);
             return connection;
-        });
+        }
+    }
+
+    private static void onServerDisconnect(ServerPlayNetworkHandler netHandler) {
+        ActiveServerConnection connection;
+        // Same lock as getServerConnection, so a connection that's being created right now is seen here
+        synchronized (netHandler) {
+            connection = getExistingServerConnection(netHandler);
+        }
+        if (connection != null) {
+            removeServerConnection(connection);
+        }
+    }
+
+    /** Removes the given connection from {@link #serverConnections} and {@link ServerConnectionIndex}. This may be
+     * called more than once for the same connection, as both {@link ServerPlayConnectionEvents#DISCONNECT} and
+     * {@link #onServerTick()} remove closed connections. */
+    private static void removeServerConnection(ActiveServerConnection connection) {
+        if (!serverConnections.remove(connection)) {
+            return;
+        }
+        // The connection is left in the handler, so packets that arrive after this don't create a new one
+        connection.discardReceiveQueue();
+        connection.abortStreams();
+        ServerConnectionIndex.remove(connection);
+        if (DEBUG) {
+            LibNetworkStack.LOGGER.info("Removed server connection " + connection + " as it has disconnected.");
+        }
     }
 
     private static void onClientTick() {
@@ -282,32 +421,107 @@ public class CoreMinecraftNetUtil {
                             + " as it's channel is no longer open."
                     );
                 }
+                currentClientConnection.discardReceiveQueue();
+                currentClientConnection.abortStreams();
                 currentClientConnection = null;
                 return;
             }
+            // Normally already drained by scheduleClientDrain, but anything that was queued since is read here
+            drainClient(currentClientConnection);
             currentClientConnection.tick();
         }
     }
 
     private static void onServerTick() {
-        Iterator<ActiveServerConnection> iterator = serverConnections.values().iterator();
-        while (iterator.hasNext()) {
-            ActiveServerConnection connection = iterator.next();
+        int drainCount = 0;
+        long drainNanos = 0;
+        long flushNanos = 0;
+        for (ActiveServerConnection connection : serverConnections) {
             if (!connection.netHandler.isConnectionOpen()) {
-                iterator.remove();
-                if (DEBUG) {
-                    LibNetworkStack.LOGGER
-                        .info("Removed server connection " + connection + " as it's channel is no longer open.");
-                }
+                // Normally removed by onServerDisconnect, but a connection created on the network thread while the
+                // player was disconnecting can be added after that ran
+                removeServerConnection(connection);
                 continue;
             }
-            connection.tick();
+            try {
+                connection.drainReceiveQueue();
+            } catch (InvalidInputDataException e) {
+                e.printStackTrace();
+                connection.netHandler.disconnect(
+                    Text.of("LibNetworkStack: read error (see server logs for more details)\n" + e)
+                );
+            }
+            drainCount += connection.getLastDrainCount();
+            drainNanos += connection.getLastDrainNanos();
+            if (FLUSH_POOL != null) {
+                connection.tickWrite();
+                flushingConnections.add(connection);
+            } else {
+                long start = System.nanoTime();
+                connection.tick();
+                flushNanos += System.nanoTime() - start;
+            }
+            ServerConnectionIndex.updatePosition(connection);
+        }
+        lastServerDrainCount = drainCount;
+        lastServerDrainNanos = drainNanos;
+        if (FLUSH_POOL != null) {
+            flushParallel(FLUSH_POOL);
+        } else {
+            lastServerFlushNanos = flushNanos;
+            lastServerFlushSavedNanos = 0;
         }
     }
 
+    /** Flushes every connection in {@link #flushingConnections} on the given pool, and then sends the created packets
+     * from the main thread, so they are passed to netty in the same order as if they had been flushed directly. */
+    private static void flushParallel(ForkJoinPool pool) {
+        long start = System.nanoTime();
+        for (ActiveServerConnection connection : flushingConnections) {
+            flushTasks.add(pool.submit(() -> connection.tickFlushDeferred()));
+        }
+        long workerNanos = 0;
+        RuntimeException error = null;
+        for (int i = 0; i < flushingConnections.size(); i++) {
+            try {
+                workerNanos += flushTasks.get(i).join();
+            } catch (RuntimeException e) {
+                if (error == null) {
+                    error = e;
+                } else {
+                    error.addSuppressed(e);
+                }
+            }
+            // Even after a failure, as any packets that were created before it must still be sent
+            flushingConnections.get(i).sendDeferredPackets();
+        }
+        flushingConnections.clear();
+        flushTasks.clear();
+        long mainNanos = System.nanoTime() - start;
+        lastServerFlushNanos = mainNanos;
+        lastServerFlushSavedNanos = workerNanos - mainNanos;
+        if (error != null) {
+            throw error;
+        }
+    }
+
+    private static ForkJoinPool createFlushPool() {
+        int threads = Math.max(1, Runtime.getRuntime().availableProcessors() - 1);
+        return new ForkJoinPool(threads, pool -> {
+            ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+            thread.setName("LibNetworkStack Flush " + thread.getPoolIndex());
+            return thread;
+        }, null, false);
+    }
+
     private static void onServerStop() {
+        for (ActiveServerConnection connection : serverConnections) {
+            connection.discardReceiveQueue();
+            connection.abortStreams();
+        }
         int count = serverConnections.size();
         serverConnections.clear();
+        ServerConnectionIndex.clear();
         if (DEBUG) {
             LibNetworkStack.LOGGER.info("Removed " + count + " server connections as the server has stopped.");
         }
@@ -21,6 +21,7 @@ import alexiil.mc.lib.net.ActiveConnection;
 import alexiil.mc.lib.net.IMsgReadCtx;
 import alexiil.mc.lib.net.IMsgWriteCtx;
 import alexiil.mc.lib.net.InvalidInputDataException;
+import alexiil.mc.lib.net.LibNetworkStack;
 import alexiil.mc.lib.net.MessageContext;
 import alexiil.mc.lib.net.NetByteBuf;
 import alexiil.mc.lib.net.NetObjectCache;
@@ -155,5 +156,6 @@ public final class McNetworkStack {
                     }
                 }
             });
+        CACHE_ITEMS_WITHOUT_AMOUNT.setMaxEntries(LibNetworkStack.CONFIG_CACHE_ITEMS_MAX_ENTRIES);
     }
 }
@@ -0,0 +1,162 @@
+/*
+ * Copyright (c) 2019 AlexIIL
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+package alexiil.mc.lib.net.impl;
+
+import java.util.Map;
+import java.util.function.Consumer;
+
+import net.minecraft.entity.player.PlayerEntity;
+import net.minecraft.server.network.ServerPlayerEntity;
+import net.minecraft.server.world.ServerWorld;
+import net.minecraft.util.math.BlockPos;
+import net.minecraft.util.math.ChunkPos;
+import net.minecraft.world.chunk.WorldChunk;
+
+import it.unimi.dsi.fastutil.longs.LongIterator;
+import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
+import it.unimi.dsi.fastutil.longs.LongSet;
+
+/** Indexes every {@link ActiveServerConnection} by the chunks that it's player is watching, and by the chunk column
+ * that it's player is in, so that {@link CoreMinecraftNetUtil#forEachPlayerWatching} and
+ * {@link CoreMinecraftNetUtil#forEachNearbyActiveConnection} don't need to look up every player.
+ * <p>
+ * The watched chunks are updated by mixins whenever a chunk is sent to (or unloaded from) a player, and player
+ * positions are updated at the end of every server tick. Only used on the server thread. */
+public final class ServerConnectionIndex {
+
+    /** The number of chunks that are added to the edges of the area searched for nearby connections, as player
+     * positions are only updated once per tick. */
+    private static final int POSITION_MARGIN = 1;
+
+    private static final ChunkIndex<ServerWorld, ActiveServerConnection> WATCHING = new ChunkIndex<>();
+    private static final ChunkIndex<ServerWorld, ActiveServerConnection> POSITIONS = new ChunkIndex<>();
+
+    /** Every connection in each world, stored under chunk 0. */
+    private static final ChunkIndex<ServerWorld, ActiveServerConnection> WORLDS = new ChunkIndex<>();
+
+    private ServerConnectionIndex() {}
+
+    /** Called by a mixin after a chunk has been sent to the given player. */
+    public static void onChunkWatched(ServerPlayerEntity player, WorldChunk chunk) {
+        if (!(chunk.getWorld() instanceof ServerWorld world)) {
+            return;
+        }
+        ActiveServerConnection connection = CoreMinecraftNetUtil.getServerConnection(player.networkHandler);
+        if (connection == null) {
+            return;
+        }
+        long pos = chunk.getPos().toLong();
+        if (connection.watchedChunks.computeIfAbsent(world, w -> new LongOpenHashSet()).add(pos)) {
+            WATCHING.add(world, pos, connection);
+        }
+    }
+
+    /** Called by a mixin before the given player is told to unload a chunk in the given world. */
+    public static void onChunkUnwatched(ServerWorld world, ServerPlayerEntity player, ChunkPos chunkPos) {
+        ActiveServerConnection connection = CoreMinecraftNetUtil.getExistingServerConnection(player.networkHandler);
+        if (connection == null) {
+            return;
+        }
+        LongSet chunks = connection.watchedChunks.get(world);
+        long pos = chunkPos.toLong();
+        if (chunks == null || !chunks.remove(pos)) {
+            return;
+        }
+        if (chunks.isEmpty()) {
+            connection.watchedChunks.remove(world);
+        }
+        WATCHING.remove(world, pos, connection);
+    }
+
+    static void updatePosition(ActiveServerConnection connection) {
+        ServerPlayerEntity player = connection.netHandler.player;
+        ServerWorld world = player.getServerWorld();
+        long column = ChunkPos.toLong(player.getBlockX() >> 4, player.getBlockZ() >> 4);
+        if (world == connection.indexedWorld && column == connection.indexedColumn) {
+            return;
+        }
+        if (connection.indexedWorld != null) {
+            POSITIONS.remove(connection.indexedWorld, connection.indexedColumn, connection);
+            if (world != connection.indexedWorld) {
+                WORLDS.remove(connection.indexedWorld, 0, connection);
+            }
+        }
+        if (world != connection.indexedWorld) {
+            WORLDS.add(world, 0, connection);
+        }
+        POSITIONS.add(world, column, connection);
+        connection.indexedWorld = world;
+        connection.indexedColumn = column;
+    }
+
+    static void remove(ActiveServerConnection connection) {
+        for (Map.Entry<ServerWorld, LongSet> entry : connection.watchedChunks.entrySet()) {
+            LongIterator iter = entry.getValue().iterator();
+            while (iter.hasNext()) {
+                WATCHING.remove(entry.getKey(), iter.nextLong(), connection);
+            }
+        }
+        connection.watchedChunks.clear();
+        if (connection.indexedWorld != null) {
+            POSITIONS.remove(connection.indexedWorld, connection.indexedColumn, connection);
+            WORLDS.remove(connection.indexedWorld, 0, connection);
+            connection.indexedWorld = null;
+        }
+    }
+
+    static void clear() {
+        WATCHING.clear();
+        POSITIONS.clear();
+        WORLDS.clear();
+    }
+
+    static int forEachWatching(ServerWorld world, BlockPos pos, Consumer<? super ActiveServerConnection> consumer) {
+        return WATCHING.forEach(world, ChunkPos.toLong(pos.getX() >> 4, pos.getZ() >> 4), consumer);
+    }
+
+    static int forEachNearby(
+        ServerWorld world, double x, double y, double z, double distance,
+        Consumer<? super ActiveServerConnection> consumer
+    ) {
+        double distanceSq = distance * distance;
+        int minX = ((int) Math.floor(x - distance) >> 4) - POSITION_MARGIN;
+        int maxX = ((int) Math.floor(x + distance) >> 4) + POSITION_MARGIN;
+        int minZ = ((int) Math.floor(z - distance) >> 4) - POSITION_MARGIN;
+        int maxZ = ((int) Math.floor(z + distance) >> 4) + POSITION_MARGIN;
+        long columns = (maxX - minX + 1L) * (maxZ - minZ + 1L);
+        Object[] inWorld = WORLDS.get(world, 0);
+        int count = 0;
+        if (columns >= inWorld.length) {
+            // Cheaper to check every player in the world than every column
+            for (Object obj : inWorld) {
+                count += acceptIfNearby(world, (ActiveServerConnection) obj, x, y, z, distanceSq, consumer);
+            }
+            return count;
+        }
+        for (int cx = minX; cx <= maxX; cx++) {
+            for (int cz = minZ; cz <= maxZ; cz++) {
+                for (Object obj : POSITIONS.get(world, ChunkPos.toLong(cx, cz))) {
+                    count += acceptIfNearby(world, (ActiveServerConnection) obj, x, y, z, distanceSq, consumer);
+                }
+            }
+        }
+        return count;
+    }
+
+    private static int acceptIfNearby(
+        ServerWorld world, ActiveServerConnection connection, double x, double y, double z, double distanceSq,
+        Consumer<? super ActiveServerConnection> consumer
+    ) {
+        PlayerEntity player = connection.netHandler.player;
+        if (player.getWorld() != world || player.squaredDistanceTo(x, y, z) > distanceSq) {
+            return 0;
+        }
+        consumer.accept(connection);
+        return 1;
+    }
+}
@@ -0,0 +1,199 @@
+/*
+ * Copyright (c) 2019 AlexIIL
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+package alexiil.mc.lib.net.impl;
+
+/** Estimates the server's current tick (including a fractional part) from the client's clock, given a stream of
+ * server tick packets that arrive with some amount of network and scheduling jitter. Used by
+ * {@link ActiveClientConnection} for {@link ActiveClientConnection#getSmoothedServerTickValue()} and
+ * {@link ActiveClientConnection#getSmoothedServerTickDelta()}.
+ * <p>
+ * This works in two stages:
+ * <ol>
+ * <li>Every received tick is passed through a phase locked loop (an alpha-beta filter), which tracks the server's tick
+ * at a point in client time, and the rate at which it's ticking. Before that, the arrival time of each packet is
+ * corrected by how much longer it took to arrive than the fastest packet seen so far (using the server's send time),
+ * so network jitter mostly doesn't reach the filter. Instead the largest recent extra delay is added to the lag in the
+ * next step.</li>
+ * <li>Every frame the output is moved forward by the estimated tick rate, and pulled slowly towards the filter's
+ * estimate minus a small "playout" lag (which grows with the measured jitter). The output never goes backwards, and
+ * never goes past the latest tick that has actually been received.</li>
+ * </ol>
+ * Large errors (for example after the integrated server was paused) make the estimate jump straight to the new value
+ * rather than slowly catching up.
+ * <p>
+ * All times are in milliseconds, and this doesn't read any clocks itself, so it can be tested with simulated time.
+ * This isn't thread safe. */
+public final class ServerTickClock {
+
+    /** The normal tick rate, in ticks per millisecond. */
+    static final double NOMINAL_RATE = 1 / 50.0;
+
+    private static final double MIN_RATE = NOMINAL_RATE / 4;
+    private static final double MAX_RATE = NOMINAL_RATE * 2;
+
+    /** The phase and frequency gains of the filter. These are chosen to be critically damped (beta = alpha^2 / (2 -
+     * alpha)), and settle within about a second of ticks. */
+    private static final double ALPHA = 0.1;
+    private static final double BETA = ALPHA * ALPHA / (2 - ALPHA);
+
+    /** Errors larger than this (in ticks) make everything jump to the new value. */
+    private static final double RESYNC_TICKS = 20;
+
+    private static final double MIN_LAG_TICKS = 1.5;
+    private static final double MAX_LAG_TICKS = 10;
+
+    /** How many times the smoothed jitter the output is kept behind the estimate. */
+    private static final double LAG_JITTER_MULTIPLIER = 3;
+
+    /** How much {@link #peakExcessDelay} decays by every received tick. This halves it about every 3 seconds, so a
+     * single delay spike keeps the lag up for a while afterwards rather than stuttering on the next spike. */
+    private static final double PEAK_DECAY = 0.99;
+
+    /** The time (in milliseconds) over which the output corrects itself towards the estimate. */
+    private static final double CORRECTION_MS = 500;
+
+    /** How fast the minimum network delay is allowed to grow (per received tick), so that it can follow a change in
+     * route or a slow drift between the two clocks. */
+    private static final double MIN_DELAY_GROWTH_MS = 0.05;
+
+    private boolean hasData;
+
+    private long latestTick;
+
+    private double minDelay;
+
+    /** The largest recent network delay above {@link #minDelay}, in milliseconds. */
+    private double peakExcessDelay;
+
+    /** The filter's estimate of the server tick at {@link #phaseTime}. */
+    private double phase;
+    private double phaseTime;
+    private double rate = NOMINAL_RATE;
+
+    private double jitterTicks;
+    private double lagTicks = MIN_LAG_TICKS;
+
+    private double output;
+    private long outputTime;
+
+    /** Adds a tick received from the server.
+     *
+     * @param tick The server's tick counter.
+     * @param serverMs The server's clock when it sent the tick.
+     * @param clientMs The client's clock when the tick was received. */
+    public void onServerTick(long tick, long serverMs, long clientMs) {
+        double delay = clientMs - serverMs;
+        if (!hasData) {
+            hasData = true;
+            latestTick = tick;
+            minDelay = delay;
+            phase = tick;
+            phaseTime = clientMs;
+            output = tick;
+            outputTime = clientMs;
+            return;
+        }
+
+        // Remove the part of the network delay that's above the minimum
+        minDelay += MIN_DELAY_GROWTH_MS;
+        if (delay < minDelay) {
+            minDelay = delay;
+        }
+        double excessDelay = delay - minDelay;
+        peakExcessDelay = Math.max(excessDelay, peakExcessDelay * PEAK_DECAY);
+        double time = clientMs - excessDelay;
+        if (time < phaseTime) {
+            time = phaseTime;
+        }
+
+        double dt = time - phaseTime;
+        double predicted = phase + rate * dt;
+        double error = tick - predicted;
+
+        if (Math.abs(error) > RESYNC_TICKS) {
+            phase = tick;
+            phaseTime = time;
+            jitterTicks = 0;
+            if (tick < output) {
+                // The server's tick counter went backwards, so the output can't stay where it is
+                output = tick;
+                outputTime = clientMs;
+            }
+        } else {
+            phase = predicted + ALPHA * error;
+            phaseTime = time;
+            if (dt > 0) {
+                rate += BETA * error / dt;
+                rate = Math.max(MIN_RATE, Math.min(MAX_RATE, rate));
+            }
+            jitterTicks += (Math.abs(error) - jitterTicks) / 16;
+        }
+        // Ticks arrive up to peakExcessDelay after the filter expects them, so the output has to stay that far behind
+        double lag = MIN_LAG_TICKS + jitterTicks * LAG_JITTER_MULTIPLIER + peakExcessDelay * rate;
+        lagTicks = Math.min(MAX_LAG_TICKS, lag);
+        latestTick = Math.max(latestTick, tick);
+    }
+
+    /** Moves the output forward to the given client time. This should be called once per frame, before reading
+     * {@link #getTickValue()} and {@link #getTickDelta()}. */
+    public void update(long clientMs) {
+        if (!hasData) {
+            return;
+        }
+        long dt = clientMs - outputTime;
+        if (dt <= 0) {
+            return;
+        }
+        outputTime = clientMs;
+
+        double target = phase + rate * (clientMs - phaseTime) - lagTicks;
+        double next = output + rate * dt;
+        double diff = target - next;
+        if (Math.abs(diff) > RESYNC_TICKS) {
+            next = target;
+        } else {
+            next += diff * Math.min(1, dt / CORRECTION_MS);
+        }
+        output = Math.min(latestTick, Math.max(output, next));
+    }
+
+    public boolean hasData() {
+        return hasData;
+    }
+
+    /** @return The whole part of the estimated server tick, or {@link Long#MIN_VALUE} if no ticks have been received
+     *         yet. */
+    public long getTickValue() {
+        return hasData ? (long) Math.floor(output) : Long.MIN_VALUE;
+    }
+
+    /** @return The fractional part of the estimated server tick, between 0 (inclusive) and 1 (exclusive). */
+    public double getTickDelta() {
+        return hasData ? output - Math.floor(output) : 0;
+    }
+
+    /** @return The estimated server tick rate, in ticks per second. */
+    public double getTicksPerSecond() {
+        return rate * 1000;
+    }
+
+    /** @return The smoothed difference (in ticks) between the received ticks and the filter's estimate. */
+    public double getJitterTicks() {
+        return jitterTicks;
+    }
+
+    /** @return The number of ticks that the output is being kept behind the estimate of the server's tick. */
+    public double getLagTicks() {
+        return lagTicks;
+    }
+
+    /** @return The latest tick that has been received. */
+    public long getLatestTick() {
+        return latestTick;
+    }
+}
@@ -0,0 +1,26 @@
+/*
+ * Copyright (c) 2019 AlexIIL
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+package alexiil.mc.lib.net.mixin.api;
+
+import javax.annotation.Nullable;
+
+import net.minecraft.server.network.ServerPlayNetworkHandler;
+
+import alexiil.mc.lib.net.impl.ActiveServerConnection;
+import alexiil.mc.lib.net.impl.CoreMinecraftNetUtil;
+
+/** Stores the {@link ActiveServerConnection} of a {@link ServerPlayNetworkHandler} directly in the handler, so that
+ * {@link CoreMinecraftNetUtil} can find it from any thread without hashing. The field is volatile, and is only set once
+ * (under a lock on the handler). */
+public interface IServerPlayNetworkHandlerMixin {
+
+    @Nullable
+    ActiveServerConnection libnetworkstack_getConnection();
+
+    void libnetworkstack_setConnection(ActiveServerConnection connection);
+}
@@ -0,0 +1,33 @@
+/*
+ * Copyright (c) 2019 AlexIIL
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+package alexiil.mc.lib.net.mixin.impl;
+
+import org.spongepowered.asm.mixin.Mixin;
+import org.spongepowered.asm.mixin.Unique;
+
+import net.minecraft.server.network.ServerPlayNetworkHandler;
+
+import alexiil.mc.lib.net.impl.ActiveServerConnection;
+import alexiil.mc.lib.net.mixin.api.IServerPlayNetworkHandlerMixin;
+
+@Mixin(ServerPlayNetworkHandler.class)
+public abstract class ServerPlayNetworkHandlerMixin implements IServerPlayNetworkHandlerMixin {
+
+    @Unique
+    private volatile ActiveServerConnection libnetworkstack_connection;
+
+    @Override
+    public ActiveServerConnection libnetworkstack_getConnection() {
+        return libnetworkstack_connection;
+    }
+
+    @Override
+    public void libnetworkstack_setConnection(ActiveServerConnection connection) {
+        libnetworkstack_connection = connection;
+    }
+}
@@ -8,6 +8,7 @@
 package alexiil.mc.lib.net.mixin.impl;
 
 import org.apache.commons.lang3.mutable.MutableObject;
+import org.spongepowered.asm.mixin.Final;
 import org.spongepowered.asm.mixin.Mixin;
 import org.spongepowered.asm.mixin.Shadow;
 import org.spongepowered.asm.mixin.injection.At;
@@ -17,21 +18,28 @@ import org.spongepowered.asm.mixin.injection.callback.CallbackInfo;
 import net.minecraft.block.entity.BlockEntity;
 import net.minecraft.server.network.ServerPlayerEntity;
 import net.minecraft.server.world.ChunkHolder;
+import net.minecraft.server.world.ServerWorld;
 import net.minecraft.server.world.ThreadedAnvilChunkStorage;
 import net.minecraft.util.math.ChunkPos;
 import net.minecraft.world.chunk.WorldChunk;
 
 import alexiil.mc.lib.net.impl.BlockEntityInitialData;
+import alexiil.mc.lib.net.impl.ServerConnectionIndex;
 import alexiil.mc.lib.net.mixin.api.IThreadedAnvilChunkStorageMixin;
 
 @Mixin(ThreadedAnvilChunkStorage.class)
 public abstract class ThreadedAnvilChunkStorageMixin implements IThreadedAnvilChunkStorageMixin {
 
+    @Shadow
+    @Final
+    ServerWorld world;
+
     @Inject(at = @At("RETURN"), method = "sendChunkDataPackets(Lnet/minecraft/server/network/ServerPlayerEntity;"
         + "Lorg/apache/commons/lang3/mutable/MutableObject;Lnet/minecraft/world/chunk/WorldChunk;)V")
     private void libnetworkstack_postSendPackets(
         ServerPlayerEntity player, MutableObject<?> packet, WorldChunk chunk, CallbackInfo ci
     ) {
+        ServerConnectionIndex.onChunkWatched(player, chunk);
         for (BlockEntity be : chunk.getBlockEntities().values()) {
             if (be instanceof BlockEntityInitialData) {
                 ((BlockEntityInitialData) be).sendInitialData(player);
@@ -39,6 +47,22 @@ public abstract class ThreadedAnvilChunkStorageMixin implements IThreadedAnvilCh
         }
     }
 
+    @Inject(
+        at = @At(
+            value = "INVOKE",
+            target = "Lnet/minecraft/server/network/ServerPlayerEntity;sendUnloadChunkPacket"
+                + "(Lnet/minecraft/util/math/ChunkPos;)V"
+        ),
+        method = "sendWatchPackets(Lnet/minecraft/server/network/ServerPlayerEntity;"
+            + "Lnet/minecraft/util/math/ChunkPos;Lorg/apache/commons/lang3/mutable/MutableObject;ZZ)V"
+    )
+    private void libnetworkstack_preUnloadChunk(
+        ServerPlayerEntity player, ChunkPos pos, MutableObject<?> packet, boolean oldWithinViewDistance,
+        boolean newWithinViewDistance, CallbackInfo ci
+    ) {
+        ServerConnectionIndex.onChunkUnwatched(world, player, pos);
+    }
+
     @Shadow
     private ChunkHolder getChunkHolder(long pos) {
         throw new Error("Shadow mixin failed to apply!");
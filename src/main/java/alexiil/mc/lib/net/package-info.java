@@ -153,6 +153,13 @@
  * the original object (although it will return null if the entry isn't present - either if it hasn't sent yet or you
  * passed it the wrong ID.
  * <p>
+ * By default a cache grows forever, but {@link alexiil.mc.lib.net.NetObjectCache#setMaxEntries(int) setMaxEntries} can
+ * be used to evict the least recently used entries once it's full. (The number of hits, misses, and evictions can be
+ * found with {@link alexiil.mc.lib.net.NetObjectCache#getStats(ActiveConnection) getStats}). As evicted IDs are reused,
+ * the IDs of a limited cache must be obtained with
+ * {@link alexiil.mc.lib.net.NetObjectCache#getId(IMsgWriteCtx, Object) getId(IMsgWriteCtx, Object)} instead, and only
+ * written into packets that are sent with {@link alexiil.mc.lib.net.NetIdBase#MAXIMUM_PRIORITY MAXIMUM_PRIORITY}.
+ * <p>
  * <h2>Debugging</h2>
  * <p>
  * To enable debugging (also known as log spam) you can add the option "-Dlibnetworkstack.debug=true" to the launch
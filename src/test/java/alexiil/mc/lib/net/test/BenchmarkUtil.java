@@ -0,0 +1,36 @@
+/*
+ * Copyright (c) 2019 AlexIIL
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+package alexiil.mc.lib.net.test;
+
+import java.lang.management.ManagementFactory;
+
+/** Very simple timing and allocation measurement for the main() benchmarks in this package. These aren't meant to be
+ * accurate - just good enough to compare two different implementations against each other. */
+public final class BenchmarkUtil {
+
+    private static final com.sun.management.ThreadMXBean THREADS
+        = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    private BenchmarkUtil() {}
+
+    /** Runs the given task, first for the warmup count and then for the measured count, and prints out the average
+     * time and heap allocation per operation. */
+    public static void run(String name, int warmup, int count, Runnable task) {
+        for (int i = 0; i < warmup; i++) {
+            task.run();
+        }
+        long allocStart = THREADS.getCurrentThreadAllocatedBytes();
+        long start = System.nanoTime();
+        for (int i = 0; i < count; i++) {
+            task.run();
+        }
+        long nanos = System.nanoTime() - start;
+        long alloc = THREADS.getCurrentThreadAllocatedBytes() - allocStart;
+        System.out.printf("%-40s %10.1f ns/op %10.1f bytes/op%n", name, nanos / (double) count, alloc / (double) count);
+    }
+}
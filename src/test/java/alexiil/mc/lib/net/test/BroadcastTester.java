@@ -0,0 +1,114 @@
+/*
+ * Copyright (c) 2019 AlexIIL
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+package alexiil.mc.lib.net.test;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import alexiil.mc.lib.net.BufferedConnection;
+import alexiil.mc.lib.net.IMsgReadCtx;
+import alexiil.mc.lib.net.IMsgWriteCtx;
+import alexiil.mc.lib.net.NetByteBuf;
+import alexiil.mc.lib.net.NetIdDataK;
+import alexiil.mc.lib.net.NetIdSignalK;
+import alexiil.mc.lib.net.ParentNetId;
+import alexiil.mc.lib.net.ParentNetIdSingle;
+
+/** Checks that {@link NetIdDataK#broadcast} only calls the writer once, but sends the same bytes as sending to every
+ * connection individually. */
+public class BroadcastTester {
+
+    static final ParentNetId ROOT = new ParentNetId(null, "");
+    static final ParentNetIdSingle<Integer> NUMBER
+        = new ParentNetIdSingle<Integer>(ROOT, Integer.class, "number", Integer.BYTES) {
+            @Override
+            protected Integer readContext(NetByteBuf buffer, IMsgReadCtx ctx) {
+                return buffer.readInt();
+            }
+
+            @Override
+            protected void writeContext(NetByteBuf buffer, IMsgWriteCtx ctx, Integer value) {
+                contextWrites++;
+                buffer.writeInt(value);
+            }
+        };
+
+    static final NetIdDataK<Integer> DATA = NUMBER.idData("data");
+    static final NetIdSignalK<Integer> SIGNAL = NUMBER.idSignal("signal");
+    static final NetIdSignalK<Integer> OTHER = NUMBER.idSignal("other");
+
+    static int contextWrites;
+    static int dataWrites;
+
+    static {
+        DATA.setReadWrite((value, buffer, ctx) -> buffer.readString(), (value, buffer, ctx) -> {
+            dataWrites++;
+            buffer.writeString("value is " + value);
+        });
+    }
+
+    static class CaptureConnection extends BufferedConnection {
+        final ByteArrayOutputStream sent = new ByteArrayOutputStream();
+
+        CaptureConnection() {
+            super(ROOT, 20);
+        }
+
+        @Override
+        protected void sendRawData0(NetByteBuf data) {
+            byte[] bytes = new byte[data.readableBytes()];
+            data.readBytes(bytes);
+            sent.writeBytes(bytes);
+        }
+    }
+
+    private static List<CaptureConnection> createConnections() {
+        List<CaptureConnection> list = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            CaptureConnection connection = new CaptureConnection();
+            // Give every connection different IDs
+            for (int j = 0; j < i; j++) {
+                OTHER.send(connection, j);
+            }
+            list.add(connection);
+        }
+        return list;
+    }
+
+    @Test
+    public void testBroadcast() {
+        List<CaptureConnection> individual = createConnections();
+        List<CaptureConnection> broadcast = createConnections();
+
+        for (int value = 0; value < 4; value++) {
+            for (CaptureConnection connection : individual) {
+                DATA.send(connection, value);
+                SIGNAL.send(connection, value);
+            }
+        }
+
+        contextWrites = 0;
+        dataWrites = 0;
+        for (int value = 0; value < 4; value++) {
+            DATA.broadcast(broadcast, value);
+            SIGNAL.broadcast(broadcast, value);
+        }
+        Assert.assertEquals(4, dataWrites);
+        Assert.assertEquals(8, contextWrites);
+
+        for (int i = 0; i < 3; i++) {
+            individual.get(i).tick();
+            broadcast.get(i).tick();
+            Assert.assertArrayEquals(individual.get(i).sent.toByteArray(), broadcast.get(i).sent.toByteArray());
+        }
+    }
+}
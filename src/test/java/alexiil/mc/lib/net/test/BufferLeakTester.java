@@ -0,0 +1,125 @@
+/*
+ * Copyright (c) 2019 AlexIIL
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+package alexiil.mc.lib.net.test;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import alexiil.mc.lib.net.InternalMsgUtil;
+import alexiil.mc.lib.net.InvalidInputDataException;
+import alexiil.mc.lib.net.NetByteBuf;
+import alexiil.mc.lib.net.NetIdData;
+import alexiil.mc.lib.net.NetIdSignal;
+import alexiil.mc.lib.net.ParentNetId;
+
+/** Checks that every buffer which LNS allocates internally is released again. */
+public class BufferLeakTester {
+
+    static final ParentNetId ROOT = new ParentNetId(null, "");
+    static final NetIdData DATA = ROOT.idData("data");
+    static final NetIdSignal SIGNAL = ROOT.idSignal("signal");
+
+    static int received;
+
+    static {
+        DATA.setReceiver((buffer, ctx) -> {
+            Assert.assertEquals(1234, buffer.readVarInt());
+            received++;
+        });
+        SIGNAL.setReceiver(ctx -> received++);
+    }
+
+    @Test
+    public void testNoLeaksCopying() throws InvalidInputDataException {
+        testNoLeaks(false);
+    }
+
+    @Test
+    public void testNoLeaksZeroCopy() throws InvalidInputDataException {
+        testNoLeaks(true);
+    }
+
+    private static void testNoLeaks(boolean zeroCopy) throws InvalidInputDataException {
+        TrackingAllocator allocator = new TrackingAllocator();
+        QueueConnection from = createConnection(allocator, zeroCopy);
+        QueueConnection to = createConnection(allocator, zeroCopy);
+        received = 0;
+
+        for (int i = 0; i < 100; i++) {
+            DATA.send(from, (buffer, ctx) -> buffer.writeVarInt(1234));
+            SIGNAL.send(from);
+        }
+        from.tick();
+        from.deliverTo(to);
+
+        Assert.assertEquals(200, received);
+        Assert.assertEquals(0, allocator.getLiveBuffers());
+    }
+
+    /** Checks the extra packets that are sent when the other side has debug.record_types and
+     * debug.record_stacktraces enabled. (As the config can't be changed by the tests these are requested and written
+     * here instead). */
+    @Test
+    public void testNoLeaksDebug() throws InvalidInputDataException {
+        TrackingAllocator allocator = new TrackingAllocator();
+        QueueConnection from = createConnection(allocator, true);
+        QueueConnection to = createConnection(allocator, true);
+        received = 0;
+
+        NetByteBuf request = NetByteBuf.asNetByteBuf(allocator.buffer());
+        request.writeVarUnsignedInt(InternalMsgUtil.ID_INTERNAL_REQUEST_DEBUG_TYPES);
+        receive(from, request);
+
+        // A single stacktrace element, in the same format that the sender uses
+        NetByteBuf allocation = NetByteBuf.buffer();
+        allocation.writeFixedBits(0, 2);
+        allocation.writeVarUnsignedInt(1);
+        allocation.writeVarUnsignedInt(0);
+        allocation.writeFixedBits(0, 2);
+        allocation.writeString("java");
+        NetByteBuf stacktraces = NetByteBuf.asNetByteBuf(allocator.buffer());
+        stacktraces.writeVarUnsignedInt(InternalMsgUtil.ID_INTERNAL_ALLOCATE_STACKTRACE_ELEMENT);
+        stacktraces.writeByte(0);
+        stacktraces.writeVarUnsignedInt(allocation.readableBytes());
+        stacktraces.writeBytes(allocation);
+        allocation.release();
+        receive(to, stacktraces);
+
+        // Types which aren't followed by a packet are replaced by the next types
+        NetByteBuf types = NetByteBuf.asNetByteBuf(allocator.buffer());
+        types.writeVarUnsignedInt(InternalMsgUtil.ID_INTERNAL_DEBUG_TYPES);
+        types.writeVarUnsignedInt(1);
+        types.writeVarUnsignedInt(1);
+        types.writeByte(0);
+        receive(to, types);
+
+        for (int i = 0; i < 100; i++) {
+            DATA.send(from, (buffer, ctx) -> buffer.writeVarInt(1234));
+        }
+        from.tick();
+        from.deliverTo(to);
+
+        Assert.assertEquals(100, received);
+        Assert.assertEquals(0, allocator.getLiveBuffers());
+    }
+
+    private static void receive(QueueConnection connection, NetByteBuf data) throws InvalidInputDataException {
+        try {
+            connection.onReceiveRawData(data);
+        } finally {
+            data.release();
+        }
+    }
+
+    private static QueueConnection createConnection(TrackingAllocator allocator, boolean zeroCopy) {
+        QueueConnection connection = new QueueConnection(ROOT);
+        connection.setAllocator(allocator);
+        connection.setZeroCopyWrites(zeroCopy);
+        return connection;
+    }
+}
@@ -0,0 +1,211 @@
+/*
+ * Copyright (c) 2019 AlexIIL
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+package alexiil.mc.lib.net.test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import alexiil.mc.lib.net.BufferedConnection;
+import alexiil.mc.lib.net.BufferedConnection.SendStats;
+import alexiil.mc.lib.net.CoalescingPolicy;
+import alexiil.mc.lib.net.NetByteBuf;
+import alexiil.mc.lib.net.NetIdData;
+import alexiil.mc.lib.net.ParentNetId;
+
+public class BufferedConnectionTester {
+
+    static final ParentNetId ROOT = new ParentNetId(null, "");
+    static final NetIdData IMPORTANT = ROOT.idData("important");
+    static final NetIdData BULK = ROOT.idData("bulk");
+    static final NetIdData DROPPABLE = ROOT.idData("droppable");
+
+    static {
+        BULK.setDefaultPriority(-1);
+        DROPPABLE.setDefaultPriority(-2);
+        DROPPABLE.setMaximumDropDelay(2);
+    }
+
+    static class CountingConnection extends BufferedConnection {
+        int bytesThisTick;
+        int maxBytesPerTick;
+
+        CountingConnection() {
+            super(ROOT, 20);
+        }
+
+        @Override
+        protected void sendRawData0(NetByteBuf data) {
+            bytesThisTick += data.readableBytes();
+        }
+
+        @Override
+        public void tick() {
+            bytesThisTick = 0;
+            super.tick();
+            maxBytesPerTick = Math.max(maxBytesPerTick, bytesThisTick);
+        }
+    }
+
+    static class CoalescingConnection extends CountingConnection {
+        int frames;
+        final List<Long> scheduled = new ArrayList<>();
+
+        CoalescingConnection(CoalescingPolicy policy) {
+            // Send the ID allocations first, so they don't count as frames
+            send(IMPORTANT, this, 1);
+            send(BULK, this, 1);
+            tick();
+            setCoalescingPolicy(policy);
+        }
+
+        @Override
+        protected void sendRawData0(NetByteBuf data) {
+            super.sendRawData0(data);
+            frames++;
+        }
+
+        @Override
+        protected void scheduleFlush(long delayNanos) {
+            scheduled.add(delayNanos);
+        }
+
+        void fireTimer() {
+            onFlushTimer();
+        }
+    }
+
+    private static void send(NetIdData id, CountingConnection connection, int count) {
+        for (int i = 0; i < count; i++) {
+            id.send(connection, (buffer, ctx) -> buffer.writeBytes(new byte[100]));
+        }
+    }
+
+    @Test
+    public void testUnlimitedSendsEverything() {
+        CountingConnection connection = new CountingConnection();
+        send(BULK, connection, 50);
+        connection.tick();
+        Assert.assertEquals(0, connection.getDelayedPacketCount());
+        Assert.assertEquals(50, connection.getSendStats(BULK).getPacketsSent());
+        Assert.assertEquals(0, connection.getSendStats(BULK).getPacketsDeferred());
+    }
+
+    @Test
+    public void testBudgetDefersLowPriority() {
+        CountingConnection connection = new CountingConnection();
+        // 8000 bytes per second = 400 bytes per tick
+        connection.setMaxBandwidth(8000);
+        send(IMPORTANT, connection, 2);
+        send(BULK, connection, 20);
+
+        connection.tick();
+        SendStats important = connection.getSendStats(IMPORTANT);
+        SendStats bulk = connection.getSendStats(BULK);
+        Assert.assertEquals(2, important.getPacketsSent());
+        Assert.assertTrue(bulk.getPacketsSent() < 20);
+        Assert.assertEquals(20, bulk.getPacketsSent() + connection.getDelayedPacketCount());
+        Assert.assertEquals(connection.getDelayedPacketCount(), bulk.getPacketsDeferred());
+
+        for (int i = 0; i < 20 && connection.getDelayedPacketCount() > 0; i++) {
+            connection.tick();
+        }
+        Assert.assertEquals(0, connection.getDelayedPacketCount());
+        Assert.assertEquals(20, bulk.getPacketsSent());
+        Assert.assertEquals(0, bulk.getPacketsDropped());
+        Assert.assertTrue("Sent " + connection.maxBytesPerTick, connection.maxBytesPerTick <= 400);
+    }
+
+    @Test
+    public void testHigherPriorityFirst() {
+        CountingConnection connection = new CountingConnection();
+        connection.setMaxBandwidth(8000);
+        send(DROPPABLE, connection, 3);
+        send(BULK, connection, 3);
+        connection.tick();
+        Assert.assertEquals(3, connection.getSendStats(BULK).getPacketsSent());
+        Assert.assertEquals(0, connection.getSendStats(DROPPABLE).getPacketsSent());
+    }
+
+    @Test
+    public void testDropDelay() {
+        CountingConnection connection = new CountingConnection();
+        connection.setMaxBandwidth(8000);
+        send(DROPPABLE, connection, 20);
+        for (int i = 0; i < 5; i++) {
+            connection.tick();
+        }
+        SendStats stats = connection.getSendStats(DROPPABLE);
+        Assert.assertEquals(0, connection.getDelayedPacketCount());
+        Assert.assertTrue(stats.getPacketsDropped() > 0);
+        Assert.assertEquals(20, stats.getPacketsSent() + stats.getPacketsDropped());
+    }
+
+    @Test
+    public void testTickFlushOnAnotherThread() throws InterruptedException {
+        CountingConnection connection = new CountingConnection();
+        send(IMPORTANT, connection, 5);
+        connection.tickWrite();
+        Assert.assertEquals(0, connection.bytesThisTick);
+        Thread thread = new Thread(connection::tickFlush);
+        thread.start();
+        thread.join();
+        Assert.assertEquals(5, connection.getSendStats(IMPORTANT).getPacketsSent());
+        Assert.assertTrue(connection.bytesThisTick >= 500);
+    }
+
+    @Test
+    public void testCoalesceImmediately() {
+        CoalescingConnection connection
+            = new CoalescingConnection(new CoalescingPolicy(0, CoalescingPolicy.WAIT_FOR_TICK, 1 << 16));
+        connection.frames = 0;
+        send(IMPORTANT, connection, 3);
+        Assert.assertEquals(3, connection.frames);
+        send(BULK, connection, 3);
+        Assert.assertEquals(3, connection.frames);
+        connection.tick();
+        Assert.assertEquals(4, connection.frames);
+        Assert.assertTrue(connection.scheduled.isEmpty());
+    }
+
+    @Test
+    public void testCoalesceBytes() {
+        CoalescingConnection connection = new CoalescingConnection(new CoalescingPolicy(1_000_000, 1_000_000, 250));
+        connection.frames = 0;
+        send(IMPORTANT, connection, 2);
+        Assert.assertEquals(0, connection.frames);
+        // Only the first packet needs a timer, as the second has a later deadline
+        Assert.assertEquals(1, connection.scheduled.size());
+        Assert.assertTrue(connection.scheduled.get(0) <= 1_000_000_000L);
+        connection.fireTimer();
+        Assert.assertEquals(0, connection.frames);
+        send(BULK, connection, 1);
+        Assert.assertEquals(1, connection.frames);
+    }
+
+    @Test
+    public void testCoalesceTimer() throws InterruptedException {
+        CoalescingConnection connection = new CoalescingConnection(new CoalescingPolicy(1000, 1000, 1 << 16));
+        connection.frames = 0;
+        send(IMPORTANT, connection, 2);
+        send(BULK, connection, 2);
+        Assert.assertEquals(0, connection.frames);
+        Thread.sleep(5);
+        Thread thread = new Thread(connection::fireTimer);
+        thread.start();
+        thread.join();
+        Assert.assertEquals(1, connection.frames);
+        // Including the one sent before the policy was set
+        Assert.assertEquals(3, connection.getSendStats(BULK).getPacketsSent());
+        // The timer can fire after the queue has already been flushed
+        connection.fireTimer();
+        Assert.assertEquals(1, connection.frames);
+    }
+}
@@ -0,0 +1,148 @@
+/*
+ * Copyright (c) 2019 AlexIIL
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+package alexiil.mc.lib.net.test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import alexiil.mc.lib.net.ActiveConnection;
+import alexiil.mc.lib.net.InvalidInputDataException;
+import alexiil.mc.lib.net.NetByteBuf;
+import alexiil.mc.lib.net.NetIdData;
+import alexiil.mc.lib.net.NetObjectCache;
+import alexiil.mc.lib.net.NetObjectCacheSimple;
+import alexiil.mc.lib.net.ParentNetId;
+
+import it.unimi.dsi.fastutil.Hash;
+
+/** Checks that {@link NetObjectCacheSimple#withDictionary(ParentNetId, List)} is agreed on by both sides, and then used
+ * instead of sending the objects. */
+public class CacheDictionaryTester {
+
+    static final Hash.Strategy<String> EQUALITY = new Hash.Strategy<String>() {
+        @Override
+        public int hashCode(String o) {
+            return Objects.hashCode(o);
+        }
+
+        @Override
+        public boolean equals(String a, String b) {
+            return Objects.equals(a, b);
+        }
+    };
+
+    static final NetObjectCache.IEntrySerialiser<String> SERIALISER = new NetObjectCache.IEntrySerialiser<String>() {
+        @Override
+        public void write(String obj, ActiveConnection connection, NetByteBuf buffer) {
+            buffer.writeString(obj);
+        }
+
+        @Override
+        public String read(ActiveConnection connection, NetByteBuf buffer) {
+            return buffer.readString();
+        }
+    };
+
+    /** One side of a connection, with it's own copy of the dictionary. */
+    static final class Side {
+        final ParentNetId root = new ParentNetId(null, "");
+        final NetObjectCacheSimple<String> cache;
+        final NetIdData data = root.idData("data");
+        final List<String> received = new ArrayList<>();
+        final LoopbackConnection connection = new LoopbackConnection(root);
+
+        Side(List<String> dictionary) {
+            cache = new NetObjectCacheSimple<>(EQUALITY, SERIALISER).withDictionary(root.child("dict"), dictionary);
+            data.setReceiver((buffer, ctx) -> received.add(cache.read(buffer, ctx)));
+        }
+
+        int send(String str) {
+            int[] size = new int[1];
+            data.send(connection, (buffer, ctx) -> {
+                int before = buffer.writerIndex();
+                cache.write(str, buffer, ctx);
+                size[0] = buffer.writerIndex() - before;
+            });
+            return size[0];
+        }
+    }
+
+    private static void connect(Side a, Side b) {
+        LoopbackConnection.link(a.connection, b.connection);
+    }
+
+    private static void exchange(Side a, Side b) {
+        for (int i = 0; i < 4; i++) {
+            a.connection.tick();
+            b.connection.tick();
+        }
+    }
+
+    @Test
+    public void testSameDictionary() {
+        Side a = new Side(List.of("minecraft:stone", "minecraft:dirt", "minecraft:grass_block"));
+        Side b = new Side(List.of("minecraft:stone", "minecraft:dirt", "minecraft:grass_block"));
+        connect(a, b);
+
+        // Not accepted yet, so it's written out in full
+        Assert.assertTrue(a.send("minecraft:dirt") > 10);
+        exchange(a, b);
+        Assert.assertEquals(2, a.send("minecraft:grass_block"));
+        Assert.assertEquals(2, a.send("minecraft:dirt"));
+        // Objects which aren't in the dictionary still work
+        Assert.assertTrue(a.send("minecraft:sand") > 10);
+        Assert.assertEquals(2, a.send("minecraft:sand"));
+        exchange(a, b);
+        Assert.assertEquals(
+            List.of("minecraft:dirt", "minecraft:grass_block", "minecraft:dirt", "minecraft:sand", "minecraft:sand"),
+            b.received
+        );
+    }
+
+    @Test
+    public void testDifferentDictionary() {
+        Side a = new Side(List.of("minecraft:stone", "minecraft:dirt", "mod:machine"));
+        Side b = new Side(List.of("minecraft:stone", "minecraft:dirt"));
+        connect(a, b);
+
+        a.send("mod:machine");
+        // b asks for a's dictionary, and then uses it
+        exchange(a, b);
+        Assert.assertEquals(2, a.send("mod:machine"));
+        Assert.assertEquals(2, a.send("minecraft:stone"));
+        exchange(a, b);
+        Assert.assertEquals(List.of("mod:machine", "mod:machine", "minecraft:stone"), b.received);
+    }
+
+    @Test
+    public void testUnrequestedContent() {
+        Side b = new Side(List.of("minecraft:stone"));
+        // Pretends to be the other side's dictionary, but sends it's content without being asked
+        ParentNetId root = new ParentNetId(null, "");
+        NetIdData content = root.child("dict").idData("content");
+        LoopbackConnection connection = new LoopbackConnection(root);
+        connection.to = b.connection;
+        content.send(connection, (buffer, ctx) -> {
+            // The length of the content, and then an empty dictionary
+            buffer.writeVarUnsignedInt(1);
+            buffer.writeVarUnsignedInt(0);
+        });
+        AssertionError error = null;
+        try {
+            connection.flushQueue();
+        } catch (AssertionError e) {
+            error = e;
+        }
+        Assert.assertNotNull("The content should have been rejected", error);
+        Assert.assertTrue(String.valueOf(error.getCause()), error.getCause() instanceof InvalidInputDataException);
+    }
+}
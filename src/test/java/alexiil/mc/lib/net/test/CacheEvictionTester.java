@@ -0,0 +1,220 @@
+/*
+ * Copyright (c) 2019 AlexIIL
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+package alexiil.mc.lib.net.test;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import alexiil.mc.lib.net.ActiveConnection;
+import alexiil.mc.lib.net.NetByteBuf;
+import alexiil.mc.lib.net.NetIdData;
+import alexiil.mc.lib.net.NetObjectCache;
+import alexiil.mc.lib.net.NetObjectCache.CacheStats;
+import alexiil.mc.lib.net.ParentNetId;
+
+import it.unimi.dsi.fastutil.Hash;
+
+/** Checks that {@link NetObjectCache} evicts the least recently used entries, and that removals reach the other
+ * side. */
+public class CacheEvictionTester {
+
+    static final ParentNetId ROOT = new ParentNetId(null, "");
+    static final NetObjectCache<String> CACHE = new NetObjectCache<>(ROOT.child("strings"), new Hash.Strategy<String>() {
+        @Override
+        public int hashCode(String o) {
+            return Objects.hashCode(o);
+        }
+
+        @Override
+        public boolean equals(String a, String b) {
+            return Objects.equals(a, b);
+        }
+    }, new NetObjectCache.IEntrySerialiser<String>() {
+        @Override
+        public void write(String obj, ActiveConnection connection, NetByteBuf buffer) {
+            buffer.writeString(obj);
+        }
+
+        @Override
+        public String read(ActiveConnection connection, NetByteBuf buffer) {
+            return buffer.readString();
+        }
+    });
+
+    static final NetIdData DATA = ROOT.idData("data");
+    static final NetIdData PAIR = ROOT.idData("pair");
+    static final NetIdData IDS = ROOT.idData("ids");
+    static final NetIdData LOW = ROOT.idData("low");
+    static final NetIdData FILLER = ROOT.idData("filler");
+    static final List<String> received = new ArrayList<>();
+
+    static {
+        CACHE.setMaxEntries(2);
+        DATA.setReceiver((buffer, ctx) -> received.add(CACHE.readCached(buffer, ctx)));
+        PAIR.setReceiver((buffer, ctx) -> {
+            received.add(CACHE.readCached(buffer, ctx));
+            received.add(CACHE.readCached(buffer, ctx));
+        });
+        IDS.setReceiver((buffer, ctx) -> buffer.readVarUnsignedInt());
+        LOW.setDefaultPriority(-1);
+        LOW.setReceiver((buffer, ctx) -> received.add(CACHE.readCached(buffer, ctx)));
+        FILLER.setDefaultPriority(-1);
+        FILLER.setReceiver((buffer, ctx) -> buffer.skipBytes(buffer.readableBytes()));
+    }
+
+    /** Gets the ID of the given string in the same way that a packet which writes the ID itself would. */
+    private static int getId(ActiveConnection from, String str) {
+        int[] id = { -1 };
+        IDS.send(from, (buffer, ctx) -> {
+            id[0] = CACHE.getId(ctx, str);
+            buffer.writeVarUnsignedInt(id[0]);
+        });
+        return id[0];
+    }
+
+    @Test
+    public void testEviction() {
+        LoopbackConnection from = new LoopbackConnection(ROOT);
+        LoopbackConnection to = new LoopbackConnection(ROOT);
+        from.to = to;
+
+        int a = getId(from, "a");
+        int b = getId(from, "b");
+        Assert.assertEquals(a, getId(from, "a"));
+        // "b" is now the least recently used entry, so its ID is reused
+        int c = getId(from, "c");
+        Assert.assertEquals(b, c);
+        from.tick();
+
+        Assert.assertEquals("a", CACHE.getObj(to, a));
+        Assert.assertEquals("c", CACHE.getObj(to, c));
+
+        CacheStats stats = CACHE.getStats(from);
+        Assert.assertEquals(2, stats.getSize());
+        Assert.assertEquals(1, stats.getHits());
+        Assert.assertEquals(3, stats.getMisses());
+        Assert.assertEquals(1, stats.getEvictions());
+
+        CACHE.remove(from, "a");
+        from.tick();
+        Assert.assertNull(CACHE.getObj(to, a));
+        Assert.assertEquals(1, CACHE.getStats(from).getSize());
+
+        // Removed IDs are reused before the cache grows
+        Assert.assertEquals(a, getId(from, "d"));
+        from.tick();
+        Assert.assertEquals("d", CACHE.getObj(to, a));
+    }
+
+    @Test
+    public void testBareId() {
+        LoopbackConnection from = new LoopbackConnection(ROOT);
+        // The ID of a limited cache could be reused at any time
+        Assert.assertThrows(IllegalStateException.class, () -> CACHE.getId(from, "a"));
+    }
+
+    @Test
+    public void testWriteCached() {
+        LoopbackConnection from = new LoopbackConnection(ROOT);
+        LoopbackConnection to = new LoopbackConnection(ROOT);
+        from.to = to;
+        received.clear();
+
+        Set<String> sent = new HashSet<>();
+        for (String str : new String[] { "x", "y", "x", "z", "z" }) {
+            boolean isCached = !sent.add(str);
+            DATA.send(from, (buffer, ctx) -> {
+                int before = buffer.writerIndex();
+                CACHE.writeCached(buffer, ctx, str);
+                if (isCached) {
+                    // References to small IDs only take up a single byte
+                    Assert.assertEquals(1, buffer.writerIndex() - before);
+                }
+            });
+        }
+        Assert.assertEquals(2, CACHE.getStats(from).getHits());
+        Assert.assertEquals(3, CACHE.getStats(from).getMisses());
+        from.tick();
+        Assert.assertEquals(List.of("x", "y", "x", "z", "z"), received);
+    }
+
+    @Test
+    public void testDelayedWriteCached() {
+        LoopbackConnection from = new LoopbackConnection(ROOT);
+        LoopbackConnection to = new LoopbackConnection(ROOT);
+        from.to = to;
+        received.clear();
+
+        // 8000 bytes per second = 400 bytes per tick, so the filler delays every later low priority packet
+        from.setMaxBandwidth(8000);
+        FILLER.send(from, (buffer, ctx) -> buffer.writeBytes(new byte[1000]));
+        getId(from, "a");
+        // "a" is evicted (and it's ID given to "c") before a low priority packet could be sent
+        Assert.assertThrows(
+            IllegalStateException.class, () -> LOW.send(from, (buffer, ctx) -> CACHE.writeCached(buffer, ctx, "a"))
+        );
+        getId(from, "b");
+        getId(from, "c");
+        for (int i = 0; i < 5; i++) {
+            from.tick();
+        }
+        Assert.assertEquals(List.of(), received);
+        Assert.assertEquals(1, CACHE.getStats(from).getEvictions());
+
+        // IDs are never reused while the cache isn't limited, so the same packet is read correctly
+        CACHE.setMaxEntries(Integer.MAX_VALUE);
+        try {
+            FILLER.send(from, (buffer, ctx) -> buffer.writeBytes(new byte[1000]));
+            LOW.send(from, (buffer, ctx) -> CACHE.writeCached(buffer, ctx, "b"));
+            getId(from, "d");
+            getId(from, "e");
+            for (int i = 0; i < 5; i++) {
+                from.tick();
+            }
+            Assert.assertEquals(List.of("b"), received);
+        } finally {
+            CACHE.setMaxEntries(2);
+        }
+    }
+
+    @Test
+    public void testLowerMaxEntries() {
+        LoopbackConnection from = new LoopbackConnection(ROOT);
+        LoopbackConnection to = new LoopbackConnection(ROOT);
+        from.to = to;
+        received.clear();
+
+        CACHE.setMaxEntries(4);
+        try {
+            for (String str : new String[] { "a", "b", "c", "d" }) {
+                getId(from, str);
+            }
+            from.tick();
+
+            CACHE.setMaxEntries(1);
+            // "c" is the most recently used entry when "e" is added, but it must not be removed before this packet
+            PAIR.send(from, (buffer, ctx) -> {
+                CACHE.writeCached(buffer, ctx, "c");
+                CACHE.writeCached(buffer, ctx, "e");
+            });
+            Assert.assertEquals(4, CACHE.getStats(from).getSize());
+            from.tick();
+            Assert.assertEquals(List.of("c", "e"), received);
+            Assert.assertEquals(1, CACHE.getStats(from).getSize());
+            Assert.assertEquals(4, CACHE.getStats(from).getEvictions());
+        } finally {
+            CACHE.setMaxEntries(2);
+        }
+    }
+}
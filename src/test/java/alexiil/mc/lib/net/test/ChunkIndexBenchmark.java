@@ -0,0 +1,85 @@
+/*
+ * Copyright (c) 2019 AlexIIL
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+package alexiil.mc.lib.net.test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import alexiil.mc.lib.net.impl.ChunkIndex;
+
+/** Compares finding the players that are watching a chunk by checking every player (which is how
+ * CoreMinecraftNetUtil.getPlayersWatching used to work) against looking them up in a {@link ChunkIndex}. Each
+ * operation finds the watching players for 10,000 block entities, with 200 players that each watch a 21x21 area of
+ * chunks. */
+public class ChunkIndexBenchmark {
+
+    static final int PLAYERS = 200;
+    static final int QUERIES = 10_000;
+    static final int VIEW_DISTANCE = 10;
+    static final int WORLD_SIZE = 100;
+
+    static final class FakePlayer {
+        final Set<Long> watching = new HashSet<>();
+    }
+
+    static final Object WORLD = new Object();
+
+    public static void main(String[] args) {
+        Random rand = new Random(42);
+        List<FakePlayer> players = new ArrayList<>();
+        Map<FakePlayer, FakePlayer> connections = new HashMap<>();
+        ChunkIndex<Object, FakePlayer> index = new ChunkIndex<>();
+        for (int p = 0; p < PLAYERS; p++) {
+            FakePlayer player = new FakePlayer();
+            int px = rand.nextInt(WORLD_SIZE);
+            int pz = rand.nextInt(WORLD_SIZE);
+            for (int x = px - VIEW_DISTANCE; x <= px + VIEW_DISTANCE; x++) {
+                for (int z = pz - VIEW_DISTANCE; z <= pz + VIEW_DISTANCE; z++) {
+                    player.watching.add(pos(x, z));
+                    index.add(WORLD, pos(x, z), player);
+                }
+            }
+            players.add(player);
+            connections.put(player, player);
+        }
+        long[] queries = new long[QUERIES];
+        for (int i = 0; i < QUERIES; i++) {
+            queries[i] = pos(rand.nextInt(WORLD_SIZE), rand.nextInt(WORLD_SIZE));
+        }
+
+        long[] found = new long[1];
+        for (int round = 0; round < 3; round++) {
+            BenchmarkUtil.run("scan every player", 20, 200, () -> {
+                for (long chunk : queries) {
+                    List<FakePlayer> list = new ArrayList<>();
+                    for (FakePlayer player : players) {
+                        if (player.watching.contains(chunk)) {
+                            list.add(connections.get(player));
+                        }
+                    }
+                    found[0] += list.size();
+                }
+            });
+            BenchmarkUtil.run("chunk index", 20, 200, () -> {
+                for (long chunk : queries) {
+                    found[0] += index.forEach(WORLD, chunk, player -> {});
+                }
+            });
+        }
+        System.out.println("(found " + found[0] + ")");
+    }
+
+    static long pos(int x, int z) {
+        return (x & 0xFFFFFFFFL) | ((z & 0xFFFFFFFFL) << 32);
+    }
+}
@@ -0,0 +1,84 @@
+/*
+ * Copyright (c) 2019 AlexIIL
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+package alexiil.mc.lib.net.test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import alexiil.mc.lib.net.BufferedConnection.CompressionMode;
+import alexiil.mc.lib.net.BufferedConnection.CompressionStats;
+import alexiil.mc.lib.net.InvalidInputDataException;
+import alexiil.mc.lib.net.NetIdData;
+import alexiil.mc.lib.net.ParentNetId;
+
+/** Checks that compressed frames are negotiated, and can be decompressed in order. */
+public class CompressionTester {
+
+    static final ParentNetId ROOT = new ParentNetId(null, "");
+    static final NetIdData DATA = ROOT.idData("data");
+
+    static final List<String> received = new ArrayList<>();
+
+    static {
+        DATA.setReceiver((buffer, ctx) -> received.add(buffer.readString()));
+    }
+
+    @Test
+    public void testFast() throws InvalidInputDataException {
+        test(CompressionMode.FAST);
+    }
+
+    @Test
+    public void testDeflate() throws InvalidInputDataException {
+        test(CompressionMode.DEFLATE);
+    }
+
+    private static void test(CompressionMode mode) throws InvalidInputDataException {
+        QueueConnection a = new QueueConnection(ROOT);
+        a.setCompression(mode, 64);
+        QueueConnection b = new QueueConnection(ROOT);
+        b.setCompression(CompressionMode.NONE, 64);
+        received.clear();
+
+        // Negotiation: a offers, b replies
+        a.tick();
+        a.deliverTo(b);
+        Assert.assertFalse(a.isCompressing());
+        b.tick();
+        b.deliverTo(a);
+        Assert.assertTrue(a.isCompressing());
+        Assert.assertFalse(b.isCompressing());
+
+        List<String> expected = new ArrayList<>();
+        for (int tick = 0; tick < 20; tick++) {
+            for (int i = 0; i < 10; i++) {
+                String text = "machine " + i + " is now at progress " + (tick * 5) + "% and has power";
+                expected.add(text);
+                DATA.send(a, (buffer, ctx) -> buffer.writeString(text));
+            }
+            // Tiny frames are sent as they are
+            DATA.send(a, (buffer, ctx) -> buffer.writeString("x"));
+            a.flushQueue();
+            expected.add("x");
+            a.tick();
+        }
+        long sentBytes = a.sentBytes;
+        a.deliverTo(b);
+
+        Assert.assertEquals(expected, received);
+        CompressionStats stats = a.getCompressionStats();
+        Assert.assertEquals(20, stats.getFramesCompressed());
+        Assert.assertTrue(stats.getCompressionRatio() < 0.5);
+        Assert.assertEquals(20, b.getCompressionStats().getFramesDecompressed());
+        Assert.assertEquals(stats.getBytesAfterCompression(), b.getCompressionStats().getBytesBeforeDecompression());
+        Assert.assertTrue(sentBytes < stats.getBytesBeforeCompression());
+    }
+}
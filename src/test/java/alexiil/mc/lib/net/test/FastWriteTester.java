@@ -0,0 +1,146 @@
+/*
+ * Copyright (c) 2019 AlexIIL
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+package alexiil.mc.lib.net.test;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import io.netty.buffer.Unpooled;
+
+import alexiil.mc.lib.net.BufferedConnection;
+import alexiil.mc.lib.net.IMsgReadCtx;
+import alexiil.mc.lib.net.IMsgWriteCtx;
+import alexiil.mc.lib.net.InvalidInputDataException;
+import alexiil.mc.lib.net.NetByteBuf;
+import alexiil.mc.lib.net.NetIdDataK;
+import alexiil.mc.lib.net.NetIdSignalK;
+import alexiil.mc.lib.net.ParentNetId;
+import alexiil.mc.lib.net.ParentNetIdDuel;
+import alexiil.mc.lib.net.ParentNetIdSingle;
+
+/** Checks that the fast write path writes exactly the same bytes as the normal write path. */
+public class FastWriteTester {
+
+    static final ParentNetId ROOT = new ParentNetId(null, "");
+    static final ParentNetIdSingle<Integer> NUMBER
+        = new ParentNetIdSingle<Integer>(ROOT, Integer.class, "number", Integer.BYTES) {
+            @Override
+            protected Integer readContext(NetByteBuf buffer, IMsgReadCtx ctx) {
+                return buffer.readInt();
+            }
+
+            @Override
+            protected void writeContext(NetByteBuf buffer, IMsgWriteCtx ctx, Integer value) {
+                buffer.writeInt(value);
+            }
+        };
+    static final ParentNetIdDuel<Integer, String> TEXT = NUMBER.extractor(String.class, "text", Integer::valueOf, String::valueOf);
+
+    static final NetIdDataK<Integer> DATA = NUMBER.idData("data");
+    static final NetIdDataK<Integer> DATA_TINY = NUMBER.idData("tiny").withTinySize();
+    static final NetIdDataK<Integer> DATA_FIXED = NUMBER.idData("fixed", Short.BYTES);
+    static final NetIdDataK<String> DATA_NESTED = TEXT.idData("nested");
+    static final NetIdSignalK<Integer> SIGNAL = NUMBER.idSignal("signal");
+
+    static final List<String> received = new ArrayList<>();
+
+    static {
+        DATA.setReadWrite((value, buffer, ctx) -> {
+            received.add("data " + value + " " + buffer.readVarInt());
+        }, (value, buffer, ctx) -> buffer.writeVarInt(value * 1000));
+        DATA_TINY.setReadWrite((value, buffer, ctx) -> {
+            received.add("tiny " + value + " " + buffer.readBoolean());
+        }, (value, buffer, ctx) -> buffer.writeBoolean(value > 2));
+        DATA_FIXED.setReadWrite((value, buffer, ctx) -> {
+            received.add("fixed " + value + " " + buffer.readShort());
+        }, (value, buffer, ctx) -> buffer.writeShort(-value));
+        DATA_NESTED.setReadWrite((value, buffer, ctx) -> {
+            received.add("nested " + value + " " + buffer.readString());
+        }, (value, buffer, ctx) -> {
+            // Sending another packet from inside a writer must not break the outer context
+            SIGNAL.send(ctx.getConnection(), 99);
+            Assert.assertSame(DATA_NESTED, ctx.getNetId());
+            buffer.writeString(value);
+        });
+        SIGNAL.setReceiver((value, ctx) -> received.add("signal " + value));
+    }
+
+    static class CaptureConnection extends BufferedConnection {
+        final ByteArrayOutputStream sent = new ByteArrayOutputStream();
+
+        CaptureConnection(boolean fast) {
+            super(ROOT, 20);
+            setFastWrites(fast);
+        }
+
+        @Override
+        protected void sendRawData0(NetByteBuf data) {
+            byte[] bytes = new byte[data.readableBytes()];
+            data.readBytes(bytes);
+            sent.writeBytes(bytes);
+        }
+    }
+
+    @Test
+    public void testSameBytes() throws InvalidInputDataException {
+        CaptureConnection normal = new CaptureConnection(false);
+        CaptureConnection fast = new CaptureConnection(true);
+        sendAll(normal);
+        sendAll(fast);
+        byte[] normalBytes = normal.sent.toByteArray();
+        Assert.assertArrayEquals(normalBytes, fast.sent.toByteArray());
+
+        received.clear();
+        CaptureConnection to = new CaptureConnection(true);
+        NetByteBuf data = NetByteBuf.asNetByteBuf(Unpooled.wrappedBuffer(normalBytes));
+        to.onReceiveRawData(data);
+        data.release();
+        Assert.assertEquals(26, received.size());
+        Assert.assertEquals("data 0 0", received.get(0));
+        Assert.assertEquals("tiny 3 true", received.get(13));
+        Assert.assertEquals("fixed 4 -4", received.get(18));
+        Assert.assertEquals("signal 99", received.get(20));
+        Assert.assertEquals("nested 0 0", received.get(21));
+        Assert.assertEquals("signal 99", received.get(22));
+        Assert.assertEquals("nested 12 12", received.get(23));
+    }
+
+    @Test
+    public void testEmptyWrite() {
+        CaptureConnection fast = new CaptureConnection(true);
+        DATA.send(fast, 1, (value, buffer, ctx) -> {});
+        fast.tick();
+        // Not even the id should have been allocated
+        Assert.assertEquals(0, fast.sent.size());
+
+        DATA.send(fast, 1);
+        fast.tick();
+        CaptureConnection normal = new CaptureConnection(false);
+        DATA.send(normal, 1);
+        normal.tick();
+        Assert.assertArrayEquals(normal.sent.toByteArray(), fast.sent.toByteArray());
+    }
+
+    private static void sendAll(CaptureConnection connection) {
+        for (int i = 0; i < 5; i++) {
+            DATA.send(connection, i);
+            DATA_TINY.send(connection, i);
+            DATA_FIXED.send(connection, i);
+            SIGNAL.send(connection, i);
+        }
+        // Both paths allocate ids after calling the writer, so the nested signal is allocated first
+        DATA_NESTED.send(connection, "0");
+        DATA_NESTED.send(connection, "12");
+        DATA_NESTED.send(connection, "345");
+        connection.tick();
+    }
+}
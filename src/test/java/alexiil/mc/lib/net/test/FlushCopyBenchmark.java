@@ -0,0 +1,90 @@
+/*
+ * Copyright (c) 2019 AlexIIL
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+package alexiil.mc.lib.net.test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import io.netty.buffer.Unpooled;
+
+import alexiil.mc.lib.net.BufferedConnection;
+import alexiil.mc.lib.net.NetByteBuf;
+import alexiil.mc.lib.net.NetIdData;
+import alexiil.mc.lib.net.ParentNetId;
+
+/** Compares the ways that flushed data can reach {@link BufferedConnection#sendRawData0(NetByteBuf)}, in the same way
+ * that {@link alexiil.mc.lib.net.impl.ActiveMinecraftConnection} uses it. Each operation sends 50 packets with a 64
+ * byte payload and then ticks the connection, which either keeps the flushed data in a list (like normal minecraft
+ * packets do) or reads it out into a byte array (like the compact minecraft packets do). */
+public class FlushCopyBenchmark {
+
+    static final ParentNetId ROOT = new ParentNetId(null, "");
+    static final NetIdData DATA = ROOT.idData("data");
+    static final byte[] PAYLOAD = new byte[64];
+
+    static class SinkConnection extends BufferedConnection {
+        final boolean keepsData;
+        final boolean compact;
+        final List<NetByteBuf> kept = new ArrayList<>();
+
+        /** @param keepsData True to use {@link #keepsSentData()}, otherwise the data is joined together in a composite
+         *            buffer (and copied afterwards if it's kept).
+         * @param compact True to read the data out into a byte array rather than keeping it. */
+        SinkConnection(boolean keepsData, boolean compact) {
+            super(ROOT, 20);
+            this.keepsData = keepsData;
+            this.compact = compact;
+        }
+
+        @Override
+        protected boolean keepsSentData() {
+            return keepsData;
+        }
+
+        @Override
+        protected void sendRawData0(NetByteBuf data) {
+            if (compact) {
+                byte[] bytes = new byte[data.readableBytes()];
+                data.readBytes(bytes);
+            } else if (keepsData) {
+                data.retain();
+                kept.add(data);
+            } else {
+                kept.add(NetByteBuf.asNetByteBuf(Unpooled.copiedBuffer(data)));
+            }
+        }
+
+        @Override
+        public void tick() {
+            super.tick();
+            // Minecraft would release these once they've been written to the network
+            for (NetByteBuf data : kept) {
+                data.release();
+            }
+            kept.clear();
+        }
+    }
+
+    public static void main(String[] args) {
+        for (int round = 0; round < 3; round++) {
+            run("composite then copy", new SinkConnection(false, false));
+            run("unpooled", new SinkConnection(true, false));
+            run("compact composite", new SinkConnection(false, true));
+            run("compact unpooled", new SinkConnection(true, true));
+        }
+    }
+
+    private static void run(String name, SinkConnection connection) {
+        BenchmarkUtil.run(name, 2_000, 20_000, () -> {
+            for (int i = 0; i < 50; i++) {
+                DATA.send(connection, (buffer, ctx) -> buffer.writeBytes(PAYLOAD));
+            }
+            connection.tick();
+        });
+    }
+}
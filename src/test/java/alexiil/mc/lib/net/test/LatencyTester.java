@@ -0,0 +1,94 @@
+/*
+ * Copyright (c) 2019 AlexIIL
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+package alexiil.mc.lib.net.test;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import alexiil.mc.lib.net.BufferedConnection;
+import alexiil.mc.lib.net.InvalidInputDataException;
+import alexiil.mc.lib.net.LatencyStats;
+import alexiil.mc.lib.net.NetByteBuf;
+import alexiil.mc.lib.net.ParentNetId;
+
+/** Checks that pings are replied to, and that {@link LatencyStats} is updated from the replies. */
+public class LatencyTester {
+
+    static final ParentNetId ROOT = new ParentNetId(null, "");
+
+    @Test
+    public void testPingPong() throws InvalidInputDataException {
+        QueueConnection a = new QueueConnection(ROOT);
+        QueueConnection b = new QueueConnection(ROOT);
+        LatencyStats stats = a.getLatencyStats();
+        Assert.assertEquals(-1, stats.getSmoothedRttNanos());
+
+        for (int i = 0; i < 3; i++) {
+            a.sendPing();
+            a.flushQueue();
+            a.deliverTo(b);
+            // The pong is flushed straight away, rather than waiting for b to tick
+            b.deliverTo(a);
+        }
+        Assert.assertEquals(3, stats.getPingsSent());
+        Assert.assertEquals(3, stats.getPongsReceived());
+        Assert.assertEquals(0, stats.getPingsLost());
+        Assert.assertTrue(stats.getSmoothedRttNanos() >= 0);
+        Assert.assertTrue(stats.getMinRttNanos() <= stats.getSmoothedRttNanos());
+        Assert.assertTrue(stats.getRemoteHoldNanos() >= 0);
+        Assert.assertEquals(1, stats.getSendRateFactor(), 0);
+        Assert.assertEquals(0, b.getLatencyStats().getPingsSent());
+    }
+
+    @Test
+    public void testQueuedHold() throws InterruptedException, InvalidInputDataException {
+        QueueConnection a = new QueueConnection(ROOT);
+        QueueConnection b = new QueueConnection(ROOT);
+        a.sendPing();
+        a.flushQueue();
+        queue(a, b);
+        // Like waiting for the next tick to drain the receive queue
+        Thread.sleep(100);
+        b.drainReceiveQueue();
+        queue(b, a);
+        Thread.sleep(100);
+        a.drainReceiveQueue();
+
+        LatencyStats stats = a.getLatencyStats();
+        Assert.assertEquals(1, stats.getPongsReceived());
+        // Both waits are in the receive queues, so neither of them are part of the round trip time
+        Assert.assertTrue("Hold " + stats.getRemoteHoldNanos(), stats.getRemoteHoldNanos() >= 100_000_000);
+        Assert.assertTrue("Rtt " + stats.getLastRttNanos(), stats.getLastRttNanos() < 100_000_000);
+    }
+
+    @Test
+    public void testLost() {
+        QueueConnection a = new QueueConnection(ROOT);
+        for (int i = 0; i < 20; i++) {
+            a.sendPing();
+        }
+        // Only 16 pings can be outstanding at once
+        Assert.assertEquals(4, a.getLatencyStats().getPingsLost());
+    }
+
+    @Test
+    public void testTickPings() {
+        QueueConnection a = new QueueConnection(ROOT);
+        for (int i = 0; i < BufferedConnection.TICKS_PER_SECOND * 2; i++) {
+            a.tick();
+        }
+        Assert.assertEquals(2, a.getLatencyStats().getPingsSent());
+    }
+
+    private static void queue(QueueConnection from, BufferedConnection to) {
+        NetByteBuf data;
+        while ((data = from.sent.poll()) != null) {
+            to.queueReceivedData(data);
+        }
+    }
+}
@@ -0,0 +1,42 @@
+/*
+ * Copyright (c) 2019 AlexIIL
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+package alexiil.mc.lib.net.test;
+
+import alexiil.mc.lib.net.BufferedConnection;
+import alexiil.mc.lib.net.InvalidInputDataException;
+import alexiil.mc.lib.net.NetByteBuf;
+import alexiil.mc.lib.net.ParentNetId;
+
+/** A {@link BufferedConnection} that passes every frame straight to another connection as soon as it's sent. Any
+ * failure to read it is rethrown as an {@link AssertionError}. */
+class LoopbackConnection extends BufferedConnection {
+    BufferedConnection to;
+
+    /** The total number of bytes sent. */
+    int sentBytes;
+
+    LoopbackConnection(ParentNetId root) {
+        super(root, 20);
+    }
+
+    /** Connects the two given connections to each other. */
+    static void link(LoopbackConnection a, LoopbackConnection b) {
+        a.to = b;
+        b.to = a;
+    }
+
+    @Override
+    protected void sendRawData0(NetByteBuf data) {
+        sentBytes += data.readableBytes();
+        try {
+            to.onReceiveRawData(data);
+        } catch (InvalidInputDataException e) {
+            throw new AssertionError(e);
+        }
+    }
+}
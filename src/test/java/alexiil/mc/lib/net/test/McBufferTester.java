@@ -7,11 +7,16 @@
  */
 package alexiil.mc.lib.net.test;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Random;
 
 import org.junit.Assert;
 import org.junit.Test;
 
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.Unpooled;
+
 import alexiil.mc.lib.net.NetByteBuf;
 
 public class McBufferTester {
@@ -81,4 +86,147 @@ public class McBufferTester {
             }
         }
     }
+
+    /** @return Every value that's 1 away from needing a different number of bytes, plus some random values. */
+    static long[] varValues() {
+        List<Long> values = new ArrayList<>();
+        for (int shift = 0; shift < 64; shift++) {
+            long value = 1L << shift;
+            for (long delta = -1; delta <= 1; delta++) {
+                values.add(value + delta);
+                values.add(-value + delta);
+            }
+        }
+        values.add(Long.MAX_VALUE);
+        values.add(Long.MIN_VALUE);
+        Random rand = new Random(42);
+        for (int i = 0; i < 10_000; i++) {
+            // Shifting spreads the values evenly over every length
+            values.add(rand.nextLong() >> rand.nextInt(64));
+        }
+        return values.stream().mapToLong(Long::longValue).toArray();
+    }
+
+    /** The original (one byte at a time) implementation of {@link NetByteBuf#writeVarLong(long)}, which
+     * {@link NetByteBuf#writeVarInt(int)} also matches. */
+    static void writeVarLongSlow(NetByteBuf buf, long lval) {
+        int sign = 0;
+        if (lval < 0) {
+            lval = ~lval;
+            sign = 1;
+        }
+        while ((lval & ~0x3f) != 0) {
+            buf.writeByte((int) (0x80 | (lval & 0x7f)));
+            lval >>>= 7;
+        }
+        buf.writeByte((int) ((sign << 6) | lval));
+    }
+
+    /** The vanilla (one byte at a time) implementation of {@link NetByteBuf#writeVarUnsignedLong(long)}, which
+     * {@link NetByteBuf#writeVarUnsignedInt(int)} also matches. */
+    static void writeVarUnsignedLongSlow(NetByteBuf buf, long lval) {
+        while ((lval & ~0x7f) != 0) {
+            buf.writeByte((int) ((lval & 0x7f) | 0x80));
+            lval >>>= 7;
+        }
+        buf.writeByte((int) lval);
+    }
+
+    static void assertSameBytes(String message, NetByteBuf expected, NetByteBuf actual) {
+        Assert.assertEquals(message, ByteBufUtil.hexDump(expected), ByteBufUtil.hexDump(actual));
+    }
+
+    @Test
+    public void testVarEncodings() {
+        NetByteBuf fast = NetByteBuf.buffer();
+        NetByteBuf slow = NetByteBuf.buffer();
+        for (long value : varValues()) {
+            fast.clear();
+            slow.clear();
+            fast.writeVarLong(value);
+            writeVarLongSlow(slow, value);
+            assertSameBytes("writeVarLong(" + value + ")", slow, fast);
+
+            fast.clear();
+            slow.clear();
+            fast.writeVarInt((int) value);
+            writeVarLongSlow(slow, (int) value);
+            assertSameBytes("writeVarInt(" + (int) value + ")", slow, fast);
+
+            fast.clear();
+            slow.clear();
+            fast.writeVarUnsignedLong(value);
+            writeVarUnsignedLongSlow(slow, value);
+            assertSameBytes("writeVarUnsignedLong(" + value + ")", slow, fast);
+
+            fast.clear();
+            slow.clear();
+            fast.writeVarUnsignedInt((int) value);
+            writeVarUnsignedLongSlow(slow, value & 0xFFFF_FFFFL);
+            assertSameBytes("writeVarUnsignedInt(" + (int) value + ")", slow, fast);
+        }
+        fast.release();
+        slow.release();
+    }
+
+    @Test
+    public void testVarRoundTrips() {
+        long[] values = varValues();
+        // Everything is written into a single buffer, so most reads have at least 8 bytes after them
+        NetByteBuf buf = NetByteBuf.buffer();
+        for (long value : values) {
+            buf.writeVarInt((int) value);
+            buf.writeVarLong(value);
+            buf.writeVarUnsignedInt((int) value);
+            buf.writeVarUnsignedLong(value);
+        }
+        for (long value : values) {
+            Assert.assertEquals((int) value, buf.readVarInt());
+            Assert.assertEquals(value, buf.readVarLong());
+            Assert.assertEquals((int) value, buf.readVarUnsignedInt());
+            Assert.assertEquals(value, buf.readVarUnsignedLong());
+        }
+        Assert.assertEquals(0, buf.readableBytes());
+        buf.release();
+    }
+
+    @Test
+    public void testVarEndOfBuffer() {
+        // Values right at the end of the buffer can't be read 8 bytes at a time
+        for (long value : varValues()) {
+            NetByteBuf buf = NetByteBuf.buffer();
+            buf.writeVarLong(value);
+            buf.writeVarUnsignedLong(value);
+            Assert.assertEquals(value, buf.readVarLong());
+            Assert.assertEquals(value, buf.readVarUnsignedLong());
+            Assert.assertEquals(0, buf.readableBytes());
+
+            buf.clear();
+            buf.writeVarInt((int) value);
+            buf.writeVarUnsignedInt((int) value);
+            Assert.assertEquals((int) value, buf.readVarInt());
+            Assert.assertEquals((int) value, buf.readVarUnsignedInt());
+            Assert.assertEquals(0, buf.readableBytes());
+            buf.release();
+        }
+    }
+
+    @Test
+    public void testVarLimitedCapacity() {
+        // There isn't room to write 8 bytes at once, so this has to fall back to writing single bytes
+        NetByteBuf buf = NetByteBuf.asNetByteBuf(Unpooled.buffer(3, 3));
+        buf.writeVarInt(-1_000_000);
+        Assert.assertEquals(3, buf.writerIndex());
+        Assert.assertEquals(3, buf.capacity());
+        Assert.assertEquals(-1_000_000, buf.readVarInt());
+        buf.release();
+
+        // Buffers which could grow mustn't be grown either, as the value already fits
+        NetByteBuf exact = NetByteBuf.asNetByteBuf(Unpooled.buffer(3));
+        exact.writeVarInt(-1_000_000);
+        Assert.assertEquals(3, exact.writerIndex());
+        Assert.assertEquals(3, exact.capacity());
+        Assert.assertEquals(-1_000_000, exact.readVarInt());
+        exact.release();
+    }
 }
@@ -0,0 +1,186 @@
+/*
+ * Copyright (c) 2019 AlexIIL
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+package alexiil.mc.lib.net.test;
+
+import javax.annotation.Nullable;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import alexiil.mc.lib.net.InvalidInputDataException;
+import alexiil.mc.lib.net.NetByteBuf;
+import alexiil.mc.lib.net.NetSchema;
+import alexiil.mc.lib.net.NetSchema.Order;
+import alexiil.mc.lib.net.NetSchema.Range;
+import alexiil.mc.lib.net.NetSchema.Unsigned;
+
+public class NetSchemaTester {
+
+    enum Dir {
+        NORTH,
+        EAST,
+        SOUTH,
+        WEST;
+    }
+
+    record Packed(boolean active, @Range(min = 0, max = 7) int level, Dir dir) {}
+
+    record Everything(
+        boolean flag, byte b, short s, char c, @Range(min = -10, max = 10) int ranged, int signed,
+        @Unsigned int unsigned, @Range(min = Long.MIN_VALUE, max = Long.MAX_VALUE) long full, long varLong, float f,
+        double d, Dir dir, String name, @Nullable String maybe, Packed nested
+    ) {}
+
+    record Single(@Range(min = 5, max = 5) int five, Dir dir) {}
+
+    record Limited(@Range(min = 0, max = 5) int value) {}
+
+    record Positive(int value) {
+        Positive {
+            if (value < 0) {
+                throw new IllegalArgumentException("Negative value " + value);
+            }
+        }
+    }
+
+    record Unsupported(int[] values) {}
+
+    record Recursive(Recursive next) {}
+
+    static class Annotated {
+        @Order(1)
+        String name;
+
+        @Order(0)
+        @Range(min = 0, max = 255)
+        int id;
+
+        /** Not part of the schema. */
+        int cached = -1;
+    }
+
+    private static <M> M roundTrip(NetSchema<M> schema, M message) throws InvalidInputDataException {
+        NetByteBuf buffer = NetByteBuf.buffer();
+        schema.write(message, buffer);
+        M read = schema.read(buffer);
+        Assert.assertEquals(0, buffer.readableBytes());
+        buffer.release();
+        return read;
+    }
+
+    @Test
+    public void testPackedBits() throws InvalidInputDataException {
+        NetSchema<Packed> schema = NetSchema.of(Packed.class);
+        NetByteBuf buffer = NetByteBuf.buffer();
+        schema.write(new Packed(true, 5, Dir.WEST), buffer);
+        // 1 + 3 + 2 bits
+        Assert.assertEquals(1, buffer.writerIndex());
+        Assert.assertEquals(new Packed(true, 5, Dir.WEST), schema.read(buffer));
+        buffer.release();
+    }
+
+    @Test
+    public void testEverything() throws InvalidInputDataException {
+        NetSchema<Everything> schema = NetSchema.of(Everything.class);
+        Everything message = new Everything(
+            true, (byte) -100, (short) 30000, 'x', -7, -123456, 123456, Long.MIN_VALUE + 5, 1L << 40, 1.5f, -2.25,
+            Dir.SOUTH, "hello", null, new Packed(false, 7, Dir.NORTH)
+        );
+        Assert.assertEquals(message, roundTrip(schema, message));
+
+        Everything withMaybe = new Everything(
+            false, Byte.MAX_VALUE, Short.MIN_VALUE, Character.MAX_VALUE, 10, 0, 0, Long.MAX_VALUE, -1, 0, 0,
+            Dir.NORTH, "", "present", new Packed(true, 0, Dir.EAST)
+        );
+        Assert.assertEquals(withMaybe, roundTrip(schema, withMaybe));
+    }
+
+    @Test
+    public void testSingleValues() throws InvalidInputDataException {
+        NetSchema<Single> schema = NetSchema.of(Single.class);
+        NetByteBuf buffer = NetByteBuf.buffer();
+        schema.write(new Single(5, Dir.EAST), buffer);
+        // The int doesn't need any bits, so only the enum's 2 bits are written
+        Assert.assertEquals(1, buffer.writerIndex());
+        Assert.assertEquals(new Single(5, Dir.EAST), schema.read(buffer));
+        buffer.release();
+    }
+
+    @Test
+    public void testAnnotatedClass() throws InvalidInputDataException {
+        NetSchema<Annotated> schema = NetSchema.of(Annotated.class);
+        Annotated message = new Annotated();
+        message.id = 200;
+        message.name = "machine";
+        message.cached = 42;
+        NetByteBuf buffer = NetByteBuf.buffer();
+        schema.write(message, buffer);
+        Annotated read = schema.read(buffer);
+        Assert.assertEquals(200, read.id);
+        Assert.assertEquals("machine", read.name);
+        Assert.assertEquals(-1, read.cached);
+        buffer.release();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testWriteOutOfRange() {
+        NetByteBuf buffer = NetByteBuf.buffer();
+        try {
+            NetSchema.of(Limited.class).write(new Limited(6), buffer);
+        } finally {
+            buffer.release();
+        }
+    }
+
+    @Test(expected = InvalidInputDataException.class)
+    public void testReadOutOfRange() throws InvalidInputDataException {
+        NetByteBuf buffer = NetByteBuf.buffer();
+        buffer.writeFixedBits(7, 3);
+        try {
+            NetSchema.of(Limited.class).read(buffer);
+        } finally {
+            buffer.release();
+        }
+    }
+
+    @Test(expected = InvalidInputDataException.class)
+    public void testConstructorRejects() throws InvalidInputDataException {
+        NetByteBuf buffer = NetByteBuf.buffer();
+        buffer.writeVarInt(-1);
+        try {
+            NetSchema.of(Positive.class).read(buffer);
+        } finally {
+            buffer.release();
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNullNotAllowed() {
+        NetByteBuf buffer = NetByteBuf.buffer();
+        try {
+            NetSchema.of(Packed.class).write(new Packed(false, 0, null), buffer);
+        } finally {
+            buffer.release();
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testUnsupportedType() {
+        NetSchema.of(Unsupported.class);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testRecursive() {
+        NetSchema.of(Recursive.class);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNotAnnotated() {
+        NetSchema.of(Object.class);
+    }
+}
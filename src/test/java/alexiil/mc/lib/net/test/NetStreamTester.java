@@ -0,0 +1,195 @@
+/*
+ * Copyright (c) 2019 AlexIIL
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+package alexiil.mc.lib.net.test;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import alexiil.mc.lib.net.BufferedConnection;
+import alexiil.mc.lib.net.IMsgReadCtx;
+import alexiil.mc.lib.net.InvalidInputDataException;
+import alexiil.mc.lib.net.NetByteBuf;
+import alexiil.mc.lib.net.NetStream;
+import alexiil.mc.lib.net.NetStream.IncomingStream;
+import alexiil.mc.lib.net.NetStream.OutgoingStream;
+import alexiil.mc.lib.net.ParentNetId;
+
+/** Checks that {@link NetStream} sends everything in order, and never sends more than the receiver has allowed. */
+public class NetStreamTester {
+
+    static final ParentNetId ROOT = new ParentNetId(null, "");
+    static final NetStream STREAM = ROOT.idStream("stream");
+
+    static final ByteArrayOutputStream received = new ByteArrayOutputStream();
+    static String receivedName;
+    static IncomingStream incoming;
+    static boolean autoCredit;
+    static boolean closed, aborted;
+    static boolean failOpen;
+
+    static {
+        STREAM.setReceiver((stream, header, ctx) -> {
+            receivedName = header.readString();
+            if (failOpen) {
+                throw new InvalidInputDataException("Failed to open " + receivedName);
+            }
+            incoming = stream;
+            stream.setAutoCredit(autoCredit);
+            return new NetStream.IStreamReceiver() {
+                @Override
+                public void onData(IncomingStream s, NetByteBuf data, IMsgReadCtx c) {
+                    byte[] bytes = new byte[data.readableBytes()];
+                    data.readBytes(bytes);
+                    received.writeBytes(bytes);
+                }
+
+                @Override
+                public void onClose(IncomingStream s, boolean wasAborted, IMsgReadCtx c) {
+                    closed = true;
+                    aborted = wasAborted;
+                }
+            };
+        });
+    }
+
+    private static void reset(boolean auto) {
+        received.reset();
+        receivedName = null;
+        incoming = null;
+        autoCredit = auto;
+        closed = false;
+        aborted = false;
+        failOpen = false;
+    }
+
+    @Test
+    public void testLargeStream() throws InvalidInputDataException {
+        reset(true);
+        QueueConnection a = new QueueConnection(ROOT);
+        QueueConnection b = new QueueConnection(ROOT);
+        byte[] payload = new byte[2_000_000];
+        new Random(1).nextBytes(payload);
+
+        OutgoingStream out = STREAM.open(a, (buffer, ctx) -> buffer.writeString("region"));
+        out.write(payload, 0, payload.length);
+        out.close();
+        for (int i = 0; i < 100 && !closed; i++) {
+            a.tick();
+            a.deliverTo(b);
+            b.tick();
+            b.deliverTo(a);
+        }
+        Assert.assertTrue(closed);
+        Assert.assertFalse(aborted);
+        Assert.assertTrue(out.isFinished());
+        Assert.assertEquals("region", receivedName);
+        Assert.assertArrayEquals(payload, received.toByteArray());
+    }
+
+    @Test
+    public void testBackpressure() throws InvalidInputDataException {
+        reset(false);
+        QueueConnection a = new QueueConnection(ROOT);
+        QueueConnection b = new QueueConnection(ROOT);
+        byte[] payload = new byte[NetStream.WINDOW_SIZE * 2];
+
+        OutgoingStream out = STREAM.open(a, (buffer, ctx) -> buffer.writeString("big"));
+        out.write(payload, 0, payload.length);
+        a.tick();
+        a.deliverTo(b);
+        // Nothing has been consumed, so only the first window can be sent
+        Assert.assertEquals(NetStream.WINDOW_SIZE, out.getSentBytes());
+        Assert.assertEquals(NetStream.WINDOW_SIZE, out.getPendingBytes());
+        Assert.assertEquals(0, out.getCredit());
+
+        incoming.consumed(NetStream.WINDOW_SIZE);
+        b.tick();
+        b.deliverTo(a);
+        Assert.assertEquals(payload.length, out.getSentBytes());
+
+        incoming.cancel();
+        b.tick();
+        b.deliverTo(a);
+        Assert.assertTrue(out.isCancelled());
+        Assert.assertTrue(out.isFinished());
+        Assert.assertFalse(closed);
+    }
+
+    @Test
+    public void testFailedOpen() throws InvalidInputDataException {
+        reset(true);
+        failOpen = true;
+        QueueConnection a = new QueueConnection(ROOT);
+        QueueConnection b = new QueueConnection(ROOT);
+
+        OutgoingStream out = STREAM.open(a, (buffer, ctx) -> buffer.writeString("broken"));
+        a.tick();
+        Assert.assertThrows(InvalidInputDataException.class, () -> process(a.sent.poll(), b));
+        Assert.assertTrue(a.sent.isEmpty());
+
+        // The failed stream must not have been registered, so it's data is ignored rather than crashing
+        out.write(new byte[] { 1, 2, 3 }, 0, 3);
+        out.close();
+        a.tick();
+        a.deliverTo(b);
+        Assert.assertEquals(0, received.size());
+        Assert.assertFalse(closed);
+    }
+
+    @Test
+    public void testDuplicateOpen() throws InvalidInputDataException {
+        reset(true);
+        QueueConnection a = new QueueConnection(ROOT);
+        QueueConnection b = new QueueConnection(ROOT);
+
+        STREAM.open(a, (buffer, ctx) -> buffer.writeString("first"));
+        a.tick();
+        a.deliverTo(b);
+
+        STREAM.open(a, (buffer, ctx) -> buffer.writeString("second"));
+        a.tick();
+        NetByteBuf open = a.sent.poll();
+        Assert.assertNotNull(open);
+        NetByteBuf copy = NetByteBuf.asNetByteBuf(open.copy());
+        open.deliverTo(b);
+        Assert.assertEquals("second", receivedName);
+        Assert.assertThrows(InvalidInputDataException.class, () -> process(copy, b));
+    }
+
+    @Test
+    public void testConnectionClosed() throws InvalidInputDataException {
+        reset(true);
+        QueueConnection a = new QueueConnection(ROOT);
+        QueueConnection b = new QueueConnection(ROOT);
+
+        OutgoingStream out = STREAM.open(a, (buffer, ctx) -> buffer.writeString("closing"));
+        out.write(new byte[NetStream.WINDOW_SIZE * 2], 0, NetStream.WINDOW_SIZE * 2);
+        a.tick();
+        a.deliverTo(b);
+
+        b.abortStreams();
+        Assert.assertTrue(closed);
+        Assert.assertTrue(aborted);
+
+        a.abortStreams();
+        Assert.assertTrue(out.isCancelled());
+        Assert.assertTrue(out.isFinished());
+        Assert.assertEquals(0, out.getPendingBytes());
+    }
+
+    private static void process(NetByteBuf data, BufferedConnection to) throws InvalidInputDataException {
+        try {
+            to.onReceiveRawData(data);
+        } finally {
+            data.release();
+        }
+    }
+}
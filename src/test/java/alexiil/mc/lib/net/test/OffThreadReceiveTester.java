@@ -0,0 +1,123 @@
+/*
+ * Copyright (c) 2019 AlexIIL
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+package alexiil.mc.lib.net.test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import alexiil.mc.lib.net.BufferedConnection;
+import alexiil.mc.lib.net.InvalidInputDataException;
+import alexiil.mc.lib.net.NetByteBuf;
+import alexiil.mc.lib.net.NetIdData;
+import alexiil.mc.lib.net.NetIdSignal;
+import alexiil.mc.lib.net.ParentNetId;
+
+/** Checks that {@link BufferedConnection#queueReceivedDataOffThread(NetByteBuf)} only calls thread-safe receivers
+ * immediately, and queues everything else in order, and that the receive queue keeps packets in order. */
+public class OffThreadReceiveTester {
+
+    static final ParentNetId ROOT = new ParentNetId(null, "");
+    static final NetIdData DATA = ROOT.idData("data");
+    static final NetIdSignal FAST_SIGNAL = ROOT.idSignal("fast_signal");
+
+    static final List<String> received = new ArrayList<>();
+
+    static {
+        DATA.setReceiver((buffer, ctx) -> received.add("data " + buffer.readVarInt()));
+        FAST_SIGNAL.setReceiver(ctx -> received.add("fast"));
+        FAST_SIGNAL.setThreadSafeReceiver(true);
+    }
+
+    @Test
+    public void testDispatch() throws InvalidInputDataException {
+        QueueConnection from = new QueueConnection(ROOT);
+        QueueConnection to = new QueueConnection(ROOT);
+        received.clear();
+
+        DATA.send(from, (buffer, ctx) -> buffer.writeVarInt(1));
+        FAST_SIGNAL.send(from);
+        DATA.send(from, (buffer, ctx) -> buffer.writeVarInt(2));
+        from.tick();
+
+        NetByteBuf data;
+        while ((data = from.sent.poll()) != null) {
+            to.queueReceivedDataOffThread(data);
+            data.release();
+        }
+
+        Assert.assertEquals(List.of("fast"), received);
+        Assert.assertEquals(2, to.drainReceiveQueue());
+        Assert.assertEquals(List.of("fast", "data 1", "data 2"), received);
+    }
+
+    @Test
+    public void testErrorOnDrain() throws InvalidInputDataException {
+        QueueConnection from = new QueueConnection(ROOT);
+        QueueConnection to = new QueueConnection(ROOT);
+        received.clear();
+
+        // Writes more data than the receiver reads
+        DATA.send(from, (buffer, ctx) -> {
+            buffer.writeVarInt(3);
+            buffer.writeVarInt(4);
+        });
+        from.tick();
+
+        NetByteBuf data;
+        while ((data = from.sent.poll()) != null) {
+            to.queueReceivedDataOffThread(data);
+            data.release();
+        }
+        // The error is only found when the packet is received on the main thread
+        Assert.assertThrows(InvalidInputDataException.class, to::drainReceiveQueue);
+        Assert.assertEquals(0, to.drainReceiveQueue());
+    }
+
+    @Test
+    public void testReceiveQueue() throws InvalidInputDataException {
+        testReceiveQueue(false);
+        testReceiveQueue(true);
+    }
+
+    private static void testReceiveQueue(boolean offThread) throws InvalidInputDataException {
+        QueueConnection from = new QueueConnection(ROOT);
+        QueueConnection to = new QueueConnection(ROOT);
+        received.clear();
+
+        DATA.send(from, (buffer, ctx) -> buffer.writeVarInt(5));
+        from.tick();
+        FAST_SIGNAL.send(from);
+        DATA.send(from, (buffer, ctx) -> buffer.writeVarInt(6));
+        from.tick();
+
+        NetByteBuf data;
+        while ((data = from.sent.poll()) != null) {
+            if (offThread) {
+                to.queueReceivedDataOffThread(data);
+                data.release();
+            } else {
+                to.queueReceivedData(data);
+            }
+        }
+
+        if (offThread) {
+            Assert.assertEquals(List.of("fast"), received);
+            Assert.assertEquals(2, to.drainReceiveQueue());
+            Assert.assertEquals(List.of("fast", "data 5", "data 6"), received);
+        } else {
+            Assert.assertEquals(List.of(), received);
+            Assert.assertEquals(2, to.drainReceiveQueue());
+            Assert.assertEquals(List.of("data 5", "fast", "data 6"), received);
+        }
+        Assert.assertEquals(2, to.getLastDrainCount());
+        Assert.assertEquals(0, to.drainReceiveQueue());
+    }
+}
@@ -0,0 +1,53 @@
+/*
+ * Copyright (c) 2019 AlexIIL
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+package alexiil.mc.lib.net.test;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+
+import alexiil.mc.lib.net.ActiveConnection;
+import alexiil.mc.lib.net.BufferedConnection;
+import alexiil.mc.lib.net.InvalidInputDataException;
+import alexiil.mc.lib.net.NetByteBuf;
+import alexiil.mc.lib.net.ParentNetId;
+
+/** A {@link BufferedConnection} that keeps a copy of every frame that it sends, so that tests can choose when (and
+ * how) the other side receives them. */
+class QueueConnection extends BufferedConnection {
+    final Queue<NetByteBuf> sent = new ArrayDeque<>();
+
+    /** The total number of bytes sent. */
+    long sentBytes;
+
+    /** The length of the largest frame sent. */
+    int largestFrame;
+
+    QueueConnection(ParentNetId root) {
+        super(root, 20);
+    }
+
+    @Override
+    protected void sendRawData0(NetByteBuf data) {
+        sentBytes += data.readableBytes();
+        largestFrame = Math.max(largestFrame, data.readableBytes());
+        sent.add(NetByteBuf.asNetByteBuf(data.copy()));
+    }
+
+    /** Passes every frame that has been sent so far to {@link ActiveConnection#onReceiveRawData(NetByteBuf)} of the
+     * given connection, in order. */
+    void deliverTo(ActiveConnection to) throws InvalidInputDataException {
+        NetByteBuf data;
+        while ((data = sent.poll()) != null) {
+            try {
+                to.onReceiveRawData(data);
+            } finally {
+                data.release();
+            }
+        }
+    }
+}
@@ -0,0 +1,193 @@
+/*
+ * Copyright (c) 2019 AlexIIL
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+package alexiil.mc.lib.net.test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.function.IntUnaryOperator;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import alexiil.mc.lib.net.impl.ServerTickClock;
+
+/** Replays simulated streams of server ticks (with a fixed random seed, so they're the same every run) into a
+ * {@link ServerTickClock}, and checks that the smoothed output advances steadily. */
+public class ServerTickClockTester {
+
+    static final int FRAME_MS = 16;
+
+    /** The network delay of every tick in a short stream that's typical of a wifi connection, with two large spikes. */
+    static final int[] RECORDED_DELAYS = { //
+        31, 29, 44, 30, 28, 73, 35, 30, 29, 31, 30, 52, 29, 118, 70, 31, 30, 29, 33, 30, //
+        29, 30, 41, 28, 30, 31, 29, 30, 64, 30, 29, 30, 30, 31, 187, 136, 86, 38, 30, 29 //
+    };
+
+    static final class Tick {
+        final long tick, serverMs, clientMs;
+
+        Tick(long tick, long serverMs, long clientMs) {
+            this.tick = tick;
+            this.serverMs = serverMs;
+            this.clientMs = clientMs;
+        }
+    }
+
+    static final class Result {
+        /** The output tick (value + delta) at every frame. */
+        final List<Double> outputs = new ArrayList<>();
+        /** The latest received tick at every frame. */
+        final List<Long> latest = new ArrayList<>();
+        ServerTickClock clock;
+
+        /** @return The smallest and largest change in the output between two frames, ignoring the first warmup
+         *         frames. */
+        double[] advanceRange(int warmup) {
+            double min = Double.MAX_VALUE, max = -Double.MAX_VALUE;
+            for (int i = warmup + 1; i < outputs.size(); i++) {
+                double advance = outputs.get(i) - outputs.get(i - 1);
+                min = Math.min(min, advance);
+                max = Math.max(max, advance);
+            }
+            return new double[] { min, max };
+        }
+
+        /** @return The average change in the output between two frames, ignoring the first warmup frames. */
+        double averageAdvance(int warmup) {
+            int last = outputs.size() - 1;
+            return (outputs.get(last) - outputs.get(warmup)) / (last - warmup);
+        }
+
+        void assertValid() {
+            for (int i = 0; i < outputs.size(); i++) {
+                if (i > 0) {
+                    Assert.assertTrue("Went backwards at frame " + i, outputs.get(i) >= outputs.get(i - 1));
+                }
+                Assert.assertTrue("Went past the latest tick at frame " + i, outputs.get(i) <= latest.get(i));
+            }
+        }
+    }
+
+    /** Generates a server that ticks every tickMs, with a network delay from the given function. */
+    static List<Tick> generate(int count, double tickMs, long clockOffset, IntUnaryOperator delay) {
+        List<Tick> ticks = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            long sent = Math.round(i * tickMs);
+            ticks.add(new Tick(1000 + i, sent + clockOffset, sent + delay.applyAsInt(i)));
+        }
+        // Packets can't overtake each other over TCP
+        for (int i = 1; i < ticks.size(); i++) {
+            Tick prev = ticks.get(i - 1);
+            Tick tick = ticks.get(i);
+            if (tick.clientMs < prev.clientMs) {
+                ticks.set(i, new Tick(tick.tick, tick.serverMs, prev.clientMs));
+            }
+        }
+        return ticks;
+    }
+
+    /** Replays the given ticks into a new clock, updating it every {@link #FRAME_MS}. Ticks are only received between
+     * frames, like on the client thread. */
+    static Result replay(List<Tick> ticks) {
+        Result result = new Result();
+        ServerTickClock clock = new ServerTickClock();
+        result.clock = clock;
+        long end = ticks.get(ticks.size() - 1).clientMs;
+        int next = 0;
+        for (long frame = ticks.get(0).clientMs; frame <= end; frame += FRAME_MS) {
+            while (next < ticks.size() && ticks.get(next).clientMs <= frame) {
+                Tick tick = ticks.get(next++);
+                clock.onServerTick(tick.tick, tick.serverMs, frame);
+            }
+            clock.update(frame);
+            result.outputs.add(clock.getTickValue() + clock.getTickDelta());
+            result.latest.add(clock.getLatestTick());
+        }
+        return result;
+    }
+
+    @Test
+    public void testNoData() {
+        ServerTickClock clock = new ServerTickClock();
+        clock.update(100);
+        Assert.assertEquals(Long.MIN_VALUE, clock.getTickValue());
+        Assert.assertEquals(0, clock.getTickDelta(), 0);
+    }
+
+    @Test
+    public void testPerfect() {
+        Result result = replay(generate(400, 50, 12345, i -> 30));
+        result.assertValid();
+        double[] range = result.advanceRange(60);
+        Assert.assertEquals(FRAME_MS / 50.0, range[0], 0.02);
+        Assert.assertEquals(FRAME_MS / 50.0, range[1], 0.02);
+        Assert.assertEquals(20, result.clock.getTicksPerSecond(), 0.1);
+    }
+
+    @Test
+    public void testRecorded() {
+        Result result = replay(generate(400, 50, -5000, i -> RECORDED_DELAYS[i % RECORDED_DELAYS.length]));
+        result.assertValid();
+        // The first time through the recording the 187ms spike is larger than any delay seen before it, so it's
+        // allowed to stop there. Copying the latest tick would jump by up to 4 ticks after each spike, and stop for up
+        // to 8 frames, every time.
+        double[] range = result.advanceRange(2000 / FRAME_MS);
+        Assert.assertTrue("Stopped for a frame: " + range[0], range[0] > 0.15);
+        Assert.assertTrue("Jumped too far in a frame: " + range[1], range[1] < 0.5);
+        Assert.assertEquals(20, result.clock.getTicksPerSecond(), 1);
+    }
+
+    @Test
+    public void testRandomJitter() {
+        Random rand = new Random(42);
+        Result result = replay(generate(1000, 50, 0, i -> 20 + rand.nextInt(60)));
+        result.assertValid();
+        double[] range = result.advanceRange(60);
+        Assert.assertTrue("Stopped for a frame: " + range[0], range[0] > 0.15);
+        Assert.assertTrue("Jumped too far in a frame: " + range[1], range[1] < 0.5);
+        Assert.assertTrue(result.clock.getLagTicks() < 5);
+    }
+
+    @Test
+    public void testBursts() {
+        // The server (or a proxy) only flushes every 3 ticks, so ticks arrive 3 at a time
+        Result result = replay(generate(600, 50, 0, i -> 30 + (2 - i % 3) * 50));
+        result.assertValid();
+        double[] range = result.advanceRange(60);
+        Assert.assertTrue("Stopped for a frame: " + range[0], range[0] > 0.15);
+        Assert.assertTrue("Jumped too far in a frame: " + range[1], range[1] < 0.5);
+    }
+
+    @Test
+    public void testSlowServer() {
+        // A server that can only manage 15 ticks per second
+        Random rand = new Random(7);
+        Result result = replay(generate(600, 1000 / 15.0, 0, i -> 40 + rand.nextInt(20)));
+        result.assertValid();
+        Assert.assertEquals(15, result.clock.getTicksPerSecond(), 0.5);
+        Assert.assertEquals(FRAME_MS * 15 / 1000.0, result.averageAdvance(150), 0.005);
+        double[] range = result.advanceRange(150);
+        Assert.assertTrue("Stopped for a frame: " + range[0], range[0] > 0.1);
+    }
+
+    @Test
+    public void testPause() {
+        // The integrated server is paused for 10 seconds, and then carries on from where it was
+        List<Tick> ticks = generate(200, 50, 0, i -> 5);
+        List<Tick> after = generate(200, 50, 0, i -> 5);
+        for (Tick tick : after) {
+            ticks.add(new Tick(tick.tick + 200, tick.serverMs + 20_000, tick.clientMs + 20_000));
+        }
+        Result result = replay(ticks);
+        result.assertValid();
+        double last = result.outputs.get(result.outputs.size() - 1);
+        long latest = result.latest.get(result.latest.size() - 1);
+        Assert.assertTrue("Didn't catch up after the pause: " + last + " vs " + latest, latest - last < 3);
+    }
+}
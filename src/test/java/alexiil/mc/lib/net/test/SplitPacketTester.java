@@ -0,0 +1,139 @@
+/*
+ * Copyright (c) 2019 AlexIIL
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+package alexiil.mc.lib.net.test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import alexiil.mc.lib.net.IMsgReadCtx;
+import alexiil.mc.lib.net.InternalMsgUtil;
+import alexiil.mc.lib.net.InvalidInputDataException;
+import alexiil.mc.lib.net.NetByteBuf;
+import alexiil.mc.lib.net.NetIdData;
+import alexiil.mc.lib.net.ParentNetId;
+
+/** Checks that packets larger than the maximum packet size are split up, and re-assembled in the right order. */
+public class SplitPacketTester {
+
+    static final ParentNetId ROOT = new ParentNetId(null, "");
+    static final NetIdData IMPORTANT = ROOT.idData("important");
+    static final NetIdData BULK = ROOT.idData("bulk");
+
+    static final List<byte[]> received = new ArrayList<>();
+
+    static {
+        BULK.setLargeSize();
+        BULK.setDefaultPriority(-1);
+        IMPORTANT.setReceiver(SplitPacketTester::receive);
+        BULK.setReceiver(SplitPacketTester::receive);
+    }
+
+    private static void receive(NetByteBuf buffer, IMsgReadCtx ctx) {
+        byte[] bytes = new byte[buffer.readableBytes()];
+        buffer.readBytes(bytes);
+        received.add(bytes);
+    }
+
+    /** Splits anything bigger than 1000 bytes. */
+    static class SmallConnection extends QueueConnection {
+        SmallConnection() {
+            super(ROOT);
+        }
+
+        @Override
+        protected int maximumPacketSize() {
+            return 1000;
+        }
+    }
+
+    private static byte[] randomBytes(int length) {
+        byte[] bytes = new byte[length];
+        new Random(length).nextBytes(bytes);
+        return bytes;
+    }
+
+    @Test
+    public void testSplit() throws InvalidInputDataException {
+        SmallConnection a = new SmallConnection();
+        SmallConnection b = new SmallConnection();
+        received.clear();
+
+        byte[] small = randomBytes(10);
+        byte[] large = randomBytes(20_000);
+        IMPORTANT.send(a, (buffer, ctx) -> buffer.writeBytes(small));
+        BULK.send(a, (buffer, ctx) -> buffer.writeBytes(large));
+        IMPORTANT.send(a, (buffer, ctx) -> buffer.writeBytes(small));
+        a.tick();
+        a.deliverTo(b);
+
+        Assert.assertTrue("Sent a frame of " + a.largestFrame + " bytes", a.largestFrame <= 1000);
+        Assert.assertEquals(3, received.size());
+        Assert.assertArrayEquals(small, received.get(0));
+        Assert.assertArrayEquals(large, received.get(1));
+        Assert.assertArrayEquals(small, received.get(2));
+    }
+
+    @Test
+    public void testInterleavedWithHigherPriority() throws InvalidInputDataException {
+        SmallConnection a = new SmallConnection();
+        SmallConnection b = new SmallConnection();
+        received.clear();
+        // 4000 bytes per tick, so only a few parts are sent each tick
+        a.setMaxBandwidth(80_000);
+        a.sent.clear();
+
+        byte[] small = randomBytes(10);
+        byte[] large = randomBytes(20_000);
+        BULK.send(a, (buffer, ctx) -> buffer.writeBytes(large));
+        IMPORTANT.send(a, (buffer, ctx) -> buffer.writeBytes(small));
+        a.tick();
+        a.deliverTo(b);
+        // The large packet takes several ticks, so the important packet arrives first
+        Assert.assertEquals(1, received.size());
+        Assert.assertArrayEquals(small, received.get(0));
+
+        for (int i = 0; i < 100 && a.getDelayedPacketCount() > 0; i++) {
+            IMPORTANT.send(a, (buffer, ctx) -> buffer.writeBytes(small));
+            a.tick();
+            a.deliverTo(b);
+        }
+        Assert.assertEquals(0, a.getDelayedPacketCount());
+        Assert.assertEquals(0, a.getSendStats(BULK).getPacketsDropped());
+        int largeIndex = -1;
+        for (int i = 0; i < received.size(); i++) {
+            if (received.get(i).length == large.length) {
+                largeIndex = i;
+            }
+        }
+        Assert.assertTrue(largeIndex > 1);
+        Assert.assertArrayEquals(large, received.get(largeIndex));
+    }
+
+    @Test(expected = InvalidInputDataException.class)
+    public void testReceivingLimit() throws InvalidInputDataException {
+        SmallConnection b = new SmallConnection();
+        // Every packet is allowed on it's own, but not all 3 at once
+        for (int splitId = 0; splitId < 3; splitId++) {
+            NetByteBuf part = NetByteBuf.buffer();
+            part.writeVarUnsignedInt(InternalMsgUtil.ID_INTERNAL_SPLIT_PACKET);
+            part.writeVarUnsignedInt(splitId);
+            part.writeVarUnsignedInt(16 * 1024 * 1024);
+            part.writeVarUnsignedInt(100);
+            part.writeZero(100);
+            try {
+                b.onReceiveRawData(part);
+            } finally {
+                part.release();
+            }
+        }
+    }
+}
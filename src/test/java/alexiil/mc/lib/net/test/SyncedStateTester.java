@@ -0,0 +1,182 @@
+/*
+ * Copyright (c) 2019 AlexIIL
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+package alexiil.mc.lib.net.test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import alexiil.mc.lib.net.IMsgReadCtx;
+import alexiil.mc.lib.net.IMsgWriteCtx;
+import alexiil.mc.lib.net.NetByteBuf;
+import alexiil.mc.lib.net.NetSyncedState;
+import alexiil.mc.lib.net.ParentNetId;
+import alexiil.mc.lib.net.ParentNetIdSingle;
+
+/** Checks that {@link NetSyncedState} only sends changed fields, and resyncs everything for new connections. */
+public class SyncedStateTester {
+
+    enum Mode {
+        OFF,
+        SLOW,
+        FAST;
+    }
+
+    static final class Machine {
+        final int id;
+        int progress;
+        boolean active;
+        Mode mode = Mode.OFF;
+        String owner = "";
+
+        Machine(int id) {
+            this.id = id;
+        }
+    }
+
+    /** The machines on the receiving side. */
+    static final Map<Integer, Machine> receivedMachines = new HashMap<>();
+    static int changeCount;
+    static int lastChanged;
+
+    static final ParentNetId ROOT = new ParentNetId(null, "");
+    static final ParentNetIdSingle<Machine> MACHINE
+        = new ParentNetIdSingle<Machine>(ROOT, Machine.class, "machine", Integer.BYTES) {
+            @Override
+            protected Machine readContext(NetByteBuf buffer, IMsgReadCtx ctx) {
+                return receivedMachines.computeIfAbsent(buffer.readInt(), Machine::new);
+            }
+
+            @Override
+            protected void writeContext(NetByteBuf buffer, IMsgWriteCtx ctx, Machine value) {
+                buffer.writeInt(value.id);
+            }
+        };
+
+    static final NetSyncedState<Machine> STATE = MACHINE.idSyncedState("state")//
+        .intField("progress", m -> m.progress, (m, v) -> m.progress = v)//
+        .booleanField("active", m -> m.active, (m, v) -> m.active = v)//
+        .enumField("mode", Mode.class, m -> m.mode, (m, v) -> m.mode = v)//
+        .field("owner", m -> m.owner, (m, v) -> m.owner = v, (v, buffer, ctx) -> buffer.writeString(v), //
+            (buffer, ctx) -> buffer.readString())//
+        .setChangeListener((m, changed, full, ctx) -> {
+            changeCount++;
+            lastChanged = changed;
+        });
+
+    static boolean failWrites;
+
+    /** The same as {@link #STATE}, except that writing the owner throws an exception while {@link #failWrites} is
+     * true. */
+    static final NetSyncedState<Machine> FAILING = MACHINE.idSyncedState("failing")//
+        .intField("progress", m -> m.progress, (m, v) -> m.progress = v)//
+        .field("owner", m -> m.owner, (m, v) -> m.owner = v, (v, buffer, ctx) -> {
+            if (failWrites) {
+                throw new IllegalStateException("Failed to write " + v);
+            }
+            buffer.writeString(v);
+        }, (buffer, ctx) -> buffer.readString());
+
+    private static LoopbackConnection connect() {
+        LoopbackConnection from = new LoopbackConnection(ROOT);
+        from.to = new LoopbackConnection(ROOT);
+        return from;
+    }
+
+    @Test
+    public void testDelta() {
+        receivedMachines.clear();
+        changeCount = 0;
+        LoopbackConnection connection = connect();
+        Machine machine = new Machine(7);
+        machine.progress = 40;
+        machine.owner = "someone with a long name";
+
+        send(connection, machine);
+        Machine received = receivedMachines.get(7);
+        Assert.assertNotNull(received);
+        assertSame(machine, received);
+        Assert.assertEquals(1, changeCount);
+        Assert.assertEquals(0b1111, lastChanged);
+
+        // Nothing changed, so nothing is sent
+        int sentBefore = connection.sentBytes;
+        send(connection, machine);
+        Assert.assertEquals(sentBefore, connection.sentBytes);
+        Assert.assertEquals(1, changeCount);
+
+        int fullSize = sentBefore;
+        machine.progress = 41;
+        machine.active = true;
+        sentBefore = connection.sentBytes;
+        send(connection, machine);
+        assertSame(machine, received);
+        Assert.assertEquals(2, changeCount);
+        Assert.assertEquals(0b0011, lastChanged);
+        Assert.assertTrue(connection.sentBytes - sentBefore < fullSize);
+
+        machine.mode = Mode.FAST;
+        send(connection, machine);
+        assertSame(machine, received);
+        Assert.assertEquals(0b0100, lastChanged);
+
+        // A new connection receives everything
+        receivedMachines.clear();
+        LoopbackConnection other = connect();
+        send(other, machine);
+        assertSame(machine, receivedMachines.get(7));
+        Assert.assertEquals(0b1111, lastChanged);
+
+        // As does a forgotten object
+        STATE.forget(connection, machine);
+        send(connection, machine);
+        Assert.assertEquals(0b1111, lastChanged);
+    }
+
+    @Test
+    public void testFailedWrite() {
+        receivedMachines.clear();
+        LoopbackConnection connection = connect();
+        Machine machine = new Machine(3);
+        machine.progress = 10;
+        machine.owner = "first";
+
+        failWrites = true;
+        try {
+            FAILING.send(connection, machine);
+            Assert.fail("The write should have failed");
+        } catch (IllegalStateException e) {
+            // Expected
+        } finally {
+            failWrites = false;
+        }
+        connection.tick();
+
+        // Nothing was sent, so the next send has to include everything
+        FAILING.send(connection, machine);
+        connection.tick();
+        Machine received = receivedMachines.get(3);
+        Assert.assertNotNull(received);
+        Assert.assertEquals(10, received.progress);
+        Assert.assertEquals("first", received.owner);
+    }
+
+    private static void send(LoopbackConnection connection, Machine machine) {
+        STATE.send(connection, machine);
+        connection.tick();
+    }
+
+    private static void assertSame(Machine expected, Machine actual) {
+        Assert.assertEquals(expected.progress, actual.progress);
+        Assert.assertEquals(expected.active, actual.active);
+        Assert.assertEquals(expected.mode, actual.mode);
+        Assert.assertEquals(expected.owner, actual.owner);
+    }
+}
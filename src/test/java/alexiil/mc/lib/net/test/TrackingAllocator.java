@@ -0,0 +1,51 @@
+/*
+ * Copyright (c) 2019 AlexIIL
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+package alexiil.mc.lib.net.test;
+
+import io.netty.buffer.AbstractByteBufAllocator;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.UnpooledHeapByteBuf;
+
+/** A {@link io.netty.buffer.ByteBufAllocator} which counts the number of buffers that it has allocated but which
+ * haven't been released yet. Use {@link alexiil.mc.lib.net.ActiveConnection#setAllocator} to check that LNS releases
+ * everything that it allocates. */
+public class TrackingAllocator extends AbstractByteBufAllocator {
+
+    private int live;
+
+    public TrackingAllocator() {
+        super(false);
+    }
+
+    /** @return The number of buffers which haven't been released yet. */
+    public int getLiveBuffers() {
+        return live;
+    }
+
+    @Override
+    protected ByteBuf newHeapBuffer(int initialCapacity, int maxCapacity) {
+        live++;
+        return new UnpooledHeapByteBuf(this, initialCapacity, maxCapacity) {
+            @Override
+            protected void deallocate() {
+                super.deallocate();
+                live--;
+            }
+        };
+    }
+
+    @Override
+    protected ByteBuf newDirectBuffer(int initialCapacity, int maxCapacity) {
+        return newHeapBuffer(initialCapacity, maxCapacity);
+    }
+
+    @Override
+    public boolean isDirectBufferPooled() {
+        return false;
+    }
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright (c) 2019 AlexIIL
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+package alexiil.mc.lib.net.test;
+
+import java.util.Random;
+
+import alexiil.mc.lib.net.NetByteBuf;
+
+/** Compares writing and reading var-ints one byte at a time (which is how {@link NetByteBuf} used to do it) against
+ * the current implementation, which writes and reads up to 8 bytes at once. Each operation writes or reads 10,000
+ * values, either small (1 or 2 bytes, like most ids and counts) or spread evenly over every length. */
+public class VarIntBenchmark {
+
+    static final int VALUES = 10_000;
+
+    public static void main(String[] args) {
+        Random rand = new Random(42);
+        long[] small = new long[VALUES];
+        long[] mixed = new long[VALUES];
+        for (int i = 0; i < VALUES; i++) {
+            small[i] = rand.nextInt(4000) - 2000;
+            mixed[i] = rand.nextLong() >> rand.nextInt(64);
+        }
+        NetByteBuf buf = NetByteBuf.buffer(VALUES * 10);
+        long[] sum = new long[1];
+        for (int round = 0; round < 3; round++) {
+            for (long[] values : new long[][] { small, mixed }) {
+                String type = values == small ? "small" : "mixed";
+                BenchmarkUtil.run("write " + type + " (byte at a time)", 200, 2000, () -> {
+                    buf.clear();
+                    for (long value : values) {
+                        McBufferTester.writeVarLongSlow(buf, value);
+                    }
+                });
+                BenchmarkUtil.run("write " + type, 200, 2000, () -> {
+                    buf.clear();
+                    for (long value : values) {
+                        buf.writeVarLong(value);
+                    }
+                });
+                BenchmarkUtil.run("read " + type + " (byte at a time)", 200, 2000, () -> {
+                    buf.readerIndex(0);
+                    for (int i = 0; i < VALUES; i++) {
+                        sum[0] += readVarLongSlow(buf);
+                    }
+                });
+                BenchmarkUtil.run("read " + type, 200, 2000, () -> {
+                    buf.readerIndex(0);
+                    for (int i = 0; i < VALUES; i++) {
+                        sum[0] += buf.readVarLong();
+                    }
+                });
+                BenchmarkUtil.run("write unsigned " + type + " (byte at a time)", 200, 2000, () -> {
+                    buf.clear();
+                    for (long value : values) {
+                        McBufferTester.writeVarUnsignedLongSlow(buf, value);
+                    }
+                });
+                BenchmarkUtil.run("write unsigned " + type, 200, 2000, () -> {
+                    buf.clear();
+                    for (long value : values) {
+                        buf.writeVarUnsignedLong(value);
+                    }
+                });
+                BenchmarkUtil.run("read unsigned " + type, 200, 2000, () -> {
+                    buf.readerIndex(0);
+                    for (int i = 0; i < VALUES; i++) {
+                        sum[0] += buf.readVarUnsignedLong();
+                    }
+                });
+            }
+        }
+        buf.release();
+        System.out.println("(sum " + sum[0] + ")");
+    }
+
+    /** The original implementation of {@link NetByteBuf#readVarLong()}. */
+    static long readVarLongSlow(NetByteBuf buf) {
+        int count = 0;
+        long lval = 0;
+        long read;
+        do {
+            read = buf.readUnsignedByte();
+            if ((read & 0x80) == 0) {
+                lval |= (read & 0x3f) << count * 7;
+                return (read & 0x40) == 0 ? lval : ~lval;
+            }
+            lval |= (read & 0x7f) << count++ * 7;
+        } while (count < 10);
+        return lval;
+    }
+}
@@ -0,0 +1,90 @@
+/*
+ * Copyright (c) 2019 AlexIIL
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+package alexiil.mc.lib.net.test;
+
+import alexiil.mc.lib.net.BufferedConnection;
+import alexiil.mc.lib.net.IMsgReadCtx;
+import alexiil.mc.lib.net.IMsgWriteCtx;
+import alexiil.mc.lib.net.NetByteBuf;
+import alexiil.mc.lib.net.NetIdDataK;
+import alexiil.mc.lib.net.NetIdSignalK;
+import alexiil.mc.lib.net.ParentNetId;
+import alexiil.mc.lib.net.ParentNetIdSingle;
+
+/** Compares the normal write path of {@link NetIdDataK} and {@link NetIdSignalK} against the fast write path, which
+ * doesn't allocate a {@link alexiil.mc.lib.net.CheckingNetByteBuf} or a context object for every send. Each operation
+ * sends 50 data packets (with a 16 byte payload) and 50 signals through a static parent, and then ticks the
+ * connection. */
+public class WriteFastPathBenchmark {
+
+    static final class Machine {
+        final int index;
+
+        Machine(int index) {
+            this.index = index;
+        }
+    }
+
+    static final Machine[] MACHINES = { new Machine(0), new Machine(1), new Machine(2), new Machine(3) };
+
+    static final ParentNetId ROOT = new ParentNetId(null, "");
+    static final ParentNetIdSingle<Machine> MACHINE
+        = new ParentNetIdSingle<Machine>(ROOT, Machine.class, "machine", Byte.BYTES) {
+            @Override
+            protected Machine readContext(NetByteBuf buffer, IMsgReadCtx ctx) {
+                return MACHINES[buffer.readUnsignedByte()];
+            }
+
+            @Override
+            protected void writeContext(NetByteBuf buffer, IMsgWriteCtx ctx, Machine value) {
+                buffer.writeByte(value.index);
+            }
+        };
+
+    static final NetIdDataK<Machine> PROGRESS = MACHINE.idData("progress").setReadWrite((machine, buffer, ctx) -> {
+        buffer.readLong();
+        buffer.readLong();
+    }, (machine, buffer, ctx) -> {
+        buffer.writeLong(machine.index);
+        buffer.writeLong(-1);
+    });
+
+    static final NetIdSignalK<Machine> ACTIVATE = MACHINE.idSignal("activate");
+
+    static class SinkConnection extends BufferedConnection {
+        long total;
+
+        SinkConnection(boolean fast) {
+            super(ROOT, 20);
+            setFastWrites(fast);
+        }
+
+        @Override
+        protected void sendRawData0(NetByteBuf data) {
+            total += data.readableBytes();
+        }
+    }
+
+    public static void main(String[] args) {
+        for (int round = 0; round < 3; round++) {
+            run("normal", new SinkConnection(false));
+            run("fast", new SinkConnection(true));
+        }
+    }
+
+    private static void run(String name, SinkConnection connection) {
+        BenchmarkUtil.run(name, 2_000, 20_000, () -> {
+            for (int i = 0; i < 50; i++) {
+                Machine machine = MACHINES[i & 3];
+                PROGRESS.send(connection, machine);
+                ACTIVATE.send(connection, machine);
+            }
+            connection.tick();
+        });
+    }
+}